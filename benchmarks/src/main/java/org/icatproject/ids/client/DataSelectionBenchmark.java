@@ -0,0 +1,71 @@
+package org.icatproject.ids.client;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a DataSelection and encoding its ids as URI parameters.
+ *
+ * <p>
+ * getParameters measures encoding a selection which has already been sorted
+ * while buildAndEncode measures the whole cost for a new one. The ids are added in
+ * random order with some duplicates, as they often come from a query.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataSelectionBenchmark {
+
+	@Param({ "10", "1000", "100000" })
+	private int size;
+
+	private long[] ids;
+
+	private DataSelection dataSelection;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		ids = new long[size];
+		for (int i = 0; i < size; i++) {
+			ids[i] = 1000000 + random.nextInt(size + size / 10 + 1);
+		}
+		dataSelection = new DataSelection().addDatafiles(ids).addDatasets(new long[] { 17, 42 });
+		dataSelection.getParameters();
+	}
+
+	@Benchmark
+	public Map<String, String> buildAndEncode() {
+		return new DataSelection().addDatafiles(ids).addDatasets(new long[] { 17, 42 }).getParameters();
+	}
+
+	@Benchmark
+	public Map<String, String> getParameters() {
+		return dataSelection.getParameters();
+	}
+
+	@Benchmark
+	public String idSetToString() {
+		IdSet idSet = new IdSet();
+		idSet.addAll(ids);
+		return idSet.toString();
+	}
+
+}
@@ -0,0 +1,122 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Reading the data of a getData call from a server on the loopback interface
+ * which returns the same bytes from memory for every request. The score is in
+ * calls per second so the throughput is the score times the size. Both ends
+ * share the machine so the absolute figure is mostly of interest in
+ * comparison with earlier runs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HttpInputStreamBenchmark {
+
+	/** Discards what is written to it */
+	private static class NullChannel implements WritableByteChannel {
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			return n;
+		}
+
+	}
+
+	@Param({ "65536", "16777216" })
+	private int size;
+
+	private byte[] buffer = new byte[64 * 1024];
+
+	private IdsClient client;
+
+	private byte[] data;
+
+	private ExecutorService serverThreads;
+
+	private HttpServer server;
+
+	@Setup
+	public void setup() throws IOException {
+		data = new byte[size];
+		new Random(1).nextBytes(data);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/ids/getData", exchange -> {
+			exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+			exchange.sendResponseHeaders(200, data.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(data);
+			}
+		});
+		serverThreads = Executors.newFixedThreadPool(4);
+		server.setExecutor(serverThreads);
+		server.start();
+		client = new IdsClient(new URL("http", "localhost", server.getAddress().getPort(), "/"));
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+		server.stop(0);
+		serverThreads.shutdownNow();
+	}
+
+	@Benchmark
+	public long readStream() throws IdsException, IOException {
+		long n = 0;
+		try (InputStream in = client.getData("a1b2c3d4", 0L)) {
+			int r;
+			while ((r = in.read(buffer)) >= 0) {
+				n += r;
+			}
+		}
+		return n;
+	}
+
+	@Benchmark
+	public long transferToChannel() throws IdsException {
+		return client.getData("a1b2c3d4", new NullChannel());
+	}
+
+}
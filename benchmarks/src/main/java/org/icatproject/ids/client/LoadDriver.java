@@ -0,0 +1,425 @@
+package org.icatproject.ids.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.icatproject.ids.client.IdsClient.Flag;
+
+/**
+ * Drives an IDS through an IdsClient with a mix of operations and reports
+ * the latency percentiles, throughput and errors of each.
+ *
+ * <p>
+ * With a concurrency alone each of that many threads makes one call after
+ * another. With a rate as well calls are started at that rate on up to that
+ * many threads, and latency is measured from when each call should have
+ * started so that a server which falls behind is not hidden by the driver
+ * waiting for it. Calls made during the warm up are not recorded.
+ * </p>
+ *
+ * <p>
+ * The getData operation is a prepareData of one of the selections, a wait
+ * until it is prepared and a getData read to the end. The put operation
+ * stores a file of random bytes in the given data set. With --stub an
+ * {@link IdsStub} holding generated data is started in this process and
+ * used instead of a real server, which measures the client alone.
+ * </p>
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.icatproject.ids.client.LoadDriver \
+ *     --url https://ids.example.com:8181 --session 2f4e... --datasets 1,2,3 \
+ *     --mix getStatus=50,getSize=30,getData=15,put=5 --put-dataset 3 \
+ *     --concurrency 16 --rate 200 --duration 60
+ * </pre>
+ */
+public class LoadDriver {
+
+	enum Operation {
+		getStatus, getSize, getData, put
+	}
+
+	/** The figures recorded for one operation */
+	private static class Figures {
+		private final LongAdder bytes = new LongAdder();
+		private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+		private final LatencyHistogram latency = new LatencyHistogram();
+	}
+
+	private static final String USAGE = "Options:\n"
+			+ "  --url URL            the IDS to drive, or --stub to start one in this process\n"
+			+ "  --session ID         the ICAT session ID (default: stub)\n"
+			+ "  --datafiles IDS      comma separated data file ids to read, one per call\n"
+			+ "  --datasets IDS       comma separated data set ids to read, one per call\n"
+			+ "  --mix OP=WEIGHT,...  weights of getStatus, getSize, getData and put (default: getStatus=1)\n"
+			+ "  --put-dataset ID     the data set in which put stores files\n"
+			+ "  --put-format ID      the data file format of the files stored (default: 1)\n"
+			+ "  --put-size BYTES     the size of the files stored (default: 1048576)\n"
+			+ "  --concurrency N      the number of threads making calls (default: 8)\n"
+			+ "  --rate N             calls to start per second, otherwise as fast as possible\n"
+			+ "  --duration SECONDS   the time for which calls are recorded (default: 30)\n"
+			+ "  --warmup SECONDS     the time before that for which calls are not (default: 5)\n"
+			+ "  --stub-files N       the number of files the stub holds in each of 10 data sets (default: 10)\n"
+			+ "  --stub-file-size B   the size of those files (default: 1048576)\n";
+
+	public static void main(String[] args) throws Exception {
+		LoadDriver driver = new LoadDriver();
+		try {
+			driver.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			System.exit(1);
+		}
+		IdsStub stub = driver.url == null ? driver.startStub() : null;
+		try {
+			driver.run();
+			driver.report(System.out);
+		} finally {
+			if (stub != null) {
+				stub.close();
+			}
+		}
+	}
+
+	private int concurrency = 8;
+
+	private long[] datafileIds = new long[0];
+
+	private long[] datasetIds = new long[0];
+
+	private long durationSeconds = 30;
+
+	private final Map<Operation, Figures> figures = new EnumMap<>(Operation.class);
+
+	private Operation[] mix = { Operation.getStatus };
+
+	private long putDatasetId = -1;
+
+	private long putFormatId = 1;
+
+	private byte[] putData;
+
+	private int putSize = 1024 * 1024;
+
+	private double rate;
+
+	private String sessionId = "stub";
+
+	private int stubFiles = 10;
+
+	private int stubFileSize = 1024 * 1024;
+
+	private URL url;
+
+	private long warmupSeconds = 5;
+
+	private long elapsedNanos;
+
+	LoadDriver() {
+		for (Operation operation : Operation.values()) {
+			figures.put(operation, new Figures());
+		}
+	}
+
+	private void parse(String[] args) {
+		boolean stub = false;
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("--stub")) {
+				stub = true;
+				continue;
+			}
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("No value given for " + option);
+			}
+			String value = args[++i];
+			try {
+				switch (option) {
+				case "--url":
+					url = new URL(value);
+					break;
+				case "--session":
+					sessionId = value;
+					break;
+				case "--datafiles":
+					datafileIds = parseIds(value);
+					break;
+				case "--datasets":
+					datasetIds = parseIds(value);
+					break;
+				case "--mix":
+					mix = parseMix(value);
+					break;
+				case "--put-dataset":
+					putDatasetId = Long.parseLong(value);
+					break;
+				case "--put-format":
+					putFormatId = Long.parseLong(value);
+					break;
+				case "--put-size":
+					putSize = Integer.parseInt(value);
+					break;
+				case "--concurrency":
+					concurrency = Integer.parseInt(value);
+					break;
+				case "--rate":
+					rate = Double.parseDouble(value);
+					break;
+				case "--duration":
+					durationSeconds = Long.parseLong(value);
+					break;
+				case "--warmup":
+					warmupSeconds = Long.parseLong(value);
+					break;
+				case "--stub-files":
+					stubFiles = Integer.parseInt(value);
+					break;
+				case "--stub-file-size":
+					stubFileSize = Integer.parseInt(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + option);
+				}
+			} catch (NumberFormatException | MalformedURLException e) {
+				throw new IllegalArgumentException("Bad value " + value + " for " + option);
+			}
+		}
+		if (stub == (url != null)) {
+			throw new IllegalArgumentException("Exactly one of --url and --stub must be given");
+		}
+		if (concurrency < 1 || durationSeconds < 1 || putSize < 0) {
+			throw new IllegalArgumentException("The concurrency, duration and put size must be positive");
+		}
+		boolean reads = false;
+		boolean puts = false;
+		for (Operation operation : mix) {
+			reads |= operation != Operation.put;
+			puts |= operation == Operation.put;
+		}
+		if (!stub && reads && datafileIds.length == 0 && datasetIds.length == 0) {
+			throw new IllegalArgumentException("--datafiles or --datasets are needed for the operations in the mix");
+		}
+		if (!stub && puts && putDatasetId < 0) {
+			throw new IllegalArgumentException("--put-dataset is needed to put files");
+		}
+		putData = new byte[putSize];
+		new Random().nextBytes(putData);
+	}
+
+	private static long[] parseIds(String value) {
+		String[] parts = value.split(",");
+		long[] ids = new long[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			ids[i] = Long.parseLong(parts[i].trim());
+		}
+		return ids;
+	}
+
+	/**
+	 * Return an array holding each operation as many times as its weight so
+	 * that a random element follows the mix
+	 */
+	private static Operation[] parseMix(String value) {
+		List<Operation> operations = new ArrayList<>();
+		for (String part : value.split(",")) {
+			String[] pair = part.split("=");
+			Operation operation;
+			try {
+				operation = Operation.valueOf(pair[0].trim());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown operation " + pair[0]);
+			}
+			int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+			for (int i = 0; i < weight; i++) {
+				operations.add(operation);
+			}
+		}
+		if (operations.isEmpty()) {
+			throw new IllegalArgumentException("The mix is empty");
+		}
+		return operations.toArray(new Operation[operations.size()]);
+	}
+
+	private IdsStub startStub() throws IOException {
+		IdsStub stub = new IdsStub();
+		Random random = new Random(1);
+		byte[] data = new byte[stubFileSize];
+		random.nextBytes(data);
+		int datasets = 10;
+		datasetIds = new long[datasets];
+		datafileIds = new long[datasets * stubFiles];
+		for (int ds = 0; ds < datasets; ds++) {
+			datasetIds[ds] = 100 + ds;
+			for (int df = 0; df < stubFiles; df++) {
+				long id = 1000 + ds * stubFiles + df;
+				datafileIds[ds * stubFiles + df] = id;
+				stub.addDatafile(1, datasetIds[ds], id, "file" + df, data);
+			}
+		}
+		if (putDatasetId < 0) {
+			putDatasetId = datasetIds[0];
+		}
+		url = stub.getUrl();
+		return stub;
+	}
+
+	private void run() throws InterruptedException {
+		IdsClient client = new IdsClient(url, concurrency, concurrency, IdsClient.DEFAULT_IDLE_TIMEOUT_SECONDS);
+		ExecutorService threads = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("LoadDriver"));
+		try {
+			long start = System.nanoTime();
+			long recordFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+			long end = recordFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+			if (rate > 0) {
+				/* Open loop: start calls on schedule whether or not earlier ones have finished */
+				double interval = 1e9 / rate;
+				for (long n = 0;; n++) {
+					final long due = start + (long) (n * interval);
+					if (due >= end) {
+						break;
+					}
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+					threads.execute(() -> call(client, due, due >= recordFrom));
+				}
+			} else {
+				/* Closed loop: each thread makes one call after another */
+				for (int i = 0; i < concurrency; i++) {
+					threads.execute(() -> {
+						long now;
+						while ((now = System.nanoTime()) < end) {
+							call(client, now, now >= recordFrom);
+						}
+					});
+				}
+			}
+			threads.shutdown();
+			threads.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			elapsedNanos = Math.max(end, System.nanoTime()) - recordFrom;
+		} finally {
+			threads.shutdownNow();
+			client.close();
+		}
+	}
+
+	/**
+	 * Make one call chosen from the mix
+	 *
+	 * @param start
+	 *            when the call should have started
+	 * @param record
+	 *            whether to record it
+	 */
+	private void call(IdsClient client, long start, boolean record) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		Operation operation = mix[random.nextInt(mix.length)];
+		DataSelection dataSelection = new DataSelection();
+		if (datasetIds.length > 0 && (datafileIds.length == 0 || random.nextBoolean())) {
+			dataSelection.addDataset(datasetIds[random.nextInt(datasetIds.length)]);
+		} else if (datafileIds.length > 0) {
+			dataSelection.addDatafile(datafileIds[random.nextInt(datafileIds.length)]);
+		}
+		long bytes = 0;
+		String error = null;
+		try {
+			switch (operation) {
+			case getStatus:
+				client.getStatus(sessionId, dataSelection);
+				break;
+			case getSize:
+				client.getSize(sessionId, dataSelection);
+				break;
+			case getData:
+				String preparedId = client.prepareData(sessionId, dataSelection, Flag.ZIP);
+				client.waitForPrepared(preparedId).get();
+				byte[] buffer = new byte[64 * 1024];
+				try (InputStream in = client.getData(preparedId, 0)) {
+					int n;
+					while ((n = in.read(buffer)) >= 0) {
+						bytes += n;
+					}
+				}
+				break;
+			case put:
+				client.put(sessionId, new ByteArrayInputStream(putData), "load-" + UUID.randomUUID(), putDatasetId,
+						putFormatId, null);
+				bytes = putData.length;
+				break;
+			}
+		} catch (ExecutionException e) {
+			error = e.getCause().getClass().getSimpleName();
+		} catch (IdsException | IOException | RuntimeException e) {
+			error = e.getClass().getSimpleName();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (record) {
+			Figures f = figures.get(operation);
+			f.latency.record(System.nanoTime() - start);
+			f.bytes.add(bytes);
+			if (error != null) {
+				f.errors.computeIfAbsent(error, k -> new LongAdder()).increment();
+			}
+		}
+	}
+
+	private void report(PrintStream out) {
+		double seconds = elapsedNanos / 1e9;
+		out.printf("Recorded for %.1f s with concurrency %d%s against %s%n", seconds, concurrency,
+				rate > 0 ? " at " + rate + " calls/s" : "", url);
+		out.printf("%-10s %9s %9s %9s %9s %9s %9s %9s %9s %9s%n", "operation", "calls", "calls/s", "MB/s", "p50 ms",
+				"p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+		long totalCalls = 0;
+		long totalBytes = 0;
+		Map<String, Long> totalErrors = new TreeMap<>();
+		for (Entry<Operation, Figures> entry : figures.entrySet()) {
+			Figures f = entry.getValue();
+			long calls = f.latency.getCount();
+			if (calls == 0) {
+				continue;
+			}
+			long errors = 0;
+			for (Entry<String, LongAdder> error : f.errors.entrySet()) {
+				errors += error.getValue().sum();
+				totalErrors.merge(entry.getKey() + " " + error.getKey(), error.getValue().sum(), Long::sum);
+			}
+			out.printf("%-10s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f %9d%n", entry.getKey(), calls,
+					calls / seconds, f.bytes.sum() / seconds / 1e6, f.latency.getValueAtPercentile(50) / 1e6,
+					f.latency.getValueAtPercentile(90) / 1e6, f.latency.getValueAtPercentile(99) / 1e6,
+					f.latency.getValueAtPercentile(99.9) / 1e6, f.latency.getMax() / 1e6, errors);
+			totalCalls += calls;
+			totalBytes += f.bytes.sum();
+		}
+		out.printf("%-10s %9d %9.1f %9.2f%n", "total", totalCalls, totalCalls / seconds, totalBytes / seconds / 1e6);
+		if (!totalErrors.isEmpty()) {
+			out.println("Errors:");
+			for (Entry<String, Long> entry : totalErrors.entrySet()) {
+				out.printf("  %-50s %9d%n", entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+}
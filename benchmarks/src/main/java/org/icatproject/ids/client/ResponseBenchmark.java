@@ -0,0 +1,120 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding responses which have already arrived: the error reported by
+ * checkStatus and the json of getServiceStatus and getDatafileIds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseBenchmark {
+
+	private static class Response extends BasicHttpResponse implements CloseableHttpResponse {
+
+		Response(int statusCode, String json) {
+			super(HttpVersion.HTTP_1_1, statusCode, null);
+			setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+	/** Number of ids, and of queued operations, in the json */
+	@Param({ "10", "10000" })
+	private int size;
+
+	private String idsJson;
+
+	private String serviceStatusJson;
+
+	private Response errorResponse;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder("{\"ids\":[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(1000000 + i);
+		}
+		idsJson = sb.append("]}").toString();
+
+		sb = new StringBuilder("{\"opsQueue\":[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"data\":\"DsInfo ").append(i).append("\",\"request\":\"RESTORE\"}");
+		}
+		sb.append("],\"lockCount\":3,\"lockedIds\":[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(2000000 + i);
+		}
+		serviceStatusJson = sb.append("]}").toString();
+
+		errorResponse = new Response(404,
+				"{\"code\":\"NotFoundException\",\"message\":\"Datafile 1234567 was not found\"}");
+	}
+
+	@Benchmark
+	public Exception checkStatus() throws Exception {
+		try {
+			IdsClient.checkStatus(errorResponse);
+			throw new IllegalStateException("No exception thrown");
+		} catch (NotFoundException e) {
+			return e;
+		}
+	}
+
+	@Benchmark
+	public IdsClient.ServiceStatus parseServiceStatus() throws InternalException {
+		return IdsClient.parseServiceStatus(serviceStatusJson);
+	}
+
+	@Benchmark
+	public List<Long> parseIds() throws InternalException {
+		return IdsClient.parseIds(idsJson);
+	}
+
+	@Benchmark
+	public void datafileIdIterator(Blackhole blackhole) throws InternalException, IOException {
+		try (DatafileIdIterator iterator = new DatafileIdIterator(new Response(200, idsJson))) {
+			while (iterator.hasNext()) {
+				blackhole.consume(iterator.nextLong());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+package org.icatproject.ids.client;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.utils.URIBuilder;
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the URIs of requests and the URLs returned by getDataUrl. The
+ * number of ids is kept small enough for the selection to fit in one URI.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UriBenchmark {
+
+	@Param({ "1", "20", "100" })
+	private int size;
+
+	private IdsClient client;
+
+	private DataSelection dataSelection;
+
+	@Setup
+	public void setup() throws Exception {
+		client = new IdsClient(new URL("https://ids.example.com:8181"));
+		dataSelection = new DataSelection();
+		for (int i = 0; i < size; i++) {
+			dataSelection.addDatafile(1000000 + 7 * i);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		client.close();
+	}
+
+	@Benchmark
+	public URI getUri() throws Exception {
+		URIBuilder uriBuilder = new URIBuilder().setScheme("https").setHost("ids.example.com").setPort(8181)
+				.setPath("/ids/getStatus");
+		uriBuilder.setParameter("sessionId", "c9d1f8e2-6a7b-4c3d-9e0f-1a2b3c4d5e6f");
+		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
+			uriBuilder.setParameter(entry.getKey(), entry.getValue());
+		}
+		return IdsClient.getUri(uriBuilder);
+	}
+
+	@Benchmark
+	public URL getDataUrl() {
+		return client.getDataUrl("c9d1f8e2-6a7b-4c3d-9e0f-1a2b3c4d5e6f", dataSelection, Flag.ZIP, "out.zip");
+	}
+
+	@Benchmark
+	public URL getDataUrlPrepared() {
+		return client.getDataUrl("a1b2c3d4-e5f6-4a5b-8c7d-9e0f1a2b3c4d", "out.zip");
+	}
+
+}
@@ -0,0 +1,247 @@
+package org.icatproject.ids.client.http2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.apache.http.message.BasicHttpResponse;
+import org.icatproject.ids.client.Transport;
+
+/**
+ * A {@link Transport} which sends requests with the HTTP client of Java 11
+ * using HTTP/2 where the server supports it.
+ *
+ * <p>
+ * Requests in progress at the same time share one connection, each as a
+ * separate stream, so that many small concurrent calls such as getStatus or
+ * isPrepared need neither a connection each nor to wait for one. Closing the
+ * response of a getData call before the end resets its stream but leaves the
+ * connection open for the others. Where the server only supports HTTP/1.1
+ * the transport falls back to it, with a connection per request in progress.
+ * </p>
+ *
+ * <p>
+ * Aborting a request, as the IdsClient does with the slower of two hedged
+ * requests, cancels it while it waits for the response and afterwards closes
+ * the body, as with the default transport.
+ * </p>
+ */
+public class Http2Transport implements Transport {
+
+	private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+	/** Headers which the Java client sets itself and does not allow */
+	private static final Set<String> RESTRICTED = Set.of("connection", "content-length", "expect", "host",
+			"upgrade");
+
+	private HttpClient client;
+
+	private ExecutorService entityWriters;
+
+	private int maxConcurrency;
+
+	/**
+	 * Create a transport with a connect timeout of 30 seconds
+	 *
+	 * @param maxConcurrency
+	 *            the number of requests the IdsClient may have in progress
+	 *            at once on behalf of a single call
+	 */
+	public Http2Transport(int maxConcurrency) {
+		this(maxConcurrency, Duration.ofSeconds(30));
+	}
+
+	/**
+	 * @param maxConcurrency
+	 *            the number of requests the IdsClient may have in progress
+	 *            at once on behalf of a single call
+	 * @param connectTimeout
+	 *            the time allowed to establish a connection
+	 */
+	public Http2Transport(int maxConcurrency, Duration connectTimeout) {
+		this.maxConcurrency = maxConcurrency;
+		client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).connectTimeout(connectTimeout)
+				.followRedirects(HttpClient.Redirect.NEVER).build();
+		entityWriters = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "Http2Transport entity writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void close() {
+		entityWriters.shutdownNow();
+	}
+
+	@Override
+	public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(request.getURI());
+		for (Header header : request.getAllHeaders()) {
+			if (!RESTRICTED.contains(header.getName().toLowerCase())) {
+				builder.header(header.getName(), header.getValue());
+			}
+		}
+		BodyPublisher body = BodyPublishers.noBody();
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			if (entity != null) {
+				body = publish(entity);
+				if (entity.getContentType() != null) {
+					builder.header("Content-Type", entity.getContentType().getValue());
+				}
+			}
+		}
+		builder.method(request.getMethod(), body);
+
+		CompletableFuture<HttpResponse<InputStream>> future = client.sendAsync(builder.build(),
+				BodyHandlers.ofInputStream());
+		HttpRequestBase base = request instanceof HttpRequestBase ? (HttpRequestBase) request : null;
+		if (base != null) {
+			base.setCancellable(() -> future.cancel(true));
+			/* An abort before the cancellable was set would not have seen it */
+			if (base.isAborted()) {
+				future.cancel(true);
+			}
+		}
+
+		HttpResponse<InputStream> response;
+		try {
+			response = future.get();
+		} catch (CancellationException e) {
+			throw new RequestAbortedException("Request aborted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			/* Later versions of Java pass the cancellation on to the exchange, which fails with it */
+			if (cause instanceof CancellationException) {
+				throw new RequestAbortedException("Request aborted");
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(e.getMessage());
+		}
+
+		InputStream content = response.body();
+		if (base != null) {
+			/* From now on an abort closes the body, which resets the stream */
+			base.setCancellable(() -> {
+				try {
+					content.close();
+				} catch (IOException e) {
+					/* Nothing more can be done */
+				}
+				return true;
+			});
+			if (base.isAborted()) {
+				content.close();
+				throw new RequestAbortedException("Request aborted");
+			}
+		}
+		return toResponse(response);
+	}
+
+	@Override
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * Send the entity through a pipe written by its own writeTo method, as
+	 * the entities of the IdsClient, such as those of put, are not all able
+	 * to supply their content as a stream.
+	 */
+	private BodyPublisher publish(HttpEntity entity) {
+		BodyPublisher publisher = BodyPublishers.ofInputStream(() -> {
+			PipedInputStream in = new PipedInputStream(64 * 1024);
+			try {
+				PipedOutputStream out = new PipedOutputStream(in);
+				entityWriters.execute(() -> {
+					try (OutputStream o = out) {
+						entity.writeTo(o);
+					} catch (IOException e) {
+						/* The reading side sees the pipe broken */
+					}
+				});
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return in;
+		});
+		long length = entity.getContentLength();
+		return length < 0 ? publisher : BodyPublishers.fromPublisher(publisher, length);
+	}
+
+	private static CloseableHttpResponse toResponse(HttpResponse<InputStream> response) {
+		ProtocolVersion version = response.version() == HttpClient.Version.HTTP_2 ? HTTP_2 : HttpVersion.HTTP_1_1;
+		InputStream content = response.body();
+		ClosingResponse result = new ClosingResponse(version, response.statusCode(), content);
+		HttpHeaders headers = response.headers();
+		for (Entry<String, List<String>> entry : headers.map().entrySet()) {
+			if (!entry.getKey().startsWith(":")) {
+				for (String value : entry.getValue()) {
+					result.addHeader(entry.getKey(), value);
+				}
+			}
+		}
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContent(content);
+		entity.setContentLength(headers.firstValueAsLong("Content-Length").orElse(-1));
+		headers.firstValue("Content-Type").ifPresent(entity::setContentType);
+		result.setEntity(entity);
+		return result;
+	}
+
+	private static class ClosingResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+		private final InputStream content;
+
+		ClosingResponse(ProtocolVersion version, int statusCode, InputStream content) {
+			super(version, statusCode, null);
+			this.content = content;
+		}
+
+		/**
+		 * Closing the body before the end cancels the stream
+		 */
+		@Override
+		public void close() throws IOException {
+			content.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,102 @@
+package org.icatproject.ids.client.http2;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.execchain.RequestAbortedException;
+import org.icatproject.ids.client.DataSelection;
+import org.icatproject.ids.client.IdsClient;
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.icatproject.ids.client.IdsClient.Status;
+import org.icatproject.ids.client.IdsStub;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Calls to an {@link IdsStub} through an {@link Http2Transport}
+ */
+public class Http2TransportTest {
+
+	private IdsClient client;
+
+	private byte[] data;
+
+	private IdsStub stub;
+
+	private Http2Transport transport;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		data = new byte[300000];
+		new Random(3).nextBytes(data);
+		stub.addDatafile(1, 10, 100, "file", data);
+		transport = new Http2Transport(4);
+		client = new IdsClient(stub.getUrl(), transport);
+	}
+
+	@After
+	public void after() {
+		client.close();
+		stub.close();
+	}
+
+	@Test
+	public void callsTest() throws Exception {
+		assertEquals(Status.ONLINE, client.getStatus("s", new DataSelection().addDatafile(100)));
+
+		long id = client.put("s", new ByteArrayInputStream(data), "copy", 10, 1, null, null, null, null);
+		try (InputStream in = client.getData("s", new DataSelection().addDatafile(id), Flag.NONE, 0)) {
+			assertArrayEquals(data, read(in));
+		}
+	}
+
+	@Test
+	public void abortTest() throws Exception {
+		stub.setLatencyMillis(10000);
+		HttpGet request = new HttpGet(stub.getUrl() + "ids/ping");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<CloseableHttpResponse> future = executor.submit(() -> transport.execute(request));
+			Thread.sleep(200);
+			long start = System.currentTimeMillis();
+			request.abort();
+			try {
+				future.get().close();
+				fail("Expected RequestAbortedException");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause().toString(), e.getCause() instanceof RequestAbortedException);
+			}
+			/* Without waiting for the response */
+			assertTrue(System.currentTimeMillis() - start < 5000);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+}
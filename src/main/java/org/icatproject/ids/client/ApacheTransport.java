@@ -0,0 +1,88 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * The default {@link Transport} which sends requests over a pool of HTTP/1.1
+ * connections using Apache HttpClient. Each request in progress has a
+ * connection to itself.
+ */
+public class ApacheTransport implements Transport {
+
+	private CloseableHttpClient httpclient;
+
+	private ScheduledExecutorService idleConnectionMonitor;
+
+	private int maxConnectionsPerRoute;
+
+	/**
+	 * @param maxConnections
+	 *            the maximum number of connections held in the pool
+	 * @param maxConnectionsPerRoute
+	 *            the maximum number of connections held in the pool for any
+	 *            one host
+	 * @param idleTimeoutSeconds
+	 *            the number of seconds after which an unused connection is
+	 *            closed
+	 */
+	public ApacheTransport(int maxConnections, int maxConnectionsPerRoute, int idleTimeoutSeconds) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+		/*
+		 * The stale connection check costs a blocking read on every request so
+		 * rely instead on the monitor below to close idle connections before
+		 * the server does.
+		 */
+		RequestConfig requestConfig = RequestConfig.custom().setStaleConnectionCheckEnabled(false).build();
+		httpclient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig)
+				.build();
+
+		final long idleTimeout = idleTimeoutSeconds;
+		idleConnectionMonitor = Executors
+				.newSingleThreadScheduledExecutor(new DaemonThreadFactory("IdsClient idle connection monitor"));
+		idleConnectionMonitor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+			}
+		}, idleTimeout, idleTimeout, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void close() {
+		idleConnectionMonitor.shutdownNow();
+		try {
+			httpclient.close();
+		} catch (IOException e) {
+			// Ignore it
+		}
+	}
+
+	@Override
+	public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+		return httpclient.execute(request);
+	}
+
+	/**
+	 * @return the maximum number of connections to the IDS host
+	 */
+	@Override
+	public int getMaxConcurrency() {
+		return maxConnectionsPerRoute;
+	}
+
+}
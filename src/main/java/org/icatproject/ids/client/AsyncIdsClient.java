@@ -0,0 +1,838 @@
+package org.icatproject.ids.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.icatproject.ids.client.IdsClient.ServiceStatus;
+import org.icatproject.ids.client.IdsClient.Status;
+
+/**
+ * Non-blocking client to communicate with IDS server
+ *
+ * <p>
+ * This offers the same operations as the {@link IdsClient} but each call
+ * returns at once with a CompletableFuture. Requests are multiplexed over a
+ * pool of connections by a small number of I/O threads so that very many calls
+ * may be in progress at the same time without tying up a thread for each.
+ * </p>
+ *
+ * <p>
+ * A call which fails completes its future exceptionally with the same
+ * subclass of IdsException that the corresponding IdsClient call would throw.
+ * Failure to communicate with the server is reported as an InternalException.
+ * The functions passed to methods such as thenApply on the returned futures
+ * are run on an I/O thread unless an async variant with an executor is used,
+ * so they must not block.
+ * </p>
+ */
+public class AsyncIdsClient implements Closeable {
+
+	private static class DataResponseConsumer extends AsyncByteConsumer<Long> {
+
+		private long count;
+		private DataConsumer dataConsumer;
+		private ByteArrayOutputStream error;
+		private HttpResponse response;
+
+		DataResponseConsumer(DataConsumer dataConsumer) {
+			super(BUFFER_SIZE);
+			this.dataConsumer = dataConsumer;
+		}
+
+		@Override
+		protected Long buildResult(HttpContext context) throws Exception {
+			if (error != null) {
+				response.setEntity(new ByteArrayEntity(error.toByteArray()));
+				IdsClient.checkStatus(response);
+				throw new InternalException("Status code " + response.getStatusLine().getStatusCode() + " returned");
+			}
+			return count;
+		}
+
+		@Override
+		protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException {
+			if (error != null) {
+				while (buf.hasRemaining()) {
+					error.write(buf.get());
+				}
+			} else {
+				count += buf.remaining();
+				dataConsumer.onData(buf);
+			}
+		}
+
+		@Override
+		protected void onResponseReceived(HttpResponse response) {
+			this.response = response;
+			if (response.getStatusLine().getStatusCode() / 100 != 2) {
+				error = new ByteArrayOutputStream();
+			}
+		}
+
+	}
+
+	/**
+	 * Streams a file as the body of a put, computing its checksum on the way.
+	 */
+	private static class FileRequestProducer implements HttpAsyncRequestProducer {
+
+		private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		private FileChannel channel;
+		private CRC32 crc;
+		private long size;
+		private URI uri;
+
+		FileRequestProducer(URI uri, Path path, CRC32 crc) throws IOException {
+			this.uri = uri;
+			this.crc = crc;
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+			size = channel.size();
+			buffer.flip();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		@Override
+		public void failed(Exception ex) {
+		}
+
+		@Override
+		public HttpRequest generateRequest() {
+			BasicHttpEntity entity = new BasicHttpEntity();
+			entity.setChunked(false);
+			entity.setContentLength(size);
+			entity.setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+			HttpPut httpPut = new HttpPut(uri);
+			httpPut.setEntity(entity);
+			return httpPut;
+		}
+
+		@Override
+		public HttpHost getTarget() {
+			return URIUtils.extractHost(uri);
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+
+		@Override
+		public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+			if (!buffer.hasRemaining()) {
+				/* Never read beyond the Content-Length even if the file has grown */
+				long position = channel.position();
+				buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+				if (channel.read(buffer) < 0) {
+					throw new IOException("File ended after " + position + " of " + size + " bytes");
+				}
+				buffer.flip();
+				crc.update(buffer.duplicate());
+			}
+			encoder.write(buffer);
+			if (!buffer.hasRemaining() && channel.position() >= size) {
+				encoder.complete();
+			}
+		}
+
+		@Override
+		public void requestCompleted(HttpContext context) {
+		}
+
+		@Override
+		public void resetRequest() {
+		}
+
+	}
+
+	/**
+	 * Turns a buffered response into the result of a call.
+	 */
+	private interface ResultParser<T> {
+		T parse(HttpResponse response) throws IdsException, IOException;
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static <T> CompletableFuture<T> failed(IdsException e) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+		result.completeExceptionally(e);
+		return result;
+	}
+
+	private String basePath;
+
+	private CloseableHttpAsyncClient httpclient;
+
+	private URI idsUri;
+
+	/**
+	 * @param idsUrl
+	 *            The URL of the ids server host. This should be of the form
+	 *            https://example.com:443.
+	 */
+	public AsyncIdsClient(URL idsUrl) {
+		this(idsUrl, IdsClient.DEFAULT_MAX_CONNECTIONS, IdsClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param idsUrl
+	 *            The URL of the ids server host. This should be of the form
+	 *            https://example.com:443.
+	 * @param maxConnections
+	 *            the maximum number of connections held in the pool
+	 * @param maxConnectionsPerRoute
+	 *            the maximum number of connections held in the pool for any
+	 *            one host
+	 * @param ioThreads
+	 *            the number of threads performing I/O
+	 */
+	public AsyncIdsClient(URL idsUrl, int maxConnections, int maxConnectionsPerRoute, int ioThreads) {
+		try {
+			basePath = idsUrl.getFile();
+			if (!basePath.endsWith("/")) {
+				basePath = basePath + "/";
+			}
+			basePath = basePath + "ids/";
+			this.idsUri = new URI(idsUrl.getProtocol(), null, idsUrl.getHost(), idsUrl.getPort(), null, null, null);
+
+			IOReactorConfig ioReactorConfig = IOReactorConfig.custom().setIoThreadCount(ioThreads).build();
+			PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+					new DefaultConnectingIOReactor(ioReactorConfig, new DaemonThreadFactory("AsyncIdsClient I/O")));
+			connectionManager.setMaxTotal(maxConnections);
+			connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+			httpclient = HttpAsyncClients.custom().setConnectionManager(connectionManager)
+					.setThreadFactory(new DaemonThreadFactory("AsyncIdsClient dispatcher")).build();
+			httpclient.start();
+		} catch (URISyntaxException | IOReactorException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Archive data specified by the dataSelection.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 *
+	 * @return a future which completes when the request has been accepted
+	 */
+	public CompletableFuture<Void> archive(String sessionId, DataSelection dataSelection) {
+		return post("archive", sessionId, dataSelection, null, response -> {
+			IdsClient.expectNothing(response);
+			return null;
+		});
+	}
+
+	/**
+	 * Release the connections and threads held by this client.
+	 */
+	@Override
+	public void close() {
+		try {
+			httpclient.close();
+		} catch (IOException e) {
+			// Ignore it
+		}
+	}
+
+	/**
+	 * Delete data specified by the dataSelection.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 *
+	 * @return a future which completes when the data have been deleted
+	 */
+	public CompletableFuture<Void> delete(String sessionId, DataSelection dataSelection) {
+		URIBuilder uriBuilder = getUriBuilder("delete");
+		uriBuilder.addParameter("sessionId", sessionId);
+		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
+			uriBuilder.addParameter(entry.getKey(), entry.getValue());
+		}
+		try {
+			return execute(new HttpDelete(IdsClient.getUri(uriBuilder)), response -> {
+				IdsClient.expectNothing(response);
+				return null;
+			});
+		} catch (IdsException e) {
+			return failed(e);
+		}
+	}
+
+	private <T> CompletableFuture<T> execute(HttpAsyncRequestProducer producer,
+			HttpAsyncResponseConsumer<HttpResponse> consumer, final ResultParser<T> parser) {
+		final CompletableFuture<T> result = new CompletableFuture<>();
+		final Future<HttpResponse> request = httpclient.execute(producer, consumer,
+				new FutureCallback<HttpResponse>() {
+
+					@Override
+					public void cancelled() {
+						result.cancel(false);
+					}
+
+					@Override
+					public void completed(HttpResponse response) {
+						try {
+							result.complete(parser.parse(response));
+						} catch (IdsException e) {
+							result.completeExceptionally(e);
+						} catch (IOException | RuntimeException e) {
+							result.completeExceptionally(new InternalException(e.getClass() + " " + e.getMessage()));
+						}
+					}
+
+					@Override
+					public void failed(Exception ex) {
+						completeExceptionally(result, ex);
+					}
+				});
+		cancelWith(result, request);
+		return result;
+	}
+
+	private <T> CompletableFuture<T> execute(HttpUriRequest request, ResultParser<T> parser) {
+		return execute(HttpAsyncMethods.create(request), new BasicAsyncResponseConsumer(), parser);
+	}
+
+	/** Abort the HTTP request if the caller cancels the future */
+	private static void cancelWith(CompletableFuture<?> result, final Future<?> request) {
+		result.whenComplete((r, t) -> {
+			if (t != null) {
+				request.cancel(true);
+			}
+		});
+	}
+
+	private static void completeExceptionally(CompletableFuture<?> result, Exception ex) {
+		if (ex instanceof IdsException) {
+			result.completeExceptionally(ex);
+		} else {
+			result.completeExceptionally(new InternalException(ex.getClass() + " " + ex.getMessage()));
+		}
+	}
+
+	private CompletableFuture<String> get(String path) {
+		try {
+			return execute(new HttpGet(IdsClient.getUri(getUriBuilder(path))),
+					response -> IdsClient.getString(response));
+		} catch (IdsException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Get the version of the IDS server
+	 *
+	 * @return a future for the version of the IDS server
+	 */
+	public CompletableFuture<String> getApiVersion() {
+		return get("getApiVersion");
+	}
+
+	private CompletableFuture<Long> getData(URIBuilder uriBuilder, long offset, DataConsumer dataConsumer) {
+		HttpGet httpGet;
+		try {
+			httpGet = new HttpGet(IdsClient.getUri(uriBuilder));
+		} catch (IdsException e) {
+			return failed(e);
+		}
+		if (offset != 0) {
+			httpGet.setHeader("Range", "bytes=" + offset + "-");
+		}
+		final CompletableFuture<Long> result = new CompletableFuture<>();
+		Future<Long> request = httpclient.execute(HttpAsyncMethods.create(httpGet),
+				new DataResponseConsumer(dataConsumer), new FutureCallback<Long>() {
+
+					@Override
+					public void cancelled() {
+						result.cancel(false);
+					}
+
+					@Override
+					public void completed(Long count) {
+						result.complete(count);
+					}
+
+					@Override
+					public void failed(Exception ex) {
+						completeExceptionally(result, ex);
+					}
+				});
+		cancelWith(result, request);
+		return result;
+	}
+
+	/**
+	 * Get the data specified by the dataSelection, passing it to the
+	 * dataConsumer as it arrives.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 * @param flags
+	 *            To select packing options
+	 * @param offset
+	 *            Skip this number of bytes in the returned stream
+	 * @param dataConsumer
+	 *            receives the data. It must not block.
+	 *
+	 * @return a future for the number of bytes passed to the dataConsumer
+	 */
+	public CompletableFuture<Long> getData(String sessionId, DataSelection dataSelection, Flag flags, long offset,
+			DataConsumer dataConsumer) {
+		URIBuilder uriBuilder = getUriBuilder("getData");
+		uriBuilder.setParameter("sessionId", sessionId);
+		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
+			uriBuilder.setParameter(entry.getKey(), entry.getValue());
+		}
+
+		if (flags == Flag.ZIP || flags == Flag.ZIP_AND_COMPRESS) {
+			uriBuilder.setParameter("zip", "true");
+		}
+		if (flags == Flag.COMPRESS || flags == Flag.ZIP_AND_COMPRESS) {
+			uriBuilder.setParameter("compress", "true");
+		}
+		return getData(uriBuilder, offset, dataConsumer);
+	}
+
+	/**
+	 * Get the data using the preparedId returned by a call to prepareData,
+	 * passing it to the dataConsumer as it arrives.
+	 *
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * @param offset
+	 *            Skip this number of bytes in the returned stream
+	 * @param dataConsumer
+	 *            receives the data. It must not block.
+	 *
+	 * @return a future for the number of bytes passed to the dataConsumer
+	 */
+	public CompletableFuture<Long> getData(String preparedId, long offset, DataConsumer dataConsumer) {
+		URIBuilder uriBuilder = getUriBuilder("getData");
+		uriBuilder.setParameter("preparedId", preparedId);
+		return getData(uriBuilder, offset, dataConsumer);
+	}
+
+	/**
+	 * Return list of id values of data files included in the preparedId
+	 * returned by a call to prepareData
+	 *
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 *
+	 * @return a future for the list of id values
+	 */
+	public CompletableFuture<List<Long>> getDatafileIds(String preparedId) {
+		URIBuilder uriBuilder = getUriBuilder("getDatafileIds");
+		uriBuilder.setParameter("preparedId", preparedId);
+		return getIds(uriBuilder);
+	}
+
+	/**
+	 * Return list of id values of data files specified by the dataSelection.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param data
+	 *            A data selection object
+	 *
+	 * @return a future for the list of id values
+	 */
+	public CompletableFuture<List<Long>> getDatafileIds(String sessionId, DataSelection data) {
+		URIBuilder uriBuilder = getUriBuilder("getDatafileIds");
+		uriBuilder.setParameter("sessionId", sessionId);
+		for (Entry<String, String> entry : data.getParameters().entrySet()) {
+			uriBuilder.setParameter(entry.getKey(), entry.getValue());
+		}
+		return getIds(uriBuilder);
+	}
+
+	/**
+	 * Return the URL of the ICAT to which the IDS authorizes operations on the
+	 * basis of a sessionId
+	 *
+	 * @return a future for the requested URL
+	 */
+	public CompletableFuture<URL> getIcatUrl() {
+		try {
+			return execute(new HttpGet(IdsClient.getUri(getUriBuilder("getIcatUrl"))),
+					response -> new URL(IdsClient.getString(response)));
+		} catch (IdsException e) {
+			return failed(e);
+		}
+	}
+
+	private CompletableFuture<List<Long>> getIds(URIBuilder uriBuilder) {
+		try {
+			return execute(new HttpGet(IdsClient.getUri(uriBuilder)),
+					response -> IdsClient.parseIds(IdsClient.getString(response)));
+		} catch (IdsException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Return a hard link to a data file.
+	 *
+	 * This is only useful in those cases where the user has direct access to
+	 * the file system where the IDS is storing data. The caller is only granted
+	 * read access to the file.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param datafileId
+	 *            the id of a data file
+	 *
+	 * @return a future for the path of the created link.
+	 */
+	public CompletableFuture<Path> getLink(String sessionId, long datafileId) {
+		List<NameValuePair> formparams = new ArrayList<>();
+		formparams.add(new BasicNameValuePair("sessionId", sessionId));
+		formparams.add(new BasicNameValuePair("datafileId", Long.toString(datafileId)));
+		formparams.add(new BasicNameValuePair("username", System.getProperty("user.name")));
+		try {
+			HttpPost httpPost = new HttpPost(IdsClient.getUri(getUriBuilder("getLink")));
+			httpPost.setEntity(new UrlEncodedFormEntity(formparams));
+			return execute(httpPost, response -> Paths.get(IdsClient.getString(response)));
+		} catch (IdsException e) {
+			return failed(e);
+		} catch (IOException e) {
+			return failed(new InternalException(e.getClass() + " " + e.getMessage()));
+		}
+	}
+
+	/**
+	 * Return a ServiceStatus object to understand what the IDS is doing.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID of a user in the IDS rootUserNames
+	 *            set.
+	 *
+	 * @return a future for the ServiceStatus
+	 */
+	public CompletableFuture<ServiceStatus> getServiceStatus(String sessionId) {
+		URIBuilder uriBuilder = getUriBuilder("getServiceStatus");
+		uriBuilder.setParameter("sessionId", sessionId);
+		try {
+			return execute(new HttpGet(IdsClient.getUri(uriBuilder)),
+					response -> IdsClient.parseServiceStatus(IdsClient.getString(response)));
+		} catch (IdsException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Returns size of the datafiles described by the dataSelection.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object
+	 *
+	 * @return a future for the total size in bytes
+	 */
+	public CompletableFuture<Long> getSize(String sessionId, DataSelection dataSelection) {
+		URIBuilder uriBuilder = getUriBuilder("getSize");
+		uriBuilder.setParameter("sessionId", sessionId);
+		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
+			uriBuilder.setParameter(entry.getKey(), entry.getValue());
+		}
+		try {
+			return execute(new HttpGet(IdsClient.getUri(uriBuilder)), response -> {
+				try {
+					return Long.parseLong(IdsClient.getString(response));
+				} catch (NumberFormatException e) {
+					throw new InternalException(e.getClass() + " " + e.getMessage());
+				}
+			});
+		} catch (IdsException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Return the status of the data specified by the dataSelection.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID or null to perform the query as a user
+	 *            who can read all ICAT data.
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 *
+	 * @return a future for the status
+	 */
+	public CompletableFuture<Status> getStatus(String sessionId, DataSelection dataSelection) {
+		URIBuilder uriBuilder = getUriBuilder("getStatus");
+		if (sessionId != null) {
+			uriBuilder.setParameter("sessionId", sessionId);
+		}
+		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
+			uriBuilder.addParameter(entry.getKey(), entry.getValue());
+		}
+		try {
+			return execute(new HttpGet(IdsClient.getUri(uriBuilder)),
+					response -> Status.valueOf(IdsClient.getString(response)));
+		} catch (IdsException e) {
+			return failed(e);
+		}
+	}
+
+	private URIBuilder getUriBuilder(String path) {
+		return new URIBuilder(idsUri).setPath(basePath + path);
+	}
+
+	/**
+	 * Returns true if the data identified by the preparedId returned by a call
+	 * to prepareData is ready.
+	 *
+	 * @param preparedId
+	 *            the id returned by a call to prepareData
+	 *
+	 * @return a future which is true if ready otherwise false.
+	 */
+	public CompletableFuture<Boolean> isPrepared(String preparedId) {
+		URIBuilder uriBuilder = getUriBuilder("isPrepared");
+		uriBuilder.setParameter("preparedId", preparedId);
+		try {
+			return execute(new HttpGet(IdsClient.getUri(uriBuilder)),
+					response -> Boolean.parseBoolean(IdsClient.getString(response)));
+		} catch (IdsException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Returns the readOnly status of the server
+	 *
+	 * @return a future which is true if readonly, else false
+	 */
+	public CompletableFuture<Boolean> isReadOnly() {
+		return get("isReadOnly").thenApply(Boolean::parseBoolean);
+	}
+
+	/**
+	 * Returns the twoLevel status of the server
+	 *
+	 * @return a future which is true if the server uses both main and archive
+	 *         storage, else false
+	 */
+	public CompletableFuture<Boolean> isTwoLevel() {
+		return get("isTwoLevel").thenApply(Boolean::parseBoolean);
+	}
+
+	/**
+	 * Check that the server is alive and is an IDS server
+	 *
+	 * @return a future which completes normally if the server is alive
+	 */
+	public CompletableFuture<Void> ping() {
+		try {
+			return execute(new HttpGet(IdsClient.getUri(getUriBuilder("ping"))), response -> {
+				String result = IdsClient.getString(response);
+				if (!result.equals("IdsOK")) {
+					throw new InternalException("Server gave invalid response: " + result);
+				}
+				return null;
+			});
+		} catch (IdsException e) {
+			return failed(e);
+		}
+	}
+
+	private <T> CompletableFuture<T> post(String path, String sessionId, DataSelection dataSelection, Flag flags,
+			ResultParser<T> parser) {
+		List<NameValuePair> formparams = new ArrayList<>();
+		formparams.add(new BasicNameValuePair("sessionId", sessionId));
+		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
+			formparams.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
+		}
+		if (flags == Flag.ZIP || flags == Flag.ZIP_AND_COMPRESS) {
+			formparams.add(new BasicNameValuePair("zip", "true"));
+		}
+		if (flags == Flag.COMPRESS || flags == Flag.ZIP_AND_COMPRESS) {
+			formparams.add(new BasicNameValuePair("compress", "true"));
+		}
+		try {
+			HttpPost httpPost = new HttpPost(IdsClient.getUri(getUriBuilder(path)));
+			httpPost.setEntity(new UrlEncodedFormEntity(formparams));
+			return execute(httpPost, parser);
+		} catch (IdsException e) {
+			return failed(e);
+		} catch (IOException e) {
+			return failed(new InternalException(e.getClass() + " " + e.getMessage()));
+		}
+	}
+
+	/**
+	 * Prepare data for a subsequent getData call.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 * @param flags
+	 *            To select packing options
+	 *
+	 * @return a future for the preparedId to be used in calls to getData and
+	 *         isPrepared
+	 */
+	public CompletableFuture<String> prepareData(String sessionId, DataSelection dataSelection, Flag flags) {
+		return post("prepareData", sessionId, dataSelection, flags, response -> IdsClient.getString(response));
+	}
+
+	/**
+	 * Put the contents of a file into a data file and catalogue it. The
+	 * client computes a checksum as the file is sent which is compared to that
+	 * produced by the server to detect any transmission errors.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param path
+	 *            the file providing the data to store
+	 * @param name
+	 *            the name to associate with the data file
+	 * @param datasetId
+	 *            the id of the ICAT data set which should own the data file
+	 * @param datafileFormatId
+	 *            the id of the ICAT "DatafileFormat" to be associated with the
+	 *            data file
+	 * @param description
+	 *            Free text to associate with the data file. (may be null)
+	 * @param doi
+	 *            The Digital Object Identifier to associate with the data file.
+	 *            (may be null)
+	 * @param datafileCreateTime
+	 *            the time to record as the creation time of the data file. If
+	 *            null the current time as known to the IDS server will be
+	 *            stored.
+	 * @param datafileModTime
+	 *            the time to record as the modification time of the data file.
+	 *            If null the value of the datafileCreateTime or the current
+	 *            time as known to the IDS server if that value is also null
+	 *            will be stored.
+	 *
+	 * @return a future for the ICAT id of the data file object created.
+	 */
+	public CompletableFuture<Long> put(String sessionId, Path path, String name, long datasetId,
+			long datafileFormatId, String description, String doi, Date datafileCreateTime, Date datafileModTime) {
+		URIBuilder uriBuilder = getUriBuilder("put");
+		uriBuilder.setParameter("sessionId", sessionId).setParameter("name", name)
+				.setParameter("datafileFormatId", Long.toString(datafileFormatId))
+				.setParameter("datasetId", Long.toString(datasetId));
+		if (description != null) {
+			uriBuilder.setParameter("description", description);
+		}
+		if (doi != null) {
+			uriBuilder.setParameter("doi", doi);
+		}
+		if (datafileCreateTime != null) {
+			uriBuilder.setParameter("datafileCreateTime", Long.toString(datafileCreateTime.getTime()));
+		}
+		if (datafileModTime != null) {
+			uriBuilder.setParameter("datafileModTime", Long.toString(datafileModTime.getTime()));
+		}
+
+		final CRC32 crc = new CRC32();
+		HttpAsyncRequestProducer producer;
+		try {
+			producer = new FileRequestProducer(IdsClient.getUri(uriBuilder), path, crc);
+		} catch (IdsException e) {
+			return failed(e);
+		} catch (IOException e) {
+			return failed(new BadRequestException(e.getClass() + " " + e.getMessage()));
+		}
+		return execute(producer, new BasicAsyncResponseConsumer(), response -> {
+			String result = IdsClient.getString(response);
+			try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
+				JsonObject rootNode = jsonReader.readObject();
+				if (rootNode.getJsonNumber("checksum").longValueExact() != crc.getValue()) {
+					throw new InternalException("Error uploading - the checksum was not as expected");
+				}
+				return rootNode.getJsonNumber("id").longValueExact();
+			}
+		});
+	}
+
+	/**
+	 * Restore data specified by the dataSelection.
+	 *
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 *
+	 * @return a future which completes when the request has been accepted
+	 */
+	public CompletableFuture<Void> restore(String sessionId, DataSelection dataSelection) {
+		return post("restore", sessionId, dataSelection, null, response -> {
+			IdsClient.expectNothing(response);
+			return null;
+		});
+	}
+
+}
@@ -0,0 +1,166 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of large buffers used to copy data from the IDS to a channel.
+ *
+ * <p>
+ * Each entry of the pool is an array, into which the stream of the response
+ * is read in large chunks, and a direct buffer of the same size. Data are
+ * gathered into the direct buffer until it is full and then written with a
+ * single call, so that writes to a file need neither a temporary direct
+ * buffer nor many small system calls. Entries are returned to the pool after
+ * use rather than being allocated for each transfer. If more are needed at
+ * once than the pool holds extra ones are allocated and dropped afterwards.
+ * </p>
+ */
+class BufferPool {
+
+	private static class Buffers {
+		private final byte[] array = new byte[BUFFER_SIZE];
+		private ByteBuffer direct;
+
+		ByteBuffer getDirect() {
+			if (direct == null) {
+				direct = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			}
+			return direct;
+		}
+	}
+
+	/**
+	 * A channel reading from a stream. The data are read straight into the
+	 * caller's buffer when it has an array and otherwise through the array of
+	 * an entry of the pool, held until the channel is closed.
+	 */
+	private class StreamChannel implements ReadableByteChannel {
+
+		private Buffers buffers;
+		private InputStream in;
+
+		StreamChannel(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (in != null) {
+				try {
+					in.close();
+				} finally {
+					in = null;
+					if (buffers != null) {
+						release(buffers);
+						buffers = null;
+					}
+				}
+			}
+		}
+
+		@Override
+		public synchronized boolean isOpen() {
+			return in != null;
+		}
+
+		@Override
+		public synchronized int read(ByteBuffer dst) throws IOException {
+			if (in == null) {
+				throw new ClosedChannelException();
+			}
+			int len = dst.remaining();
+			if (len == 0) {
+				return 0;
+			}
+			if (dst.hasArray()) {
+				int n = in.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+				if (n > 0) {
+					dst.position(dst.position() + n);
+				}
+				return n;
+			}
+			if (buffers == null) {
+				buffers = acquire();
+			}
+			int n = in.read(buffers.array, 0, Math.min(len, BUFFER_SIZE));
+			if (n > 0) {
+				dst.put(buffers.array, 0, n);
+			}
+			return n;
+		}
+
+	}
+
+	static final int BUFFER_SIZE = 1024 * 1024;
+
+	private BlockingQueue<Buffers> pool;
+
+	/**
+	 * @param maxRetained
+	 *            the maximum number of entries to keep for reuse
+	 */
+	BufferPool(int maxRetained) {
+		pool = new ArrayBlockingQueue<>(maxRetained);
+	}
+
+	/**
+	 * Return a channel reading from the stream, which closes the stream when
+	 * it is closed
+	 */
+	ReadableByteChannel newChannel(InputStream in) {
+		return new StreamChannel(in);
+	}
+
+	/**
+	 * Copy the stream to its end into the channel, leaving both open
+	 *
+	 * @return the number of bytes copied
+	 */
+	long transfer(InputStream in, WritableByteChannel out) throws IOException {
+		Buffers buffers = acquire();
+		byte[] array = buffers.array;
+		ByteBuffer direct = buffers.getDirect();
+		try {
+			long total = 0;
+			int n;
+			/* The direct buffer is written whenever it is full so always has room */
+			while ((n = in.read(array, 0, direct.remaining())) >= 0) {
+				direct.put(array, 0, n);
+				total += n;
+				if (!direct.hasRemaining()) {
+					write(direct, out);
+				}
+			}
+			write(direct, out);
+			return total;
+		} finally {
+			direct.clear();
+			release(buffers);
+		}
+	}
+
+	private Buffers acquire() {
+		Buffers buffers = pool.poll();
+		return buffers == null ? new Buffers() : buffers;
+	}
+
+	private void release(Buffers buffers) {
+		pool.offer(buffers);
+	}
+
+	private static void write(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
@@ -0,0 +1,459 @@
+package org.icatproject.ids.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.icatproject.ids.client.IdsClient.ServiceStatus;
+import org.icatproject.ids.client.IdsClient.Status;
+
+/**
+ * Restores a large selection of data from the archive of a two level IDS
+ * without flooding its queue of operations and so starving other users.
+ *
+ * <p>
+ * The selection is split into batches of at most batchSize data sets, or data
+ * files, and one restore call is made for each batch in turn. Investigations
+ * are not split, as the client does not know their data sets, so each is a
+ * batch of its own. A batch is only submitted when fewer than maxOutstanding
+ * batches are still waiting to come online, no sooner than
+ * submitIntervalMillis after the previous one, and while the service status of
+ * the IDS shows fewer than maxOpItems queued operations and fewer than
+ * maxLockCount locks. The status of each outstanding batch is then polled
+ * every pollIntervalMillis until it is ONLINE.
+ * </p>
+ *
+ * <p>
+ * The service status is only available to the users named in the
+ * rootUserNames of the IDS configuration. For other users, or servers which
+ * do not implement it, only the other limits apply. A batch found to be
+ * archived again while waiting is submitted again, up to three times. A batch
+ * for which the IDS reports an error other than an InternalException is
+ * marked as failed without stopping the others. After an InternalException,
+ * which is also how an IDS which cannot be reached is reported, the calls are
+ * retried with a backoff that doubles up to the poll interval. The whole
+ * restore fails only if such errors persist for maxOutageMillis.
+ * </p>
+ *
+ * <p>
+ * The settings must be made before calling {@link #start()}. The work is done
+ * by a thread of the BulkRestore, so progress may be followed with a
+ * {@link RestoreListener} or by calling the getters from any thread.
+ * </p>
+ */
+public class BulkRestore {
+
+	/**
+	 * One batch of the selection, restored by a single call
+	 */
+	public static class Batch {
+
+		private final DataSelection dataSelection;
+		private volatile IdsException exception;
+		private int restores;
+		private volatile Status status;
+
+		Batch(DataSelection dataSelection) {
+			this.dataSelection = dataSelection;
+		}
+
+		/**
+		 * @return the data in the batch
+		 */
+		public DataSelection getDataSelection() {
+			return dataSelection;
+		}
+
+		/**
+		 * @return the reason the batch failed or null if it has not
+		 */
+		public IdsException getException() {
+			return exception;
+		}
+
+		/**
+		 * @return the last known status of the batch or null if it has not
+		 *         been submitted
+		 */
+		public Status getStatus() {
+			return status;
+		}
+
+	}
+
+	private static final int MAX_RESTORES = 3;
+
+	private List<Batch> batches = Collections.emptyList();
+
+	private int batchSize = 10;
+
+	private IdsClient client;
+
+	private DataSelection dataSelection;
+
+	private volatile int failed;
+
+	/** Time of the first of the current run of InternalExceptions, or 0 */
+	private long failingSince;
+
+	/** Wait before retrying after an InternalException, or 0 */
+	private long failureBackoff;
+
+	private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+	private long lastSubmit;
+
+	private RestoreListener listener;
+
+	private int maxLockCount = Integer.MAX_VALUE;
+
+	private int maxOpItems = 100;
+
+	private long maxOutageMillis = 300000;
+
+	private int maxOutstanding = 5;
+
+	private long nextPoll;
+
+	private volatile int online;
+
+	private List<Batch> outstanding = new ArrayList<>();
+
+	private Deque<Batch> pending = new ArrayDeque<>();
+
+	private long pollIntervalMillis = 10000;
+
+	private long retryAt;
+
+	private ScheduledExecutorService scheduler;
+
+	private boolean serviceStatusAvailable = true;
+
+	private String sessionId;
+
+	private long submitIntervalMillis = 1000;
+
+	private volatile int submitted;
+
+	/**
+	 * @param client
+	 *            the client with which to make the calls
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            the data to restore
+	 */
+	public BulkRestore(IdsClient client, String sessionId, DataSelection dataSelection) {
+		this.client = client;
+		this.sessionId = sessionId;
+		this.dataSelection = dataSelection;
+	}
+
+	/**
+	 * Stop submitting and polling. Batches already submitted remain in the
+	 * queue of the IDS. The future returned by start is cancelled.
+	 */
+	public void cancel() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		future.cancel(false);
+	}
+
+	/**
+	 * @return the number of batches
+	 */
+	public int getBatchCount() {
+		return batches.size();
+	}
+
+	/**
+	 * @return the batches in the order they are submitted. This is empty
+	 *         until the restore is started.
+	 */
+	public List<Batch> getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return the number of batches which have failed
+	 */
+	public int getFailedCount() {
+		return failed;
+	}
+
+	/**
+	 * @return the number of batches which are online
+	 */
+	public int getOnlineCount() {
+		return online;
+	}
+
+	/**
+	 * @return the number of batches submitted which are not yet online
+	 */
+	public int getSubmittedCount() {
+		return submitted;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the maximum number of data sets or data files in one batch
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public BulkRestore setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		}
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	/**
+	 * @param listener
+	 *            to be informed of progress, or null
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public BulkRestore setListener(RestoreListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * @param maxLockCount
+	 *            the number of locks held by the IDS at or above which no
+	 *            batch is submitted. By default there is no limit.
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public BulkRestore setMaxLockCount(int maxLockCount) {
+		this.maxLockCount = maxLockCount;
+		return this;
+	}
+
+	/**
+	 * @param maxOpItems
+	 *            the number of operations queued by the IDS, from all its
+	 *            users, at or above which no batch is submitted. The default
+	 *            is 100.
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public BulkRestore setMaxOpItems(int maxOpItems) {
+		this.maxOpItems = maxOpItems;
+		return this;
+	}
+
+	/**
+	 * @param maxOutageMillis
+	 *            how long the IDS may go on failing with InternalExceptions,
+	 *            or be unreachable, before the restore is abandoned. The
+	 *            default is five minutes.
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public BulkRestore setMaxOutageMillis(long maxOutageMillis) {
+		if (maxOutageMillis < 0) {
+			throw new IllegalArgumentException("maxOutageMillis must not be negative");
+		}
+		this.maxOutageMillis = maxOutageMillis;
+		return this;
+	}
+
+	/**
+	 * @param maxOutstanding
+	 *            the maximum number of batches submitted and not yet online.
+	 *            The default is 5.
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public BulkRestore setMaxOutstanding(int maxOutstanding) {
+		if (maxOutstanding < 1) {
+			throw new IllegalArgumentException("maxOutstanding must be at least 1");
+		}
+		this.maxOutstanding = maxOutstanding;
+		return this;
+	}
+
+	/**
+	 * @param pollIntervalMillis
+	 *            the interval between checks of the status of the submitted
+	 *            batches. The default is ten seconds.
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public BulkRestore setPollIntervalMillis(long pollIntervalMillis) {
+		if (pollIntervalMillis < 1) {
+			throw new IllegalArgumentException("pollIntervalMillis must be at least 1");
+		}
+		this.pollIntervalMillis = pollIntervalMillis;
+		return this;
+	}
+
+	/**
+	 * @param submitIntervalMillis
+	 *            the minimum interval between restore calls. The default is
+	 *            one second.
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public BulkRestore setSubmitIntervalMillis(long submitIntervalMillis) {
+		if (submitIntervalMillis < 1) {
+			throw new IllegalArgumentException("submitIntervalMillis must be at least 1");
+		}
+		this.submitIntervalMillis = submitIntervalMillis;
+		return this;
+	}
+
+	/**
+	 * Split the selection into batches and start submitting them.
+	 *
+	 * @return a future which completes once every batch is online or has
+	 *         failed, or completes exceptionally if the IDS could not be
+	 *         reached.
+	 */
+	public synchronized CompletableFuture<Void> start() {
+		if (scheduler != null) {
+			throw new IllegalStateException("BulkRestore has already been started");
+		}
+		batches = new ArrayList<>();
+		for (DataSelection selection : dataSelection.partition(batchSize)) {
+			batches.add(new Batch(selection));
+		}
+		batches = Collections.unmodifiableList(batches);
+		pending.addAll(batches);
+		scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("IdsClient bulk restore"));
+		scheduler.scheduleWithFixedDelay(this::step, 0, Math.min(submitIntervalMillis, pollIntervalMillis),
+				TimeUnit.MILLISECONDS);
+		return future;
+	}
+
+	@Override
+	public String toString() {
+		return online + " of " + batches.size() + " batches online, " + submitted + " restoring, " + failed
+				+ " failed";
+	}
+
+	private void fail(Batch batch, IdsException e) {
+		batch.exception = e;
+		failed++;
+	}
+
+	private boolean hasRoom() throws InternalException {
+		if (!serviceStatusAvailable) {
+			return true;
+		}
+		try {
+			ServiceStatus serviceStatus = client.getServiceStatus(sessionId);
+			return serviceStatus.getOpItems().size() < maxOpItems && serviceStatus.getLockCount() < maxLockCount;
+		} catch (InsufficientPrivilegesException | NotImplementedException e) {
+			serviceStatusAvailable = false;
+			return true;
+		}
+	}
+
+	private void poll() throws InternalException {
+		Iterator<Batch> iter = outstanding.iterator();
+		while (iter.hasNext()) {
+			Batch batch = iter.next();
+			try {
+				batch.status = client.getStatus(sessionId, batch.dataSelection);
+			} catch (InternalException e) {
+				throw e;
+			} catch (IdsException e) {
+				iter.remove();
+				fail(batch, e);
+				continue;
+			}
+			if (batch.status == Status.ONLINE) {
+				iter.remove();
+				online++;
+			} else if (batch.status == Status.ARCHIVED) {
+				iter.remove();
+				if (batch.restores < MAX_RESTORES) {
+					pending.addFirst(batch);
+				} else {
+					fail(batch, new InternalException("Data still archived after " + MAX_RESTORES + " restore calls"));
+				}
+			}
+		}
+	}
+
+	private void step() {
+		int submittedBefore = submitted;
+		int onlineBefore = online;
+		int failedBefore = failed;
+		try {
+			long now = System.currentTimeMillis();
+			if (now < retryAt) {
+				return;
+			}
+			try {
+				if (now >= nextPoll) {
+					poll();
+					nextPoll = now + pollIntervalMillis;
+				}
+				if (!pending.isEmpty() && outstanding.size() < maxOutstanding
+						&& now - lastSubmit >= submitIntervalMillis && hasRoom()) {
+					submit(pending.removeFirst());
+					lastSubmit = now;
+				}
+				failingSince = 0;
+				failureBackoff = 0;
+			} catch (InternalException e) {
+				/* Perhaps the IDS is restarting so back off rather than retry at every step */
+				if (failingSince == 0) {
+					failingSince = now;
+				} else if (now - failingSince >= maxOutageMillis) {
+					stop(e);
+					return;
+				}
+				long step = Math.min(submitIntervalMillis, pollIntervalMillis);
+				failureBackoff = Math.min(failureBackoff == 0 ? step : failureBackoff * 2, pollIntervalMillis);
+				retryAt = now + failureBackoff;
+			}
+			submitted = outstanding.size();
+			if (listener != null
+					&& (submitted != submittedBefore || online != onlineBefore || failed != failedBefore)) {
+				listener.progress(batches.size(), submitted, online, failed);
+			}
+			if (pending.isEmpty() && outstanding.isEmpty()) {
+				scheduler.shutdown();
+				future.complete(null);
+			}
+		} catch (RuntimeException e) {
+			/* Thrown by the listener or the client, so give up rather than fail silently */
+			stop(e);
+		}
+	}
+
+	private void stop(Exception e) {
+		scheduler.shutdownNow();
+		future.completeExceptionally(e);
+	}
+
+	private void submit(Batch batch) throws InternalException {
+		try {
+			client.restore(sessionId, batch.dataSelection);
+		} catch (InternalException e) {
+			pending.addFirst(batch);
+			throw e;
+		} catch (IdsException e) {
+			fail(batch, e);
+			return;
+		}
+		batch.restores++;
+		batch.status = Status.RESTORING;
+		outstanding.add(batch);
+	}
+
+}
@@ -0,0 +1,191 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+/**
+ * Computes the CRC32 checksum of a file, as reported by the IDS after a put,
+ * using several threads.
+ *
+ * <p>
+ * The file is split into segments whose checksums are computed concurrently
+ * on a fork-join pool. The checksums of adjacent segments are then combined,
+ * using the same method as zlib's crc32_combine, to give the checksum of the
+ * whole file. The result may be passed to a put call so that the checksum is
+ * not computed again as the data are sent.
+ * </p>
+ */
+public final class Crc32 {
+
+	private static class Segment extends RecursiveTask<Long> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel channel;
+		private final long end;
+		private final long start;
+
+		Segment(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected Long compute() {
+			if (end - start <= SEGMENT_SIZE) {
+				return read();
+			}
+			long middle = start + (end - start) / 2;
+			Segment right = new Segment(channel, middle, end);
+			right.fork();
+			long leftCrc = new Segment(channel, start, middle).compute();
+			return combine(leftCrc, right.join(), end - middle);
+		}
+
+		private long read() {
+			CRC32 crc = new CRC32();
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, end - start));
+			long position = start;
+			try {
+				while (position < end) {
+					buffer.clear();
+					if (end - position < buffer.capacity()) {
+						buffer.limit((int) (end - position));
+					}
+					int n = channel.read(buffer, position);
+					if (n < 0) {
+						throw new IOException("File is shorter than expected");
+					}
+					crc.update(buffer.array(), 0, n);
+					position += n;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return crc.getValue();
+		}
+
+	}
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	/** Reversed CRC-32 polynomial */
+	private static final long POLYNOMIAL = 0xedb88320L;
+
+	/** Segments are not split below this size */
+	private static final long SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Return the checksum of the concatenation of two blocks of data given
+	 * the checksum of each.
+	 *
+	 * @param crc1
+	 *            the checksum of the first block
+	 * @param crc2
+	 *            the checksum of the second block
+	 * @param length2
+	 *            the length of the second block in bytes
+	 *
+	 * @return the checksum of both blocks
+	 */
+	public static long combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+
+		/* The operator for one zero bit, then for two and for four */
+		long[] even = new long[32];
+		long[] odd = new long[32];
+		odd[0] = POLYNOMIAL;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);
+		square(odd, even);
+
+		/* Apply length2 zero bytes to crc1, squaring for each bit of length2 */
+		do {
+			square(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = times(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+			square(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = times(odd, crc1);
+			}
+			length2 >>= 1;
+		} while (length2 != 0);
+
+		return crc1 ^ crc2;
+	}
+
+	/**
+	 * Compute the checksum of a file using the common fork-join pool
+	 *
+	 * @param path
+	 *            the file
+	 *
+	 * @return the CRC32 checksum of the contents of the file
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static long compute(Path path) throws IOException {
+		return compute(path, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Compute the checksum of a file
+	 *
+	 * @param path
+	 *            the file
+	 * @param pool
+	 *            the pool on which to compute the checksums of the segments
+	 *
+	 * @return the CRC32 checksum of the contents of the file
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static long compute(Path path, ForkJoinPool pool) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return pool.invoke(new Segment(channel, 0, channel.size()));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static void square(long[] square, long[] mat) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = times(mat, mat[n]);
+		}
+	}
+
+	private static long times(long[] mat, long vec) {
+		long sum = 0;
+		for (int i = 0; vec != 0; i++, vec >>>= 1) {
+			if ((vec & 1) != 0) {
+				sum ^= mat[i];
+			}
+		}
+		return sum;
+	}
+
+	private Crc32() {
+	}
+
+}
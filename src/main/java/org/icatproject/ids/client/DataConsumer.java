@@ -0,0 +1,30 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the bytes of a getData call made through the
+ * {@link AsyncIdsClient}.
+ * 
+ * <p>
+ * The methods are called by one of the few I/O threads of the client so they
+ * must not block. Data which cannot be dealt with at once should be copied
+ * from the buffer and processed elsewhere.
+ * </p>
+ */
+public interface DataConsumer {
+
+	/**
+	 * Called each time some data have arrived.
+	 * 
+	 * @param buffer
+	 *            holds the data received. It is only valid for the duration
+	 *            of the call.
+	 * 
+	 * @throws IOException
+	 *             to abandon the transfer.
+	 */
+	void onData(ByteBuffer buffer) throws IOException;
+
+}
@@ -1,21 +1,29 @@
 package org.icatproject.ids.client;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.stream.LongStream;
 
 /**
  * To build set of data to be processed by the IDS.
+ * 
+ * <p>
+ * The ids are held as sorted arrays of primitive longs so that selections of
+ * millions of ids take little more than eight bytes per id. Where ids are
+ * already available as a long[] or a LongStream they should be added with the
+ * bulk methods which take those types to avoid boxing them.
+ * </p>
  */
 public class DataSelection {
 
-	private Set<Long> datafileIds = new HashSet<>();
+	private IdSet datafileIds = new IdSet();
 
-	private Set<Long> datasetIds = new HashSet<>();
+	private IdSet datasetIds = new IdSet();
 
-	private Set<Long> investigationIds = new HashSet<>();
+	private IdSet investigationIds = new IdSet();
 
 	/**
 	 * Add a data file
@@ -43,6 +51,32 @@ public class DataSelection {
 		return this;
 	}
 
+	/**
+	 * Add data files
+	 * 
+	 * @param datafileIds
+	 *            the array of data file id values
+	 * 
+	 * @return itself to allow chaining of addXXX calls
+	 */
+	public DataSelection addDatafiles(long[] datafileIds) {
+		this.datafileIds.addAll(datafileIds);
+		return this;
+	}
+
+	/**
+	 * Add data files
+	 * 
+	 * @param datafileIds
+	 *            the stream of data file id values
+	 * 
+	 * @return itself to allow chaining of addXXX calls
+	 */
+	public DataSelection addDatafiles(LongStream datafileIds) {
+		this.datafileIds.addAll(datafileIds);
+		return this;
+	}
+
 	/**
 	 * Add data set
 	 * 
@@ -69,6 +103,32 @@ public class DataSelection {
 		return this;
 	}
 
+	/**
+	 * Add data sets
+	 * 
+	 * @param datasetIds
+	 *            the array of data set id values
+	 * 
+	 * @return itself to allow chaining of addXXX calls
+	 */
+	public DataSelection addDatasets(long[] datasetIds) {
+		this.datasetIds.addAll(datasetIds);
+		return this;
+	}
+
+	/**
+	 * Add data sets
+	 * 
+	 * @param datasetIds
+	 *            the stream of data set id values
+	 * 
+	 * @return itself to allow chaining of addXXX calls
+	 */
+	public DataSelection addDatasets(LongStream datasetIds) {
+		this.datasetIds.addAll(datasetIds);
+		return this;
+	}
+
 	/**
 	 * Add investigation
 	 * 
@@ -95,28 +155,137 @@ public class DataSelection {
 		return this;
 	}
 
+	/**
+	 * Add investigations
+	 * 
+	 * @param investigationIds
+	 *            the array of investigation id values
+	 * 
+	 * @return itself to allow chaining of addXXX calls
+	 */
+	public DataSelection addInvestigations(long[] investigationIds) {
+		this.investigationIds.addAll(investigationIds);
+		return this;
+	}
+
+	/**
+	 * Add investigations
+	 * 
+	 * @param investigationIds
+	 *            the stream of investigation id values
+	 * 
+	 * @return itself to allow chaining of addXXX calls
+	 */
+	public DataSelection addInvestigations(LongStream investigationIds) {
+		this.investigationIds.addAll(investigationIds);
+		return this;
+	}
+
 	public Map<String, String> getParameters() {
 		Map<String, String> parameters = new HashMap<>();
 		if (!investigationIds.isEmpty()) {
-			parameters.put("investigationIds", setToString(investigationIds));
+			parameters.put("investigationIds", investigationIds.toString());
 		}
 		if (!datasetIds.isEmpty()) {
-			parameters.put("datasetIds", setToString(datasetIds));
+			parameters.put("datasetIds", datasetIds.toString());
 		}
 		if (!datafileIds.isEmpty()) {
-			parameters.put("datafileIds", setToString(datafileIds));
+			parameters.put("datafileIds", datafileIds.toString());
 		}
 		return parameters;
 	}
 
-	private String setToString(Set<Long> ids) {
-		StringBuilder sb = new StringBuilder();
-		for (long id : ids) {
-			if (sb.length() != 0) {
-				sb.append(',');
+	/**
+	 * Return the total number of distinct ids of all types
+	 */
+	int getIdCount() {
+		return datafileIds.size() + datasetIds.size() + investigationIds.size();
+	}
+
+	/**
+	 * Return the number of types of id (data files, data sets and
+	 * investigations) present in the selection.
+	 */
+	int getTypeCount() {
+		return (datafileIds.isEmpty() ? 0 : 1) + (datasetIds.isEmpty() ? 0 : 1) + (investigationIds.isEmpty() ? 0 : 1);
+	}
+
+	/**
+	 * Split into smaller selections, each holding ids of one type, so that
+	 * each may be passed in a URI of limited length. The selections are
+	 * grouped by type with data files first, then data sets and then
+	 * investigations. Empty groups are omitted.
+	 * 
+	 * @param maxLength
+	 *            the maximum number of characters that the query parameters
+	 *            of one selection may take up in a URI, including the '&amp;'
+	 *            that introduces them.
+	 */
+	List<List<DataSelection>> split(int maxLength) {
+		List<List<DataSelection>> groups = new ArrayList<>();
+		split(datafileIds, "datafileIds", maxLength, groups);
+		split(datasetIds, "datasetIds", maxLength, groups);
+		split(investigationIds, "investigationIds", maxLength, groups);
+		return groups;
+	}
+
+	/**
+	 * Split into selections of at most maxIds ids of one type, data sets first,
+	 * then data files and then investigations. Each investigation is a
+	 * selection of its own as the data sets within it are not known to the
+	 * client.
+	 */
+	List<DataSelection> partition(int maxIds) {
+		List<DataSelection> selections = new ArrayList<>();
+		partition(datasetIds, "datasetIds", maxIds, selections);
+		partition(datafileIds, "datafileIds", maxIds, selections);
+		partition(investigationIds, "investigationIds", 1, selections);
+		return selections;
+	}
+
+	private static void partition(IdSet idSet, String name, int maxIds, List<DataSelection> selections) {
+		long[] ids = idSet.toArray();
+		for (int start = 0; start < ids.length; start += maxIds) {
+			selections.add(newSelection(name, Arrays.copyOfRange(ids, start, Math.min(start + maxIds, ids.length))));
+		}
+	}
+
+	/*
+	 * In the URI the comma separating ids is encoded as "%2C" so each id after
+	 * the first costs three more characters than its digits.
+	 */
+	private static void split(IdSet idSet, String name, int maxLength, List<List<DataSelection>> groups) {
+		if (idSet.isEmpty()) {
+			return;
+		}
+		long[] ids = idSet.toArray();
+		List<DataSelection> group = new ArrayList<>();
+		int overhead = name.length() + 2;
+		int start = 0;
+		int length = overhead;
+		for (int i = 0; i < ids.length; i++) {
+			int cost = Long.toString(ids[i]).length() + (i == start ? 0 : 3);
+			if (i != start && length + cost > maxLength) {
+				group.add(newSelection(name, Arrays.copyOfRange(ids, start, i)));
+				start = i;
+				length = overhead;
+				cost = Long.toString(ids[i]).length();
 			}
-			sb.append(Long.toString(id));
+			length += cost;
+		}
+		group.add(newSelection(name, Arrays.copyOfRange(ids, start, ids.length)));
+		groups.add(group);
+	}
+
+	private static DataSelection newSelection(String name, long[] ids) {
+		DataSelection dataSelection = new DataSelection();
+		if (name.equals("datafileIds")) {
+			dataSelection.addDatafiles(ids);
+		} else if (name.equals("datasetIds")) {
+			dataSelection.addDatasets(ids);
+		} else {
+			dataSelection.addInvestigations(ids);
 		}
-		return sb.toString();
+		return dataSelection;
 	}
 }
\ No newline at end of file
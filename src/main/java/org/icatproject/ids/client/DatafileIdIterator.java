@@ -0,0 +1,134 @@
+package org.icatproject.ids.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+
+/**
+ * Iterates over the "ids" array of a getDatafileIds response as it is read
+ * from the connection, so that only one id is held in memory at a time.
+ *
+ * <p>
+ * When the array has been read the rest of the response is consumed so that
+ * the connection can be reused and the response is closed. Closing the
+ * iterator before then aborts the connection.
+ * </p>
+ */
+class DatafileIdIterator implements PrimitiveIterator.OfLong, Closeable {
+
+	private boolean done;
+
+	private boolean hasNext;
+
+	private InputStream in;
+
+	private long next;
+
+	private JsonParser parser;
+
+	private CloseableHttpResponse response;
+
+	/**
+	 * @param response
+	 *            a response whose status has already been checked
+	 */
+	DatafileIdIterator(CloseableHttpResponse response) throws InternalException, IOException {
+		this.response = response;
+		if (response.getEntity() == null) {
+			throw new InternalException("No http entity returned in response");
+		}
+		in = response.getEntity().getContent();
+		try {
+			parser = Json.createParser(in);
+			if (!parser.hasNext() || parser.next() != Event.START_OBJECT) {
+				throw new InternalException("Response is not a json object");
+			}
+			while (true) {
+				if (!parser.hasNext()) {
+					throw new InternalException("No ids found in response");
+				}
+				Event event = parser.next();
+				if (event == Event.KEY_NAME && parser.getString().equals("ids")) {
+					if (parser.next() != Event.START_ARRAY) {
+						throw new InternalException("ids in response is not an array");
+					}
+					break;
+				}
+			}
+		} catch (JsonException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Close the response, aborting the connection if the ids have not all been
+	 * read.
+	 */
+	@Override
+	public void close() {
+		if (response != null) {
+			try {
+				if (done) {
+					parser.close();
+				}
+				response.close();
+			} catch (IOException | JsonException e) {
+				// Ignore it
+			}
+			response = null;
+		}
+	}
+
+	/**
+	 * @throws JsonException
+	 *             if the response cannot be read or is not as expected
+	 */
+	@Override
+	public boolean hasNext() {
+		if (hasNext) {
+			return true;
+		}
+		if (done) {
+			return false;
+		}
+		Event event = parser.next();
+		if (event == Event.VALUE_NUMBER) {
+			next = parser.getLong();
+			hasNext = true;
+			return true;
+		}
+		if (event != Event.END_ARRAY) {
+			throw new JsonException("Unexpected " + event + " in ids array");
+		}
+		done = true;
+		try {
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) >= 0) {
+				// Consume the rest of the response
+			}
+		} catch (IOException e) {
+			// The connection will simply not be reused
+		}
+		close();
+		return false;
+	}
+
+	@Override
+	public long nextLong() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		hasNext = false;
+		return next;
+	}
+
+}
@@ -0,0 +1,24 @@
+package org.icatproject.ids.client;
+
+import java.nio.file.Path;
+
+/**
+ * Receives progress reports from a getDataAndExtract call.
+ */
+public interface ExtractListener {
+
+	/**
+	 * Called once each file has been completely written. It may be called by
+	 * several threads at once so implementations must be thread safe, and it
+	 * should return quickly so as not to hold up the writing of other files.
+	 *
+	 * @param file
+	 *            the file which has been written
+	 * @param files
+	 *            the number of files written so far
+	 * @param bytes
+	 *            the number of bytes written so far
+	 */
+	void extracted(Path file, long files, long bytes);
+
+}
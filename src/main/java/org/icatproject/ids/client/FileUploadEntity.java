@@ -0,0 +1,163 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * The body of a put taken from a file, sent with a fixed Content-Length.
+ *
+ * <p>
+ * Small files are read and sent a buffer at a time. For larger files a reader
+ * task fills a few large buffers ahead of the sending thread and computes the
+ * checksum as it goes, so that reading the disk and computing the checksum
+ * overlap with writing to the network.
+ * </p>
+ */
+class FileUploadEntity extends AbstractHttpEntity {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	/** Number of buffers the reader may fill ahead of the sender */
+	private static final int BUFFERS = 4;
+
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private CRC32 crc;
+
+	private ExecutorService readers;
+
+	private Path path;
+
+	private long size;
+
+	/**
+	 * @param crc
+	 *            updated with the data as they are sent, unless it is null
+	 * @param readers
+	 *            runs the read ahead for large files
+	 */
+	FileUploadEntity(Path path, long size, CRC32 crc, ExecutorService readers) {
+		this.path = path;
+		this.size = size;
+		this.crc = crc;
+		this.readers = readers;
+		setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+	}
+
+	@Override
+	public InputStream getContent() {
+		throw new UnsupportedOperationException("Content may only be written");
+	}
+
+	@Override
+	public long getContentLength() {
+		return size;
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (size <= BUFFER_SIZE * 2) {
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(size, 1));
+				long position = 0;
+				while (position < size) {
+					buffer.clear();
+					int n = channel.read(buffer, position);
+					if (n < 0) {
+						throw new IOException(path + " is shorter than expected");
+					}
+					position += n;
+					if (crc != null) {
+						crc.update(buffer.array(), 0, n);
+					}
+					out.write(buffer.array(), 0, n);
+				}
+			} else {
+				writeWithReadAhead(channel, out);
+			}
+		}
+	}
+
+	private void writeWithReadAhead(final FileChannel channel, OutputStream out) throws IOException {
+		final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFERS);
+		final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFERS + 1);
+		for (int i = 0; i < BUFFERS; i++) {
+			free.add(ByteBuffer.allocate(BUFFER_SIZE));
+		}
+		Future<Void> reader = readers.submit(() -> {
+			try {
+				long position = 0;
+				while (position < size) {
+					ByteBuffer buffer = free.take();
+					buffer.clear();
+					if (size - position < buffer.capacity()) {
+						buffer.limit((int) (size - position));
+					}
+					while (buffer.hasRemaining()) {
+						int n = channel.read(buffer, position + buffer.position());
+						if (n < 0) {
+							throw new IOException(path + " is shorter than expected");
+						}
+					}
+					buffer.flip();
+					position += buffer.remaining();
+					if (crc != null) {
+						crc.update(buffer.array(), 0, buffer.remaining());
+					}
+					full.put(buffer);
+				}
+			} finally {
+				full.put(END);
+			}
+			return null;
+		});
+		try {
+			while (true) {
+				ByteBuffer buffer = full.take();
+				if (buffer == END) {
+					break;
+				}
+				out.write(buffer.array(), 0, buffer.remaining());
+				free.put(buffer);
+			}
+			reader.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while sending " + path);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause.getClass() + " " + cause.getMessage());
+		} finally {
+			reader.cancel(true);
+		}
+	}
+
+}
@@ -0,0 +1,270 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Sends a second copy of a small read-only request when the first is slow,
+ * and uses whichever response arrives first.
+ *
+ * <p>
+ * The latency of each operation is recorded in a histogram covering roughly
+ * the last {@value #WINDOW} requests. Once a request has taken longer than
+ * the chosen percentile of those a copy is sent, which a {@link Router} may
+ * send to another server. The loser is aborted, or closed if it has already
+ * responded. The copies are limited by a budget which grows by maxFraction
+ * for each request and is spent at one per copy, up to a small burst, so that
+ * copies are never more than that fraction of the requests even when the IDS
+ * is slow for a long time.
+ * </p>
+ *
+ * <p>
+ * An aborted loser is recorded with the time it had taken when it was
+ * aborted, as otherwise the slowest requests would be left out just when
+ * copies are sent and the threshold would fall. Requests are sent on a pool
+ * of at most as many threads as the transport has connections; when all are
+ * busy a request is sent by the caller without a copy.
+ * </p>
+ */
+class Hedger {
+
+	/**
+	 * The recent latencies of one operation
+	 */
+	private static class Window {
+
+		private volatile LatencyHistogram current = new LatencyHistogram();
+		private volatile LatencyHistogram previous;
+		private final AtomicLong recorded = new AtomicLong();
+		private volatile long thresholdNanos = -1;
+
+		void record(long nanos, double percentile) {
+			current.record(nanos);
+			long n = recorded.incrementAndGet();
+			if (n % WINDOW == 0) {
+				previous = current;
+				current = new LatencyHistogram();
+			}
+			if (n >= MIN_SAMPLES && n % REFRESH == 0) {
+				LatencyHistogram histogram = previous != null ? previous : current;
+				thresholdNanos = histogram.getValueAtPercentile(percentile);
+			}
+		}
+
+	}
+
+	private static final double MAX_BUDGET = 10;
+
+	/** Requests of an operation to record before its first copy is sent */
+	private static final int MIN_SAMPLES = 32;
+
+	private static final Set<String> OPERATIONS = new HashSet<>(Arrays.asList("getSize", "getStatus", "isPrepared"));
+
+	/** Requests between recalculations of the threshold */
+	private static final int REFRESH = 16;
+
+	private static final int WINDOW = 1000;
+
+	private double budget;
+
+	private ExecutorService executor;
+
+	private AtomicLong hedges = new AtomicLong();
+
+	private double maxFraction;
+
+	private double percentile;
+
+	private ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxThreads
+	 *            the largest number of requests to have in progress at once
+	 *            on the threads of the hedger
+	 */
+	Hedger(double percentile, double maxFraction, int maxThreads) {
+		if (percentile <= 0 || percentile >= 100) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+		if (maxFraction < 0 || maxFraction > 1) {
+			throw new IllegalArgumentException("maxFraction must be between 0 and 1");
+		}
+		if (maxThreads < 1) {
+			throw new IllegalArgumentException("maxThreads must be at least 1");
+		}
+		this.percentile = percentile;
+		this.maxFraction = maxFraction;
+		executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new DaemonThreadFactory("IdsClient hedge"));
+	}
+
+	/**
+	 * Let requests in progress finish but send no more copies
+	 */
+	void close() {
+		executor.shutdown();
+	}
+
+	CloseableHttpResponse execute(HttpUriRequest request, RetryPolicy.Attempt attempt) throws IOException {
+		String path = request.getURI().getPath();
+		String operation = path.substring(path.lastIndexOf('/') + 1);
+		if (!request.getMethod().equals("GET") || !OPERATIONS.contains(operation)) {
+			return attempt.send(request);
+		}
+		Window window = windows.computeIfAbsent(operation, k -> new Window());
+		addBudget();
+		long threshold = window.thresholdNanos;
+		if (threshold < 0) {
+			long start = System.nanoTime();
+			CloseableHttpResponse response = attempt.send(request);
+			window.record(System.nanoTime() - start, percentile);
+			return response;
+		}
+
+		/*
+		 * Both requests sent are copies, made before a Router rewrites them
+		 * for a server, so that the caller's request is never aborted and may
+		 * be sent again by a RetryPolicy
+		 */
+		HttpGet original = copy(request);
+		HttpGet copy = copy(request);
+
+		CompletableFuture<CloseableHttpResponse> winner = new CompletableFuture<>();
+		AtomicInteger failures = new AtomicInteger();
+		CompletableFuture<CloseableHttpResponse> first;
+		try {
+			first = submit(original, attempt, window, winner, failures);
+		} catch (RejectedExecutionException e) {
+			return attempt.send(request);
+		}
+		try {
+			return first.get(threshold, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			// Slow so send the copy if the budget allows
+		} catch (ExecutionException e) {
+			// Reported below by first.get()
+		} catch (InterruptedException e) {
+			original.abort();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + operation);
+		}
+
+		CompletableFuture<CloseableHttpResponse> second = null;
+		if (!first.isDone() && spendBudget()) {
+			try {
+				second = submit(copy, attempt, window, winner, failures);
+				hedges.incrementAndGet();
+			} catch (RejectedExecutionException e) {
+				// Closed
+			}
+		}
+		try {
+			if (second == null) {
+				return first.get();
+			}
+			CloseableHttpResponse response = winner.get();
+			if (!first.isCompletedExceptionally() && first.getNow(null) == response) {
+				copy.abort();
+			} else {
+				original.abort();
+			}
+			return response;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		} catch (InterruptedException e) {
+			original.abort();
+			copy.abort();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + operation);
+		}
+	}
+
+	/**
+	 * @return the number of copies sent
+	 */
+	long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * @return the number of latencies recorded for the operation
+	 */
+	long getRecorded(String operation) {
+		Window window = windows.get(operation);
+		return window == null ? 0 : window.recorded.get();
+	}
+
+	private static HttpGet copy(HttpUriRequest request) {
+		HttpGet copy = new HttpGet(request.getURI());
+		copy.setHeaders(request.getAllHeaders());
+		return copy;
+	}
+
+	private synchronized void addBudget() {
+		budget = Math.min(MAX_BUDGET, budget + maxFraction);
+	}
+
+	private synchronized boolean spendBudget() {
+		if (budget < 1) {
+			return false;
+		}
+		budget--;
+		return true;
+	}
+
+	/**
+	 * Send a request on a thread of the hedger. The first success completes
+	 * the winner and any later one is closed. The second failure completes
+	 * the winner exceptionally, which only matters once a copy has been sent.
+	 */
+	private CompletableFuture<CloseableHttpResponse> submit(HttpGet request, RetryPolicy.Attempt attempt,
+			Window window, CompletableFuture<CloseableHttpResponse> winner, AtomicInteger failures) {
+		CompletableFuture<CloseableHttpResponse> future = new CompletableFuture<>();
+		executor.execute(() -> {
+			long start = System.nanoTime();
+			try {
+				CloseableHttpResponse response = attempt.send(request);
+				window.record(System.nanoTime() - start, percentile);
+				future.complete(response);
+				if (!winner.complete(response)) {
+					response.close();
+				}
+			} catch (IOException | RuntimeException e) {
+				if (request.isAborted()) {
+					window.record(System.nanoTime() - start, percentile);
+				}
+				future.completeExceptionally(e);
+				if (failures.incrementAndGet() == 2) {
+					winner.completeExceptionally(e);
+				}
+			}
+		});
+		return future;
+	}
+
+}
@@ -4,32 +4,70 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.impl.client.CloseableHttpClient;
 
 class HttpInputStream extends FilterInputStream {
 
 	private CloseableHttpResponse response;
-	private CloseableHttpClient httpclient;
+	private boolean eof;
 
 	/**
 	 * Creates an input stream using the specified response.
 	 * 
-	 * @param httpclient
-	 *            the CloseableHttpClient to close
-	 * 
 	 * @param response
 	 *            the response to use and ultimately close
 	 */
-	public HttpInputStream(CloseableHttpClient httpclient, CloseableHttpResponse response)
-			throws IllegalStateException, IOException {
+	public HttpInputStream(CloseableHttpResponse response) throws IllegalStateException, IOException {
 		super(response.getEntity().getContent());
 		this.response = response;
-		this.httpclient = httpclient;
 	}
 
-	/** Ensure that response is closed as well as the underlying inputstream */
+	/**
+	 * Return the length of the content as declared by the server.
+	 * 
+	 * @return the number of bytes or a negative value if not known
+	 */
+	long getContentLength() {
+		return response.getEntity().getContentLength();
+	}
+
+	/**
+	 * Return the HTTP status code of the response.
+	 * 
+	 * @return the status code
+	 */
+	int getStatusCode() {
+		return response.getStatusLine().getStatusCode();
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			eof = true;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n < 0) {
+			eof = true;
+		}
+		return n;
+	}
+
+	/**
+	 * If the stream has been read to the end the connection is returned to
+	 * the pool. Otherwise it is aborted rather than draining what remains of
+	 * the response.
+	 */
 	@Override
 	public void close() throws IOException {
+		if (!eof) {
+			response.close();
+			return;
+		}
 		IOException exception = null;
 		try {
 			in.close();
@@ -43,13 +81,6 @@ class HttpInputStream extends FilterInputStream {
 				exception = e;
 			}
 		}
-		try {
-			httpclient.close();
-		} catch (IOException e) {
-			if (exception == null) {
-				exception = e;
-			}
-		}
 		if (exception != null) {
 			throw exception;
 		}
@@ -0,0 +1,140 @@
+package org.icatproject.ids.client;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.stream.LongStream;
+
+/**
+ * A set of ids held as a sorted array of primitive longs.
+ *
+ * <p>
+ * Ids are appended to the end of the array as they are added and the array is
+ * only sorted, and duplicates removed, when the set is read or when it is
+ * about to grow. This keeps adding cheap and the cost per id close to the
+ * eight bytes of the long itself. The comma separated form needed for a URI
+ * is built in a single pass each time it is needed rather than kept, as for a
+ * large set it would take more memory than the array.
+ * </p>
+ *
+ * <p>
+ * As reading the set may sort it all methods are synchronized so that a set
+ * may be read by several threads at once, as when the same DataSelection is
+ * passed to concurrent calls.
+ * </p>
+ */
+class IdSet {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final long[] EMPTY = new long[0];
+
+	private long[] ids = EMPTY;
+
+	/** Number of entries in ids that are in use */
+	private int size;
+
+	/** Number of leading entries in ids known to be sorted and distinct */
+	private int sorted;
+
+	synchronized void add(long id) {
+		if (size == ids.length) {
+			ensureCapacity(1);
+		}
+		ids[size++] = id;
+	}
+
+	synchronized void addAll(Collection<Long> ids) {
+		ensureCapacity(ids.size());
+		for (long id : ids) {
+			this.ids[size++] = id;
+		}
+	}
+
+	synchronized void addAll(long[] ids) {
+		ensureCapacity(ids.length);
+		System.arraycopy(ids, 0, this.ids, size, ids.length);
+		size += ids.length;
+	}
+
+	synchronized void addAll(LongStream ids) {
+		ids.forEachOrdered(this::add);
+	}
+
+	/**
+	 * Return the id at the given position in ascending order
+	 */
+	synchronized long get(int i) {
+		compact();
+		return ids[i];
+	}
+
+	synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Return the number of distinct ids
+	 */
+	synchronized int size() {
+		compact();
+		return size;
+	}
+
+	/**
+	 * Return the ids in ascending order
+	 */
+	synchronized long[] toArray() {
+		compact();
+		return Arrays.copyOf(ids, size);
+	}
+
+	@Override
+	public synchronized String toString() {
+		compact();
+		if (size == 0) {
+			return "";
+		}
+		int digits = Math.max(Long.toString(ids[0]).length(), Long.toString(ids[size - 1]).length());
+		StringBuilder sb = new StringBuilder(size * (digits + 1));
+		sb.append(ids[0]);
+		for (int i = 1; i < size; i++) {
+			sb.append(',').append(ids[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Sort the ids and remove duplicates
+	 */
+	private void compact() {
+		if (sorted == size) {
+			return;
+		}
+		Arrays.sort(ids, 0, size);
+		int n = 1;
+		for (int i = 1; i < size; i++) {
+			if (ids[i] != ids[n - 1]) {
+				ids[n++] = ids[i];
+			}
+		}
+		size = n;
+		sorted = n;
+	}
+
+	/**
+	 * Make room for another n ids. Duplicates are removed first so that
+	 * adding the same ids repeatedly does not make the array grow.
+	 */
+	private void ensureCapacity(int n) {
+		if (size + n <= ids.length) {
+			return;
+		}
+		compact();
+		if (size + n <= ids.length && size < ids.length / 2) {
+			return;
+		}
+		int capacity = Math.max(INITIAL_CAPACITY, ids.length + (ids.length >> 1));
+		ids = Arrays.copyOf(ids, Math.max(capacity, size + n));
+	}
+
+}
@@ -1,5 +1,6 @@
 package org.icatproject.ids.client;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
@@ -8,16 +9,40 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
 
@@ -38,18 +63,24 @@ import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 
 /**
  * Client to communicate with IDS server
+ * 
+ * <p>
+ * An IdsClient holds a pool of HTTP connections which are reused by all calls
+ * made through it, so a single instance should be shared by all threads talking
+ * to the same IDS server. Call {@link #close()} to release the connections when
+ * the client is no longer needed.
+ * </p>
  */
-public class IdsClient {
+public class IdsClient implements Closeable {
 
 	/**
 	 * Defines packaging options
@@ -79,7 +110,7 @@ public class IdsClient {
 	/**
 	 * Returned by the getServiceStatus call
 	 */
-	public class ServiceStatus {
+	public static class ServiceStatus {
 
 		private int lockCount;
 		private Set<Long> lockedDs = new HashSet<>();
@@ -150,35 +181,426 @@ public class IdsClient {
 		RESTORING
 	};
 
+	/**
+	 * Describes one data file to be stored by a putAll call
+	 */
+	public static class Upload {
+
+		private Long checksum;
+		private Date datafileCreateTime;
+		private long datafileFormatId;
+		private Date datafileModTime;
+		private long datasetId;
+		private String description;
+		private String doi;
+		private InputStream inputStream;
+		private String name;
+		private Path path;
+
+		/**
+		 * @param path
+		 *            the file holding the data to store
+		 * @param name
+		 *            the name to associate with the data file
+		 * @param datasetId
+		 *            the id of the ICAT data set which should own the data
+		 *            file
+		 * @param datafileFormatId
+		 *            the id of the ICAT "DatafileFormat" to be associated with
+		 *            the data file
+		 */
+		public Upload(Path path, String name, long datasetId, long datafileFormatId) {
+			this.path = path;
+			this.name = name;
+			this.datasetId = datasetId;
+			this.datafileFormatId = datafileFormatId;
+		}
+
+		/**
+		 * @param inputStream
+		 *            the input stream providing the data to store. It is not
+		 *            closed.
+		 * @param name
+		 *            the name to associate with the data file
+		 * @param datasetId
+		 *            the id of the ICAT data set which should own the data
+		 *            file
+		 * @param datafileFormatId
+		 *            the id of the ICAT "DatafileFormat" to be associated with
+		 *            the data file
+		 */
+		public Upload(InputStream inputStream, String name, long datasetId, long datafileFormatId) {
+			this.inputStream = inputStream;
+			this.name = name;
+			this.datasetId = datasetId;
+			this.datafileFormatId = datafileFormatId;
+		}
+
+		/**
+		 * @return the checksum of the data if known in advance, else null
+		 */
+		public Long getChecksum() {
+			return checksum;
+		}
+
+		public Date getDatafileCreateTime() {
+			return datafileCreateTime;
+		}
+
+		public long getDatafileFormatId() {
+			return datafileFormatId;
+		}
+
+		public Date getDatafileModTime() {
+			return datafileModTime;
+		}
+
+		public long getDatasetId() {
+			return datasetId;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public String getDoi() {
+			return doi;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the file holding the data or null if the data come from an
+		 *         input stream
+		 */
+		public Path getPath() {
+			return path;
+		}
+
+		/**
+		 * @param checksum
+		 *            the CRC32 checksum of the data if already known, as
+		 *            computed by {@link Crc32#compute(Path)}, so that it need
+		 *            not be computed as the data are sent
+		 * 
+		 * @return itself to allow chaining of setXXX calls
+		 */
+		public Upload setChecksum(Long checksum) {
+			this.checksum = checksum;
+			return this;
+		}
+
+		/**
+		 * @param datafileCreateTime
+		 *            the time to record as the creation time of the data file
+		 * 
+		 * @return itself to allow chaining of setXXX calls
+		 */
+		public Upload setDatafileCreateTime(Date datafileCreateTime) {
+			this.datafileCreateTime = datafileCreateTime;
+			return this;
+		}
+
+		/**
+		 * @param datafileModTime
+		 *            the time to record as the modification time of the data
+		 *            file
+		 * 
+		 * @return itself to allow chaining of setXXX calls
+		 */
+		public Upload setDatafileModTime(Date datafileModTime) {
+			this.datafileModTime = datafileModTime;
+			return this;
+		}
+
+		/**
+		 * @param description
+		 *            Free text to associate with the data file
+		 * 
+		 * @return itself to allow chaining of setXXX calls
+		 */
+		public Upload setDescription(String description) {
+			this.description = description;
+			return this;
+		}
+
+		/**
+		 * @param doi
+		 *            The Digital Object Identifier to associate with the data
+		 *            file
+		 * 
+		 * @return itself to allow chaining of setXXX calls
+		 */
+		public Upload setDoi(String doi) {
+			this.doi = doi;
+			return this;
+		}
+
+	}
+
+	/**
+	 * The outcome of storing one data file in a putAll call
+	 */
+	public static class UploadResult {
+
+		private Long datafileId;
+		private IdsException exception;
+		private Upload upload;
+
+		UploadResult(Upload upload, Long datafileId, IdsException exception) {
+			this.upload = upload;
+			this.datafileId = datafileId;
+			this.exception = exception;
+		}
+
+		/**
+		 * @return the ICAT id of the data file created or null if the upload
+		 *         failed
+		 */
+		public Long getDatafileId() {
+			return datafileId;
+		}
+
+		/**
+		 * @return the reason for failure or null if the upload succeeded
+		 */
+		public IdsException getException() {
+			return exception;
+		}
+
+		/**
+		 * @return the description of the upload
+		 */
+		public Upload getUpload() {
+			return upload;
+		}
+
+		/**
+		 * @return true if the data file was stored and its checksum verified
+		 */
+		public boolean isSuccess() {
+			return exception == null;
+		}
+
+	}
+
+	/**
+	 * A call to be made for each chunk of a split data selection
+	 */
+	private interface ChunkCall<T> {
+		T call(DataSelection chunk) throws IdsException;
+	}
+
+	/**
+	 * Default maximum number of pooled connections
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+	/**
+	 * Default maximum number of pooled connections to the IDS host
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+
+	/**
+	 * Default number of seconds after which an unused pooled connection is
+	 * closed
+	 */
+	public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * Default number of seconds after which the values returned by
+	 * getApiVersion, getIcatUrl, isReadOnly and isTwoLevel are refreshed
+	 */
+	public static final int DEFAULT_SERVER_PROPERTY_REFRESH_SECONDS = 60;
+
+	/**
+	 * Number of seconds between pings of each server by a client given
+	 * several
+	 */
+	public static final int HEALTH_CHECK_SECONDS = 10;
+
+	/**
+	 * Largest data selection for which identical getStatus and getSize calls
+	 * in progress share a request
+	 */
+	private static final int MAX_SHARED_IDS = 1000;
+
+	/**
+	 * Longest URI generated. This is the limit imposed by some browsers.
+	 */
+	private static final int MAX_URI_LENGTH = 2048;
+
+	/** Set while a thread is running a task on behalf of invokeAll */
+	private static final ThreadLocal<Boolean> inTask = new ThreadLocal<>();
+
+	private Memo<String> apiVersion;
+
 	private String basePath;
 
+	private ThreadPoolExecutor executor;
+
+	private BufferPool bufferPool;
+
+	private ExecutorService fileReaders;
+
+	private volatile Hedger hedger;
+
+	private Memo<URL> icatUrl;
+
 	private URI idsUri;
 
 	private URL idsUrl;
 
+	private PreparedWaiter preparedWaiter;
+
+	private volatile Metering metering;
+
+	private Memo<Boolean> readOnly;
+
+	private volatile ResultCache resultCache;
+
+	private volatile RetryPolicy retryPolicy;
+
+	/** Set when the client was given several servers */
+	private Router router;
+
+	private SingleFlight singleFlight = new SingleFlight();
+
+	private volatile long sizeTtlMillis;
+
+	private volatile Map<Status, Long> statusTtlMillis;
+
+	private Transport transport;
+
+	private Memo<Boolean> twoLevel;
+
 	/**
 	 * @param idsUrl
 	 *            The URL of the ids server host. This should be of the form
 	 *            https://example.com:443.
 	 */
 	public IdsClient(URL idsUrl) {
+		this(idsUrl, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_IDLE_TIMEOUT_SECONDS);
+	}
+
+	/**
+	 * @param idsUrl
+	 *            The URL of the ids server host. This should be of the form
+	 *            https://example.com:443.
+	 * @param maxConnections
+	 *            the maximum number of connections held in the pool
+	 * @param maxConnectionsPerRoute
+	 *            the maximum number of connections held in the pool for any
+	 *            one host
+	 * @param idleTimeoutSeconds
+	 *            the number of seconds after which an unused connection is
+	 *            closed
+	 */
+	public IdsClient(URL idsUrl, int maxConnections, int maxConnectionsPerRoute, int idleTimeoutSeconds) {
+		this(idsUrl, new ApacheTransport(maxConnections, maxConnectionsPerRoute, idleTimeoutSeconds));
+	}
+
+	/**
+	 * Create a client which spreads its requests over several IDS servers
+	 * sharing the same storage. Each request is sent to the server which is
+	 * healthy, according to a ping every {@value #HEALTH_CHECK_SECONDS}
+	 * seconds, and has the lowest product of its recent latency and the
+	 * number of requests in progress on it. Requests with a preparedId go to
+	 * the server which issued it. Connections are pooled as for the
+	 * constructor taking a single URL.
+	 * 
+	 * @param idsUrls
+	 *            The URLs of the ids server hosts, each of the form
+	 *            https://example.com:443. URLs returned by getDataUrl refer
+	 *            to the first unless they are for a preparedId.
+	 */
+	public IdsClient(List<URL> idsUrls) {
+		this(idsUrls, new ApacheTransport(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE,
+				DEFAULT_IDLE_TIMEOUT_SECONDS));
+	}
+
+	/**
+	 * Create a client which spreads its requests over several IDS servers as
+	 * for the constructor taking only a list of URLs.
+	 * 
+	 * @param idsUrls
+	 *            The URLs of the ids server hosts, each of the form
+	 *            https://example.com:443.
+	 * @param transport
+	 *            the transport with which requests are sent to all the
+	 *            servers. It is closed when this client is closed.
+	 */
+	public IdsClient(List<URL> idsUrls, Transport transport) {
+		this(idsUrls.get(0), new Router(getBaseUrls(idsUrls), transport, HEALTH_CHECK_SECONDS));
+	}
+
+	/**
+	 * @param idsUrl
+	 *            The URL of the ids server host. This should be of the form
+	 *            https://example.com:443.
+	 * @param transport
+	 *            the transport with which requests are sent. It is closed
+	 *            when this client is closed.
+	 */
+	public IdsClient(URL idsUrl, Transport transport) {
 		try {
-			basePath = idsUrl.getFile();
-			if (!basePath.endsWith("/")) {
-				basePath = basePath + "/";
-			}
-			basePath = basePath + "ids/";
-			String protocol = idsUrl.getProtocol();
-			String host = idsUrl.getHost();
-			int port = idsUrl.getPort();
-
-			this.idsUri = new URI(protocol, null, host, port, null, null, null);
-			this.idsUrl = new URL(protocol, host, port, basePath);
-		} catch (URISyntaxException | MalformedURLException e) {
+			this.idsUrl = getBaseUrl(idsUrl);
+			basePath = this.idsUrl.getFile();
+			this.idsUri = new URI(idsUrl.getProtocol(), null, idsUrl.getHost(), idsUrl.getPort(), null, null, null);
+		} catch (URISyntaxException e) {
+			throw new RuntimeException(e);
+		}
+
+		this.transport = transport;
+		if (transport instanceof Router) {
+			router = (Router) transport;
+		}
+		int maxConcurrency = transport.getMaxConcurrency();
+		executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("IdsClient worker"));
+		executor.allowCoreThreadTimeOut(true);
+		bufferPool = new BufferPool(maxConcurrency);
+		fileReaders = Executors.newCachedThreadPool(new DaemonThreadFactory("IdsClient file reader"));
+
+		/* Leave connections free for other calls however many waits there are */
+		preparedWaiter = new PreparedWaiter(this, Math.max(1, maxConcurrency / 2));
+
+		long refreshMillis = DEFAULT_SERVER_PROPERTY_REFRESH_SECONDS * 1000L;
+		apiVersion = new Memo<>(this::fetchApiVersion, executor, refreshMillis);
+		icatUrl = new Memo<>(this::fetchIcatUrl, executor, refreshMillis);
+		readOnly = new Memo<>(this::fetchReadOnly, executor, refreshMillis);
+		twoLevel = new Memo<>(this::fetchTwoLevel, executor, refreshMillis);
+	}
+
+	/**
+	 * Return the URL of the IDS resources of a server, which are under "ids/"
+	 */
+	private static URL getBaseUrl(URL idsUrl) {
+		String basePath = idsUrl.getFile();
+		if (!basePath.endsWith("/")) {
+			basePath = basePath + "/";
+		}
+		basePath = basePath + "ids/";
+		try {
+			return new URL(idsUrl.getProtocol(), idsUrl.getHost(), idsUrl.getPort(), basePath);
+		} catch (MalformedURLException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	private static List<URL> getBaseUrls(List<URL> idsUrls) {
+		if (idsUrls.isEmpty()) {
+			throw new IllegalArgumentException("At least one IDS URL is needed");
+		}
+		List<URL> baseUrls = new ArrayList<>();
+		for (URL idsUrl : idsUrls) {
+			baseUrls.add(getBaseUrl(idsUrl));
+		}
+		return baseUrls;
+	}
+
 	/**
 	 * Archive data specified by the dataSelection.
 	 * 
@@ -201,17 +623,19 @@ public class IdsClient {
 	public void archive(String sessionId, DataSelection dataSelection) throws NotImplementedException,
 			BadRequestException, InsufficientPrivilegesException, InternalException, NotFoundException {
 
+		invalidateCache(false);
 		URI uri = getUri(getUriBuilder("archive"));
 		List<NameValuePair> formparams = new ArrayList<>();
 		formparams.add(new BasicNameValuePair("sessionId", sessionId));
 		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
 			formparams.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
 		}
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
+		try {
 			HttpPost httpPost = new HttpPost(uri);
 			httpPost.setEntity(new UrlEncodedFormEntity(formparams));
-			try (CloseableHttpResponse response = httpclient.execute(httpPost)) {
+			try (CloseableHttpResponse response = execute(httpPost)) {
 				expectNothing(response);
+				invalidateCache(false);
 			} catch (InsufficientStorageException | DataNotOnlineException e) {
 				throw new InternalException(e.getClass() + " " + e.getMessage());
 			}
@@ -220,7 +644,238 @@ public class IdsClient {
 		}
 	}
 
-	private void checkStatus(HttpResponse response)
+	/**
+	 * Release the pooled connections held by this client. Any InputStream
+	 * returned by a getData call should be closed first.
+	 */
+	@Override
+	public void close() {
+		preparedWaiter.close();
+		executor.shutdownNow();
+		fileReaders.shutdownNow();
+		disableHedging();
+		transport.close();
+	}
+
+	/**
+	 * Cache the results of getStatus and getSize calls made through this
+	 * client. Results are keyed on the sessionId and the ids in the
+	 * dataSelection, whatever order they were added in. Calls to archive,
+	 * restore, delete and put made through this client invalidate all cached
+	 * getStatus results, and delete and put also invalidate all cached getSize
+	 * results, as the client cannot know which selections they affect. Changes
+	 * made by other clients are only seen when an entry expires. Calling this
+	 * again replaces the cache with an empty one.
+	 * 
+	 * @param maxIds
+	 *            the maximum total number of ids in the data selections of the
+	 *            cached results. The least recently used results are discarded
+	 *            to stay within this limit.
+	 * @param statusTtlMillis
+	 *            the number of milliseconds for which a getStatus result is
+	 *            cached, for each value of the status. A status which is not
+	 *            in the map is not cached.
+	 * @param sizeTtlMillis
+	 *            the number of milliseconds for which a getSize result is
+	 *            cached, or zero to not cache them.
+	 */
+	public void enableCache(long maxIds, Map<Status, Long> statusTtlMillis, long sizeTtlMillis) {
+		this.statusTtlMillis = new EnumMap<>(Status.class);
+		this.statusTtlMillis.putAll(statusTtlMillis);
+		this.sizeTtlMillis = sizeTtlMillis;
+		resultCache = new ResultCache(maxIds);
+	}
+
+	/**
+	 * Set how often the values returned by getApiVersion, getIcatUrl,
+	 * isReadOnly and isTwoLevel are refreshed. Each is fetched from the server
+	 * on the first call and then held. Once it is older than the refresh
+	 * interval the next call starts a background refresh and returns the old
+	 * value without waiting for it.
+	 * 
+	 * @param refreshMillis
+	 *            the refresh interval in milliseconds. The default is
+	 *            {@value #DEFAULT_SERVER_PROPERTY_REFRESH_SECONDS} seconds.
+	 */
+	public void setServerPropertyRefreshInterval(long refreshMillis) {
+		apiVersion.setRefreshInterval(refreshMillis);
+		icatUrl.setRefreshInterval(refreshMillis);
+		readOnly.setRefreshInterval(refreshMillis);
+		twoLevel.setRefreshInterval(refreshMillis);
+	}
+
+	/**
+	 * Report each request made by this client to a listener. Requests are
+	 * reported from when they are sent until their responses have been
+	 * closed, so the InputStream returned by a getData call is only reported
+	 * once it has been closed.
+	 * 
+	 * @param listener
+	 *            the listener, such as a {@link MetricsRecorder}, or null to
+	 *            stop reporting.
+	 */
+	public void setMetricsListener(MetricsListener listener) {
+		metering = listener == null ? null : new Metering(listener);
+	}
+
+	/**
+	 * Repeat requests which read data after transient failures, and fail fast
+	 * while the IDS appears to be down, as described by the policy. By default
+	 * no request is repeated.
+	 * 
+	 * @param policy
+	 *            the policy, or null to stop repeating requests. It should not
+	 *            be shared with clients of other servers.
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		retryPolicy = policy;
+	}
+
+	/**
+	 * Cut the tail latency of getStatus, getSize and isPrepared calls by
+	 * sending a second copy of any request which is slower than most. Once a
+	 * request has taken longer than the given percentile of the recent
+	 * latencies of that call a copy is sent, to another server if the client
+	 * was given several, and the first response is used while the other
+	 * request is aborted. Calling this again replaces the latencies recorded
+	 * so far.
+	 * 
+	 * @param percentile
+	 *            the percentile of recent latency after which a copy is sent,
+	 *            such as 95
+	 * @param maxFraction
+	 *            the largest fraction of requests to copy, such as 0.05, so
+	 *            that the copies add little load even when the IDS is slow
+	 */
+	public void enableHedging(double percentile, double maxFraction) {
+		Hedger old = hedger;
+		hedger = new Hedger(percentile, maxFraction, transport.getMaxConcurrency());
+		if (old != null) {
+			old.close();
+		}
+	}
+
+	/**
+	 * Stop sending copies of slow requests
+	 */
+	public void disableHedging() {
+		Hedger old = hedger;
+		hedger = null;
+		if (old != null) {
+			old.close();
+		}
+	}
+
+	/**
+	 * Return the number of copies of slow requests sent since hedging was
+	 * enabled.
+	 * 
+	 * @return the number of copies
+	 */
+	public long getHedgeCount() {
+		Hedger h = hedger;
+		return h == null ? 0 : h.getHedges();
+	}
+
+	/**
+	 * Stop caching the results of getStatus and getSize calls and discard
+	 * those cached.
+	 */
+	public void disableCache() {
+		resultCache = null;
+	}
+
+	/**
+	 * Return the number of getStatus and getSize calls answered from the cache
+	 * since it was enabled.
+	 * 
+	 * @return the number of hits
+	 */
+	public long getCacheHits() {
+		ResultCache cache = resultCache;
+		return cache == null ? 0 : cache.getHits();
+	}
+
+	/**
+	 * Return the number of getStatus and getSize calls which shared the
+	 * request of an identical call already in progress rather than making
+	 * their own. Such calls are shared whether or not the cache is enabled.
+	 * 
+	 * @return the number of shared calls
+	 */
+	public long getSharedCalls() {
+		return singleFlight.getShared();
+	}
+
+	/**
+	 * Return the number of getStatus and getSize calls which could not be
+	 * answered from the cache since it was enabled.
+	 * 
+	 * @return the number of misses
+	 */
+	public long getCacheMisses() {
+		ResultCache cache = resultCache;
+		return cache == null ? 0 : cache.getMisses();
+	}
+
+	/**
+	 * Make a getStatus or getSize call, sharing the request of an identical
+	 * call in progress in another thread if there is one. Selections of many
+	 * ids are not shared as they are seldom repeated and their keys are long.
+	 */
+	private <T> T share(String name, String sessionId, DataSelection dataSelection, SingleFlight.Call<T> call)
+			throws BadRequestException, NotFoundException, InsufficientPrivilegesException, InternalException,
+			NotImplementedException {
+		try {
+			if (dataSelection.getIdCount() > MAX_SHARED_IDS) {
+				return call.call();
+			}
+			return singleFlight.execute(name, getCacheKey(sessionId, dataSelection), call);
+		} catch (IdsException e) {
+			try {
+				rethrow(e);
+			} catch (InsufficientStorageException | DataNotOnlineException e1) {
+				throw new InternalException(e1.getClass() + " " + e1.getMessage());
+			}
+			return null;
+		}
+	}
+
+	private static String getCacheKey(String sessionId, DataSelection dataSelection) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(sessionId);
+		for (Entry<String, String> entry : new TreeMap<>(dataSelection.getParameters()).entrySet()) {
+			sb.append('&').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	private void invalidateCache(boolean sizes) {
+		singleFlight.invalidate("getStatus");
+		if (sizes) {
+			singleFlight.invalidate("getSize");
+		}
+		ResultCache cache = resultCache;
+		if (cache != null) {
+			cache.invalidate("getStatus");
+			if (sizes) {
+				cache.invalidate("getSize");
+			}
+		}
+	}
+
+	static void checkStatus(HttpResponse response)
+			throws InternalException, BadRequestException, DataNotOnlineException, IOException,
+			InsufficientPrivilegesException, NotImplementedException, InsufficientStorageException, NotFoundException {
+		try {
+			throwIfError(response);
+		} catch (IdsException | IOException e) {
+			Metering.failed(response, e);
+			throw e;
+		}
+	}
+
+	private static void throwIfError(HttpResponse response)
 			throws InternalException, BadRequestException, DataNotOnlineException, IOException,
 			InsufficientPrivilegesException, NotImplementedException, InsufficientStorageException, NotFoundException {
 		StatusLine status = response.getStatusLine();
@@ -302,26 +957,43 @@ public class IdsClient {
 			throws NotImplementedException, BadRequestException, InsufficientPrivilegesException, InternalException,
 			NotFoundException, DataNotOnlineException {
 
+		invalidateCache(true);
 		URIBuilder uriBuilder = getUriBuilder("delete");
 		uriBuilder.addParameter("sessionId", sessionId);
+		List<List<DataSelection>> groups = split(uriBuilder, dataSelection);
+		if (groups != null) {
+			/*
+			 * Data files go before data sets and data sets before
+			 * investigations so nothing is deleted by one chunk that is named
+			 * in a later one.
+			 */
+			try {
+				for (List<DataSelection> group : groups) {
+					invokeAll(Collections.singletonList(group), chunk -> {
+						delete(sessionId, chunk);
+						return null;
+					});
+				}
+				return;
+			} catch (InsufficientStorageException e) {
+				throw new InternalException(e.getClass() + " " + e.getMessage());
+			}
+		}
 		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
 			uriBuilder.addParameter(entry.getKey(), entry.getValue());
 		}
 		URI uri = getUri(uriBuilder);
 
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpDelete httpDelete = new HttpDelete(uri);
-			try (CloseableHttpResponse response = httpclient.execute(httpDelete)) {
-				expectNothing(response);
-			} catch (InsufficientStorageException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
-		} catch (IOException e) {
+		HttpDelete httpDelete = new HttpDelete(uri);
+		try (CloseableHttpResponse response = execute(httpDelete)) {
+			expectNothing(response);
+			invalidateCache(true);
+		} catch (IOException | InsufficientStorageException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
 
-	private void expectNothing(CloseableHttpResponse response)
+	static void expectNothing(HttpResponse response)
 			throws InternalException, BadRequestException, DataNotOnlineException, InsufficientPrivilegesException,
 			NotImplementedException, InsufficientStorageException, NotFoundException, IOException {
 		checkStatus(response);
@@ -336,6 +1008,9 @@ public class IdsClient {
 	/**
 	 * Get the version of the IDS server
 	 * 
+	 * The value is only fetched from the server on the first call and then
+	 * refreshed in the background, see setServerPropertyRefreshInterval.
+	 * 
 	 * @return a String with the version of the IDS server
 	 * 
 	 * @throws InternalException
@@ -344,21 +1019,26 @@ public class IdsClient {
 	 *             if the operation has not been implemented.
 	 */
 	public String getApiVersion() throws InternalException, NotImplementedException {
+		String value = apiVersion.get();
+		if (value == null) {
+			value = fetchApiVersion();
+			apiVersion.set(value);
+		}
+		return value;
+	}
+
+	private String fetchApiVersion() throws InternalException, NotImplementedException {
 		URI uri;
 		try {
 			uri = getUri(getUriBuilder("getApiVersion"));
 		} catch (BadRequestException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpGet httpGet = new HttpGet(uri);
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				return getString(response);
-			} catch (IOException | InsufficientStorageException | DataNotOnlineException | BadRequestException
-					| InsufficientPrivilegesException | NotFoundException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
-		} catch (IOException e) {
+		HttpGet httpGet = new HttpGet(uri);
+		try (CloseableHttpResponse response = execute(httpGet)) {
+			return getString(response);
+		} catch (IOException | InsufficientStorageException | DataNotOnlineException | BadRequestException
+				| InsufficientPrivilegesException | NotFoundException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
@@ -416,37 +1096,7 @@ public class IdsClient {
 			uriBuilder.setParameter("outname", outname);
 		}
 		URI uri = getUri(uriBuilder);
-		CloseableHttpResponse response = null;
-		CloseableHttpClient httpclient = null;
-		HttpGet httpGet = new HttpGet(uri);
-		if (offset != 0) {
-			httpGet.setHeader("Range", "bytes=" + offset + "-");
-		}
-		boolean closeNeeded = true;
-		try {
-			httpclient = HttpClients.createDefault();
-			response = httpclient.execute(httpGet);
-			checkStatus(response);
-			closeNeeded = false;
-			return new HttpInputStream(httpclient, response);
-		} catch (IOException | InsufficientStorageException e) {
-			throw new InternalException(e.getClass() + " " + e.getMessage());
-		} finally {
-			if (closeNeeded && httpclient != null) {
-				try {
-					if (response != null) {
-						try {
-							response.close();
-						} catch (Exception e) {
-							// Ignore it
-						}
-					}
-					httpclient.close();
-				} catch (IOException e) {
-					// Ignore it
-				}
-			}
-		}
+		return getDataStream(uri, offset);
 
 	}
 
@@ -495,37 +1145,7 @@ public class IdsClient {
 		}
 
 		URI uri = getUri(uriBuilder);
-		CloseableHttpResponse response = null;
-		CloseableHttpClient httpclient = null;
-		HttpGet httpGet = new HttpGet(uri);
-		if (offset != 0) {
-			httpGet.setHeader("Range", "bytes=" + offset + "-");
-		}
-		boolean closeNeeded = true;
-		try {
-			httpclient = HttpClients.createDefault();
-			response = httpclient.execute(httpGet);
-			checkStatus(response);
-			closeNeeded = false;
-			return new HttpInputStream(httpclient, response);
-		} catch (IOException | InsufficientStorageException e) {
-			throw new InternalException(e.getClass() + " " + e.getMessage());
-		} finally {
-			if (closeNeeded && httpclient != null) {
-				try {
-					if (response != null) {
-						try {
-							response.close();
-						} catch (Exception e) {
-							// Ignore it
-						}
-					}
-					httpclient.close();
-				} catch (IOException e) {
-					// Ignore it
-				}
-			}
-		}
+		return getDataStream(uri, offset);
 
 	}
 
@@ -570,37 +1190,7 @@ public class IdsClient {
 		}
 		URI uri = getUri(uriBuilder);
 
-		CloseableHttpResponse response = null;
-		CloseableHttpClient httpclient = null;
-		HttpGet httpGet = new HttpGet(uri);
-		if (offset != 0) {
-			httpGet.setHeader("Range", "bytes=" + offset + "-");
-		}
-		boolean closeNeeded = true;
-		try {
-			httpclient = HttpClients.createDefault();
-			response = httpclient.execute(httpGet);
-			checkStatus(response);
-			closeNeeded = false;
-			return new HttpInputStream(httpclient, response);
-		} catch (IOException | InsufficientStorageException e) {
-			throw new InternalException(e.getClass() + " " + e.getMessage());
-		} finally {
-			if (closeNeeded && httpclient != null) {
-				try {
-					if (response != null) {
-						try {
-							response.close();
-						} catch (Exception e) {
-							// Ignore it
-						}
-					}
-					httpclient.close();
-				} catch (IOException e) {
-					// Ignore it
-				}
-			}
-		}
+		return getDataStream(uri, offset);
 	}
 
 	/**
@@ -635,62 +1225,14 @@ public class IdsClient {
 
 		URI uri = getUri(uriBuilder);
 
-		CloseableHttpResponse response = null;
-		CloseableHttpClient httpclient = null;
-		HttpGet httpGet = new HttpGet(uri);
-		if (offset != 0) {
-			httpGet.setHeader("Range", "bytes=" + offset + "-");
-		}
-		boolean closeNeeded = true;
-		try {
-			httpclient = HttpClients.createDefault();
-			response = httpclient.execute(httpGet);
-			checkStatus(response);
-			closeNeeded = false;
-			return new HttpInputStream(httpclient, response);
-		} catch (IOException | InsufficientStorageException e) {
-			throw new InternalException(e.getClass() + " " + e.getMessage());
-		} finally {
-			if (closeNeeded && httpclient != null) {
-				try {
-					if (response != null) {
-						try {
-							response.close();
-						} catch (Exception e) {
-							// Ignore it
-						}
-					}
-					httpclient.close();
-				} catch (IOException e) {
-					// Ignore it
-				}
-			}
-		}
-	}
-
-	private URL getDataUrl(Map<String, String> parameters) {
-		try {
-			URL url = new URL(idsUrl, "getData");
-			StringBuilder sb = new StringBuilder();
-			for (Entry<String, String> e : parameters.entrySet()) {
-				if (sb.length() != 0) {
-					sb.append("&");
-				}
-				sb.append(e.getKey() + "=" + URLEncoder.encode(e.getValue(), "UTF-8"));
-			}
-			url = new URL(url + "?" + sb.toString());
-			if (url.toString().length() > 2048) {
-				throw new BadRequestException(
-						"Generated URL is of length " + url.toString().length() + " which exceeds 2048");
-			}
-			return url;
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return getDataStream(uri, offset);
 	}
 
 	/**
-	 * Get the URL to retrieve the data specified by the dataSelection.
+	 * Get the data specified by the dataSelection and write them to a file.
+	 * The data are copied through large pooled direct buffers so that the
+	 * file is written with few system calls and no buffers are allocated for
+	 * the transfer.
 	 * 
 	 * @param sessionId
 	 *            A valid ICAT session ID
@@ -698,139 +1240,743 @@ public class IdsClient {
 	 *            A data selection object that must not be empty
 	 * @param flags
 	 *            To select packing options
-	 * @param outname
-	 *            The name of the file. If it is in .zip format the .zip
-	 *            extension will be added if not present.
+	 * @param target
+	 *            the file to write. It will be created or overwritten.
 	 * 
-	 * @return the URL to allow the data to be read
+	 * @return the number of bytes written
+	 * 
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if some part of the data is not known to ICAT.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur, including failure
+	 *             to write the data.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
 	 */
-	public URL getDataUrl(String sessionId, DataSelection dataSelection, Flag flags, String outname) {
-		Map<String, String> parameters = new HashMap<>();
-		parameters.put("sessionId", sessionId);
-		parameters.putAll(dataSelection.getParameters());
-		if (flags == Flag.ZIP || flags == Flag.ZIP_AND_COMPRESS) {
-			parameters.put("zip", "true");
-		}
-		if (flags == Flag.COMPRESS || flags == Flag.ZIP_AND_COMPRESS) {
-			parameters.put("compress", "true");
-		}
-		if (outname != null) {
-			parameters.put("outname", outname);
+	public long getData(String sessionId, DataSelection dataSelection, Flag flags, Path target)
+			throws NotImplementedException, BadRequestException,
+			InsufficientPrivilegesException, NotFoundException, InternalException, DataNotOnlineException {
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			return getData(sessionId, dataSelection, flags, channel);
+		} catch (IOException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
-		return getDataUrl(parameters);
 	}
 
 	/**
-	 * Get the URL to retrieve the data specified by the preparedId returned by
-	 * a call to prepareData
+	 * Get the data specified by the dataSelection and write them to a channel,
+	 * such as a FileChannel, which is left open. The data are copied through
+	 * large pooled direct buffers.
 	 * 
-	 * @param preparedId
-	 *            A valid preparedId returned by a call to prepareData
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 * @param flags
+	 *            To select packing options
+	 * @param target
+	 *            the channel to which the data are written
 	 * 
-	 * @param outname
-	 *            The name of the file. If it is in .zip format the .zip
-	 *            extension will be added if not present.
+	 * @return the number of bytes written
 	 * 
-	 * @return the URL to allow the data to be read
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if some part of the data is not known to ICAT.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur, including failure
+	 *             to write the data.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
 	 */
-	public URL getDataUrl(String preparedId, String outname) {
-		Map<String, String> parameters = new HashMap<>();
-		parameters.put("preparedId", preparedId);
-		if (outname != null) {
-			parameters.put("outname", outname);
+	public long getData(String sessionId, DataSelection dataSelection, Flag flags, WritableByteChannel target)
+			throws NotImplementedException, BadRequestException,
+			InsufficientPrivilegesException, NotFoundException, InternalException, DataNotOnlineException {
+		try (InputStream in = getData(sessionId, dataSelection, flags, 0L)) {
+			return bufferPool.transfer(in, target);
+		} catch (IOException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
-		return getDataUrl(parameters);
 	}
 
 	/**
-	 * Return the URL of the ICAT to which the IDS authorizes operations on the
-	 * basis of a sessionId
+	 * Get the data using the preparedId returned by a call to prepareData and
+	 * write them to a file, as for the call taking a dataSelection.
 	 * 
-	 * @return the requested URL
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * @param target
+	 *            the file to write. It will be created or overwritten.
+	 * 
+	 * @return the number of bytes written
 	 * 
-	 * @throws InternalException
-	 *             if some unexpected problem should occur.
 	 * @throws NotImplementedException
 	 *             if the operation has not been implemented.
 	 * @throws BadRequestException
 	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if the preparedId is not recognised.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur, including failure
+	 *             to write the data.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
 	 */
-	public URL getIcatUrl() throws InternalException, NotImplementedException, BadRequestException {
-		URI uri = getUri(getUriBuilder("getIcatUrl"));
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpGet httpGet = new HttpGet(uri);
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				return new URL(getString(response));
-			} catch (IOException | InsufficientStorageException | DataNotOnlineException | BadRequestException
-					| InsufficientPrivilegesException | NotFoundException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
+	public long getData(String preparedId, Path target) throws NotImplementedException, BadRequestException,
+			InsufficientPrivilegesException, NotFoundException, InternalException, DataNotOnlineException {
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			return getData(preparedId, channel);
 		} catch (IOException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
 
 	/**
-	 * Return a hard link to a data file.
-	 * 
-	 * This is only useful in those cases where the user has direct access to
-	 * the file system where the IDS is storing data. The caller is only granted
-	 * read access to the file.
+	 * Get the data using the preparedId returned by a call to prepareData and
+	 * write them to a channel, which is left open, as for the call taking a
+	 * dataSelection.
 	 * 
-	 * @param sessionId
-	 *            A valid ICAT session ID
-	 * @param datafileId
-	 *            the id of a data file
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * @param target
+	 *            the channel to which the data are written
 	 * 
-	 * @return the path of the created link.
+	 * @return the number of bytes written
 	 * 
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
 	 * @throws BadRequestException
 	 *             if an argument is invalid.
 	 * @throws InsufficientPrivilegesException
 	 *             if your are not authorized to perform the operation.
-	 * @throws InternalException
-	 *             if some unexpected problem should occur.
 	 * @throws NotFoundException
-	 *             if the data file is not known to ICAT.
+	 *             if the preparedId is not recognised.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur, including failure
+	 *             to write the data.
 	 * @throws DataNotOnlineException
-	 *             if the data file is not online.
-	 * @throws NotImplementedException
-	 *             if the operation has not been implemented or if the user does
-	 *             not have direct access to the file system where the IDS is
-	 *             storing data.
+	 *             if some of the data are not online.
 	 */
-	public Path getLink(String sessionId, long datafileId) throws BadRequestException, InsufficientPrivilegesException,
-			InternalException, NotFoundException, DataNotOnlineException, NotImplementedException {
-		URI uri = getUri(getUriBuilder("getLink"));
-		List<NameValuePair> formparams = new ArrayList<>();
-		formparams.add(new BasicNameValuePair("sessionId", sessionId));
-		formparams.add(new BasicNameValuePair("datafileId", Long.toString(datafileId)));
-		formparams.add(new BasicNameValuePair("username", System.getProperty("user.name")));
-
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpPost httpPost = new HttpPost(uri);
-			httpPost.setEntity(new UrlEncodedFormEntity(formparams));
-			try (CloseableHttpResponse response = httpclient.execute(httpPost)) {
-				return Paths.get(getString(response));
-			} catch (InsufficientStorageException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
+	public long getData(String preparedId, WritableByteChannel target)
+			throws NotImplementedException, BadRequestException, InsufficientPrivilegesException, NotFoundException,
+			InternalException, DataNotOnlineException {
+		try (InputStream in = getData(preparedId, 0L)) {
+			return bufferPool.transfer(in, target);
 		} catch (IOException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
 
 	/**
-	 * Return a ServiceStatus object to understand what the IDS is doing.
-	 * 
-	 * To use this call, the user represented by the sessionId must be in the
-	 * set of rootUserNames defined in the IDS configuration.
+	 * Get the data specified by the dataSelection as a channel. The data are
+	 * read in large chunks, straight into the buffer passed to read if it has
+	 * an array and otherwise through a pooled one.
 	 * 
 	 * @param sessionId
-	 *            A valid ICAT session ID of a user in the IDS rootUserNames
-	 *            set.
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 * @param flags
+	 *            To select packing options
+	 * @param offset
+	 *            Skip this number of bytes in the returned channel
 	 * 
-	 * @return a ServiceStatus object
+	 * @return a channel from which the data may be read. Please remember to
+	 *         close the channel when you have finished with it.
+	 * 
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if some part of the data is not known to ICAT.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
+	 */
+	public ReadableByteChannel getDataChannel(String sessionId, DataSelection dataSelection, Flag flags,
+			long offset) throws NotImplementedException, BadRequestException,
+			InsufficientPrivilegesException, NotFoundException, InternalException, DataNotOnlineException {
+		return bufferPool.newChannel(getData(sessionId, dataSelection, flags, offset));
+	}
+
+	/**
+	 * Get the data using the preparedId returned by a call to prepareData as a
+	 * channel. The data are read in large chunks, straight into the buffer
+	 * passed to read if it has an array and otherwise through a pooled one.
+	 * 
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * @param offset
+	 *            Skip this number of bytes in the returned channel
+	 * 
+	 * @return a channel from which the data may be read. Please remember to
+	 *         close the channel when you have finished with it.
+	 * 
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if the preparedId is not recognised.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
+	 */
+	public ReadableByteChannel getDataChannel(String preparedId, long offset)
+			throws NotImplementedException, BadRequestException, InsufficientPrivilegesException, NotFoundException,
+			InternalException, DataNotOnlineException {
+		return bufferPool.newChannel(getData(preparedId, offset));
+	}
+
+	/**
+	 * Get the data specified by the dataSelection as a zip and unpack it into
+	 * a directory as it arrives, without storing the zip itself.
+	 * 
+	 * The zip is decoded as it is read from the connection and the data are
+	 * handed to a pool of writer threads so that slow storage does not stall
+	 * the transfer. Entries which would be written outside the targetDir are
+	 * rejected. Existing files of the same name are overwritten.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 * @param flags
+	 *            To select packing options. The data are always requested as
+	 *            a zip so this only determines whether they are compressed.
+	 * @param targetDir
+	 *            the directory in which to write the files. It is created if
+	 *            necessary.
+	 * @param writers
+	 *            the number of threads writing files
+	 * @param listener
+	 *            to be informed as each file is written, or null
+	 * 
+	 * @return the number of bytes written
+	 * 
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if some part of the data is not known to ICAT.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur, including failure
+	 *             to write a file or an entry with an unacceptable name.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
+	 */
+	public long getDataAndExtract(String sessionId, DataSelection dataSelection, Flag flags, Path targetDir,
+			int writers, ExtractListener listener) throws NotImplementedException, BadRequestException,
+			InsufficientPrivilegesException, NotFoundException, InternalException, DataNotOnlineException {
+		URIBuilder uriBuilder = getUriBuilder("getData");
+		uriBuilder.setParameter("sessionId", sessionId);
+		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
+			uriBuilder.setParameter(entry.getKey(), entry.getValue());
+		}
+		uriBuilder.setParameter("zip", "true");
+		if (flags == Flag.COMPRESS || flags == Flag.ZIP_AND_COMPRESS) {
+			uriBuilder.setParameter("compress", "true");
+		}
+
+		URI uri = getUri(uriBuilder);
+		ZipExtraction extraction = new ZipExtraction(targetDir, writers, listener);
+		return extraction.run(getDataStream(uri, 0));
+	}
+
+	/**
+	 * Get the data using the preparedId returned by a call to prepareData and
+	 * unpack them into a directory as they arrive, as for the call taking a
+	 * dataSelection. The prepareData call must have requested a zip.
+	 * 
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * @param targetDir
+	 *            the directory in which to write the files. It is created if
+	 *            necessary.
+	 * @param writers
+	 *            the number of threads writing files
+	 * @param listener
+	 *            to be informed as each file is written, or null
+	 * 
+	 * @return the number of bytes written
+	 * 
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if the preparedId is not recognised.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur, including data
+	 *             which are not a zip, failure to write a file or an entry
+	 *             with an unacceptable name.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
+	 */
+	public long getDataAndExtract(String preparedId, Path targetDir, int writers, ExtractListener listener)
+			throws NotImplementedException, BadRequestException, InsufficientPrivilegesException, NotFoundException,
+			InternalException, DataNotOnlineException {
+		URIBuilder uriBuilder = getUriBuilder("getData");
+		uriBuilder.setParameter("preparedId", preparedId);
+
+		URI uri = getUri(uriBuilder);
+		ZipExtraction extraction = new ZipExtraction(targetDir, writers, listener);
+		return extraction.run(getDataStream(uri, 0));
+	}
+
+	/**
+	 * Get the data specified by the dataSelection and write it to a file,
+	 * fetching byte ranges of the data over several connections at once. This
+	 * can give much higher throughput than a single stream over links with a
+	 * high latency.
+	 * 
+	 * If the server does not report the length of the data, as is the case
+	 * when the data are zipped, they are read over a single connection, which
+	 * is resumed if it fails. The file is otherwise extended to its full
+	 * length before any data are written, but sparsely, so that a lack of
+	 * space may only be found part way through the download.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 * @param flags
+	 *            To select packing options
+	 * @param target
+	 *            the file to write. It will be created or overwritten.
+	 * @param streams
+	 *            the number of concurrent connections to use. This should not
+	 *            exceed the maximum number of connections per route of this
+	 *            client.
+	 * 
+	 * @return the number of bytes written
+	 * 
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if some part of the data is not known to ICAT.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur, including failure
+	 *             to write the file.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
+	 */
+	public long getDataInParallel(String sessionId, DataSelection dataSelection, Flag flags, Path target,
+			int streams) throws NotImplementedException, BadRequestException, InsufficientPrivilegesException,
+			NotFoundException, InternalException, DataNotOnlineException {
+		URIBuilder uriBuilder = getUriBuilder("getData");
+		uriBuilder.setParameter("sessionId", sessionId);
+		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
+			uriBuilder.setParameter(entry.getKey(), entry.getValue());
+		}
+
+		if (flags == Flag.ZIP || flags == Flag.ZIP_AND_COMPRESS) {
+			uriBuilder.setParameter("zip", "true");
+		}
+		if (flags == Flag.COMPRESS || flags == Flag.ZIP_AND_COMPRESS) {
+			uriBuilder.setParameter("compress", "true");
+		}
+
+		URI uri = getUri(uriBuilder);
+		return new ParallelDownload(this, uri, target, streams).run();
+	}
+
+	/**
+	 * Get the data using the preparedId returned by a call to prepareData and
+	 * write it to a file, fetching byte ranges of the data over several
+	 * connections at once. This can give much higher throughput than a single
+	 * stream over links with a high latency.
+	 * 
+	 * If the server does not report the length of the data, as is the case
+	 * when the data are zipped, they are read over a single connection, which
+	 * is resumed if it fails. The file is otherwise extended to its full
+	 * length before any data are written, but sparsely, so that a lack of
+	 * space may only be found part way through the download.
+	 * 
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * @param target
+	 *            the file to write. It will be created or overwritten.
+	 * @param streams
+	 *            the number of concurrent connections to use. This should not
+	 *            exceed the maximum number of connections per route of this
+	 *            client.
+	 * 
+	 * @return the number of bytes written
+	 * 
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if the preparedId is not recognised.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur, including failure
+	 *             to write the file.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
+	 */
+	public long getDataInParallel(String preparedId, Path target, int streams) throws NotImplementedException,
+			BadRequestException, InsufficientPrivilegesException, NotFoundException, InternalException,
+			DataNotOnlineException {
+		URIBuilder uriBuilder = getUriBuilder("getData");
+		uriBuilder.setParameter("preparedId", preparedId);
+
+		URI uri = getUri(uriBuilder);
+		return new ParallelDownload(this, uri, target, streams).run();
+	}
+
+	/**
+	 * Get the data specified by the dataSelection and write it to a file,
+	 * resuming automatically if the connection fails.
+	 * 
+	 * Progress is recorded in a checkpoint file next to the target, with
+	 * ".idsresume" appended to its name. If the call is repeated for the same
+	 * data and target, for example after a restart of the process, the
+	 * transfer continues from the recorded offset rather than starting again.
+	 * Resuming relies on the server returning exactly the same bytes for the
+	 * same request so where possible use a preparedId instead.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 * @param flags
+	 *            To select packing options
+	 * @param target
+	 *            the file to write.
+	 * @param maxRetries
+	 *            the maximum number of consecutive failed attempts to resume
+	 *            without any further data being received. Successive
+	 *            attempts are made with an exponentially increasing delay.
+	 * 
+	 * @return the number of bytes in the file
+	 * 
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if some part of the data is not known to ICAT.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur or the retries are
+	 *             exhausted.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
+	 */
+	public long getDataResumable(String sessionId, DataSelection dataSelection, Flag flags, Path target,
+			int maxRetries) throws NotImplementedException, BadRequestException, InsufficientPrivilegesException,
+			NotFoundException, InternalException, DataNotOnlineException {
+		URIBuilder uriBuilder = getUriBuilder("getData");
+		uriBuilder.setParameter("sessionId", sessionId);
+		Map<String, String> key = new TreeMap<>(dataSelection.getParameters());
+		for (Entry<String, String> entry : key.entrySet()) {
+			uriBuilder.setParameter(entry.getKey(), entry.getValue());
+		}
+
+		if (flags == Flag.ZIP || flags == Flag.ZIP_AND_COMPRESS) {
+			uriBuilder.setParameter("zip", "true");
+			key.put("zip", "true");
+		}
+		if (flags == Flag.COMPRESS || flags == Flag.ZIP_AND_COMPRESS) {
+			uriBuilder.setParameter("compress", "true");
+			key.put("compress", "true");
+		}
+
+		URI uri = getUri(uriBuilder);
+		return new ResumableDownload(this, uri, key.toString(), target, maxRetries).run();
+	}
+
+	/**
+	 * Get the data using the preparedId returned by a call to prepareData and
+	 * write it to a file, resuming automatically if the connection fails.
+	 * 
+	 * Progress is recorded in a checkpoint file next to the target, with
+	 * ".idsresume" appended to its name. If the call is repeated for the same
+	 * preparedId and target, for example after a restart of the process, the
+	 * transfer continues from the recorded offset rather than starting again.
+	 * 
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * @param target
+	 *            the file to write.
+	 * @param maxRetries
+	 *            the maximum number of consecutive failed attempts to resume
+	 *            without any further data being received. Successive
+	 *            attempts are made with an exponentially increasing delay.
+	 * 
+	 * @return the number of bytes in the file
+	 * 
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if the preparedId is not recognised.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur or the retries are
+	 *             exhausted.
+	 * @throws DataNotOnlineException
+	 *             if some of the data are not online.
+	 */
+	public long getDataResumable(String preparedId, Path target, int maxRetries) throws NotImplementedException,
+			BadRequestException, InsufficientPrivilegesException, NotFoundException, InternalException,
+			DataNotOnlineException {
+		URIBuilder uriBuilder = getUriBuilder("getData");
+		uriBuilder.setParameter("preparedId", preparedId);
+
+		URI uri = getUri(uriBuilder);
+		return new ResumableDownload(this, uri, "preparedId=" + preparedId, target, maxRetries).run();
+	}
+
+	HttpInputStream getDataStream(URI uri, long offset) throws NotImplementedException, BadRequestException,
+			InsufficientPrivilegesException, NotFoundException, InternalException, DataNotOnlineException {
+		try {
+			return openDataStream(uri, offset);
+		} catch (IOException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+	}
+
+	/**
+	 * As getDataStream but leaving any IOException unwrapped so that callers
+	 * able to retry can distinguish a failure to communicate with the server
+	 * from an error reported by it.
+	 */
+	HttpInputStream openDataStream(URI uri, long offset) throws NotImplementedException, BadRequestException,
+			InsufficientPrivilegesException, NotFoundException, InternalException, DataNotOnlineException, IOException {
+		HttpGet httpGet = new HttpGet(uri);
+		if (offset != 0) {
+			httpGet.setHeader("Range", "bytes=" + offset + "-");
+		}
+		CloseableHttpResponse response = null;
+		boolean closeNeeded = true;
+		try {
+			response = execute(httpGet);
+			checkStatus(response);
+			closeNeeded = false;
+			return new HttpInputStream(response);
+		} catch (InsufficientStorageException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		} finally {
+			if (closeNeeded && response != null) {
+				try {
+					response.close();
+				} catch (IOException e) {
+					// Ignore it
+				}
+			}
+		}
+	}
+
+	private URL getDataUrl(Map<String, String> parameters) {
+		try {
+			URL url = new URL(idsUrl, "getData");
+			StringBuilder sb = new StringBuilder();
+			for (Entry<String, String> e : parameters.entrySet()) {
+				if (sb.length() != 0) {
+					sb.append("&");
+				}
+				sb.append(e.getKey() + "=" + URLEncoder.encode(e.getValue(), "UTF-8"));
+			}
+			url = new URL(url + "?" + sb.toString());
+			if (url.toString().length() > 2048) {
+				throw new BadRequestException(
+						"Generated URL is of length " + url.toString().length() + " which exceeds 2048");
+			}
+			return url;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Get the URL to retrieve the data specified by the dataSelection.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param dataSelection
+	 *            A data selection object that must not be empty
+	 * @param flags
+	 *            To select packing options
+	 * @param outname
+	 *            The name of the file. If it is in .zip format the .zip
+	 *            extension will be added if not present.
+	 * 
+	 * @return the URL to allow the data to be read
+	 */
+	public URL getDataUrl(String sessionId, DataSelection dataSelection, Flag flags, String outname) {
+		Map<String, String> parameters = new HashMap<>();
+		parameters.put("sessionId", sessionId);
+		parameters.putAll(dataSelection.getParameters());
+		if (flags == Flag.ZIP || flags == Flag.ZIP_AND_COMPRESS) {
+			parameters.put("zip", "true");
+		}
+		if (flags == Flag.COMPRESS || flags == Flag.ZIP_AND_COMPRESS) {
+			parameters.put("compress", "true");
+		}
+		if (outname != null) {
+			parameters.put("outname", outname);
+		}
+		return getDataUrl(parameters);
+	}
+
+	/**
+	 * Get the URL to retrieve the data specified by the preparedId returned by
+	 * a call to prepareData
+	 * 
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * 
+	 * @param outname
+	 *            The name of the file. If it is in .zip format the .zip
+	 *            extension will be added if not present.
+	 * 
+	 * @return the URL to allow the data to be read
+	 */
+	public URL getDataUrl(String preparedId, String outname) {
+		Map<String, String> parameters = new HashMap<>();
+		parameters.put("preparedId", preparedId);
+		if (outname != null) {
+			parameters.put("outname", outname);
+		}
+		URL url = getDataUrl(parameters);
+		return router == null ? url : router.pinnedUrl(preparedId, url);
+	}
+
+	/**
+	 * Return the URL of the ICAT to which the IDS authorizes operations on the
+	 * basis of a sessionId
+	 * 
+	 * The value is only fetched from the server on the first call and then
+	 * refreshed in the background, see setServerPropertyRefreshInterval.
+	 * 
+	 * @return the requested URL
+	 * 
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 */
+	public URL getIcatUrl() throws InternalException, NotImplementedException, BadRequestException {
+		URL value = icatUrl.get();
+		if (value == null) {
+			value = fetchIcatUrl();
+			icatUrl.set(value);
+		}
+		return value;
+	}
+
+	private URL fetchIcatUrl() throws InternalException, NotImplementedException, BadRequestException {
+		URI uri = getUri(getUriBuilder("getIcatUrl"));
+		HttpGet httpGet = new HttpGet(uri);
+		try (CloseableHttpResponse response = execute(httpGet)) {
+			return new URL(getString(response));
+		} catch (IOException | InsufficientStorageException | DataNotOnlineException | BadRequestException
+				| InsufficientPrivilegesException | NotFoundException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Return a hard link to a data file.
+	 * 
+	 * This is only useful in those cases where the user has direct access to
+	 * the file system where the IDS is storing data. The caller is only granted
+	 * read access to the file.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param datafileId
+	 *            the id of a data file
+	 * 
+	 * @return the path of the created link.
+	 * 
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 * @throws NotFoundException
+	 *             if the data file is not known to ICAT.
+	 * @throws DataNotOnlineException
+	 *             if the data file is not online.
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented or if the user does
+	 *             not have direct access to the file system where the IDS is
+	 *             storing data.
+	 */
+	public Path getLink(String sessionId, long datafileId) throws BadRequestException, InsufficientPrivilegesException,
+			InternalException, NotFoundException, DataNotOnlineException, NotImplementedException {
+		URI uri = getUri(getUriBuilder("getLink"));
+		List<NameValuePair> formparams = new ArrayList<>();
+		formparams.add(new BasicNameValuePair("sessionId", sessionId));
+		formparams.add(new BasicNameValuePair("datafileId", Long.toString(datafileId)));
+		formparams.add(new BasicNameValuePair("username", System.getProperty("user.name")));
+
+		try {
+			HttpPost httpPost = new HttpPost(uri);
+			httpPost.setEntity(new UrlEncodedFormEntity(formparams));
+			try (CloseableHttpResponse response = execute(httpPost)) {
+				return Paths.get(getString(response));
+			} catch (InsufficientStorageException e) {
+				throw new InternalException(e.getClass() + " " + e.getMessage());
+			}
+		} catch (IOException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Return a ServiceStatus object to understand what the IDS is doing.
+	 * 
+	 * To use this call, the user represented by the sessionId must be in the
+	 * set of rootUserNames defined in the IDS configuration.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID of a user in the IDS rootUserNames
+	 *            set.
+	 * 
+	 * @return a ServiceStatus object
 	 * 
 	 * @throws InternalException
 	 *             if some unexpected problem should occur.
@@ -850,34 +1996,12 @@ public class IdsClient {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpGet httpGet = new HttpGet(uri);
-
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				String result = getString(response);
-				try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
-					ServiceStatus serviceStatus = new ServiceStatus();
-					JsonObject rootNode = jsonReader.readObject();
-					for (JsonValue on : rootNode.getJsonArray("opsQueue")) {
-						String dsInfo = ((JsonObject) on).getString("data");
-						String request = ((JsonObject) on).getString("request");
-						serviceStatus.storeOpItems(dsInfo, request);
-					}
-					serviceStatus.setLockedCount(rootNode.getInt("lockCount"));
-					for (JsonValue num : rootNode.getJsonArray("lockedIds")) {
-						Long dsId = ((JsonNumber) num).longValueExact();
-						serviceStatus.storeLockedDs(dsId);
-					}
-					return serviceStatus;
-				} catch (JsonException e) {
-					throw new InternalException(e.getClass() + " " + e.getMessage() + " from " + result);
-				}
+		HttpGet httpGet = new HttpGet(uri);
 
-			} catch (InsufficientStorageException | DataNotOnlineException | InternalException | BadRequestException
-					| NotFoundException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
-		} catch (IOException e) {
+		try (CloseableHttpResponse response = execute(httpGet)) {
+			return parseServiceStatus(getString(response));
+		} catch (IOException | InsufficientStorageException | DataNotOnlineException | InternalException
+				| BadRequestException | NotFoundException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
@@ -906,22 +2030,49 @@ public class IdsClient {
 	 */
 	public long getSize(String sessionId, DataSelection dataSelection) throws BadRequestException, NotFoundException,
 			InsufficientPrivilegesException, InternalException, NotImplementedException {
+		ResultCache cache = resultCache;
+		if (cache == null) {
+			return share("getSize", sessionId, dataSelection, () -> fetchSize(sessionId, dataSelection));
+		}
+		String key = getCacheKey(sessionId, dataSelection);
+		Long size = (Long) cache.get("getSize", key);
+		if (size == null) {
+			long generation = cache.getGeneration();
+			size = share("getSize", sessionId, dataSelection, () -> fetchSize(sessionId, dataSelection));
+			cache.put("getSize", key, size, sizeTtlMillis, dataSelection.getIdCount(), generation);
+		}
+		return size;
+	}
 
+	private long fetchSize(String sessionId, DataSelection dataSelection) throws BadRequestException,
+			NotFoundException, InsufficientPrivilegesException, InternalException, NotImplementedException {
 		URIBuilder uriBuilder = getUriBuilder("getSize");
 		uriBuilder.setParameter("sessionId", sessionId);
+		List<List<DataSelection>> groups = split(uriBuilder, dataSelection);
+		if (groups != null) {
+			/*
+			 * The IDS sizes each type of id separately and adds them up, so
+			 * summing the chunks gives the same answer as a single request
+			 */
+			try {
+				long size = 0;
+				for (long chunkSize : invokeAll(groups, chunk -> fetchSize(sessionId, chunk))) {
+					size += chunkSize;
+				}
+				return size;
+			} catch (InsufficientStorageException | DataNotOnlineException e) {
+				throw new InternalException(e.getClass() + " " + e.getMessage());
+			}
+		}
 		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
 			uriBuilder.setParameter(entry.getKey(), entry.getValue());
 		}
 		URI uri = getUri(uriBuilder);
 
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpGet httpGet = new HttpGet(uri);
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				return Long.parseLong(getString(response));
-			} catch (IOException | InsufficientStorageException | DataNotOnlineException | NumberFormatException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
-		} catch (IOException e) {
+		HttpGet httpGet = new HttpGet(uri);
+		try (CloseableHttpResponse response = execute(httpGet)) {
+			return Long.parseLong(getString(response));
+		} catch (IOException | InsufficientStorageException | DataNotOnlineException | NumberFormatException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
@@ -950,29 +2101,91 @@ public class IdsClient {
 	 */
 	public Status getStatus(String sessionId, DataSelection dataSelection) throws BadRequestException,
 			NotFoundException, InsufficientPrivilegesException, InternalException, NotImplementedException {
+		ResultCache cache = resultCache;
+		if (cache == null) {
+			return share("getStatus", sessionId, dataSelection, () -> fetchStatus(sessionId, dataSelection));
+		}
+		String key = getCacheKey(sessionId, dataSelection);
+		Status status = (Status) cache.get("getStatus", key);
+		if (status == null) {
+			long generation = cache.getGeneration();
+			status = share("getStatus", sessionId, dataSelection, () -> fetchStatus(sessionId, dataSelection));
+			Long ttl = statusTtlMillis.get(status);
+			cache.put("getStatus", key, status, ttl == null ? 0 : ttl, dataSelection.getIdCount(), generation);
+		}
+		return status;
+	}
+
+	private Status fetchStatus(String sessionId, DataSelection dataSelection) throws BadRequestException,
+			NotFoundException, InsufficientPrivilegesException, InternalException, NotImplementedException {
 		URIBuilder uriBuilder = getUriBuilder("getStatus");
 		if (sessionId != null) {
 			uriBuilder.setParameter("sessionId", sessionId);
 		}
+		List<List<DataSelection>> groups = split(uriBuilder, dataSelection);
+		if (groups != null) {
+			try {
+				Status status = Status.ONLINE;
+				for (Status chunkStatus : invokeAll(groups, chunk -> fetchStatus(sessionId, chunk))) {
+					if (chunkStatus == Status.ARCHIVED || chunkStatus == Status.RESTORING && status == Status.ONLINE) {
+						status = chunkStatus;
+					}
+				}
+				return status;
+			} catch (InsufficientStorageException | DataNotOnlineException e) {
+				throw new InternalException(e.getClass() + " " + e.getMessage());
+			}
+		}
 		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
 			uriBuilder.addParameter(entry.getKey(), entry.getValue());
 		}
 		URI uri = getUri(uriBuilder);
 
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpGet httpGet = new HttpGet(uri);
+		HttpGet httpGet = new HttpGet(uri);
 
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				return Status.valueOf(getString(response));
-			} catch (InsufficientStorageException | DataNotOnlineException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
-		} catch (IOException e) {
+		try (CloseableHttpResponse response = execute(httpGet)) {
+			return Status.valueOf(getString(response));
+		} catch (IOException | InsufficientStorageException | DataNotOnlineException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
 
-	private String getString(CloseableHttpResponse response)
+	static ServiceStatus parseServiceStatus(String result) throws InternalException {
+		try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
+			ServiceStatus serviceStatus = new ServiceStatus();
+			JsonObject rootNode = jsonReader.readObject();
+			for (JsonValue on : rootNode.getJsonArray("opsQueue")) {
+				String dsInfo = ((JsonObject) on).getString("data");
+				String request = ((JsonObject) on).getString("request");
+				serviceStatus.storeOpItems(dsInfo, request);
+			}
+			serviceStatus.setLockedCount(rootNode.getInt("lockCount"));
+			for (JsonValue num : rootNode.getJsonArray("lockedIds")) {
+				Long dsId = ((JsonNumber) num).longValueExact();
+				serviceStatus.storeLockedDs(dsId);
+			}
+			return serviceStatus;
+		} catch (JsonException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage() + " from " + result);
+		}
+	}
+
+	static List<Long> parseIds(String result) throws InternalException {
+		try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
+
+			JsonObject rootNode = jsonReader.readObject();
+			List<Long> ids = new ArrayList<>();
+			for (JsonValue num : rootNode.getJsonArray("ids")) {
+				Long id = ((JsonNumber) num).longValueExact();
+				ids.add(id);
+			}
+			return ids;
+		} catch (JsonException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage() + " from " + result);
+		}
+	}
+
+	static String getString(HttpResponse response)
 			throws InternalException, BadRequestException, DataNotOnlineException, InsufficientPrivilegesException,
 			NotImplementedException, InsufficientStorageException, NotFoundException, IOException {
 		checkStatus(response);
@@ -983,12 +2196,115 @@ public class IdsClient {
 		return EntityUtils.toString(entity);
 	}
 
-	private URI getUri(URIBuilder uriBuilder) throws InternalException, BadRequestException {
+	/**
+	 * Apply a call to each chunk of a split data selection, running the calls
+	 * concurrently over the pooled connections, and return the results in
+	 * order. The first exception thrown by a call is rethrown and the other
+	 * calls are cancelled. If this is already running on behalf of another
+	 * invokeAll the calls are made one after the other instead so that the
+	 * worker threads cannot all end up waiting for each other.
+	 */
+	private <T> List<T> invokeAll(List<List<DataSelection>> groups, final ChunkCall<T> chunkCall)
+			throws NotImplementedException, BadRequestException, InsufficientPrivilegesException, NotFoundException,
+			InternalException, DataNotOnlineException, InsufficientStorageException {
+		List<T> results = new ArrayList<>();
+		if (inTask.get() != null) {
+			for (List<DataSelection> group : groups) {
+				for (DataSelection chunk : group) {
+					try {
+						results.add(chunkCall.call(chunk));
+					} catch (IdsException e) {
+						rethrow(e);
+					}
+				}
+			}
+			return results;
+		}
+		List<Future<T>> futures = new ArrayList<>();
+		try {
+			for (List<DataSelection> group : groups) {
+				for (final DataSelection chunk : group) {
+					futures.add(executor.submit(() -> {
+						inTask.set(true);
+						try {
+							return chunkCall.call(chunk);
+						} finally {
+							inTask.remove();
+						}
+					}));
+				}
+			}
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (ExecutionException e) {
+			rethrow(e.getCause());
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalException("Interrupted while waiting for results");
+		} finally {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Throw the cause of the failure of a task as the IdsException it is, or
+	 * as an InternalException if it is something else.
+	 */
+	static void rethrow(Throwable cause) throws NotImplementedException, BadRequestException,
+			InsufficientPrivilegesException, NotFoundException, InternalException, DataNotOnlineException,
+			InsufficientStorageException {
+		if (cause instanceof NotImplementedException) {
+			throw (NotImplementedException) cause;
+		} else if (cause instanceof BadRequestException) {
+			throw (BadRequestException) cause;
+		} else if (cause instanceof InsufficientPrivilegesException) {
+			throw (InsufficientPrivilegesException) cause;
+		} else if (cause instanceof NotFoundException) {
+			throw (NotFoundException) cause;
+		} else if (cause instanceof InternalException) {
+			throw (InternalException) cause;
+		} else if (cause instanceof DataNotOnlineException) {
+			throw (DataNotOnlineException) cause;
+		} else if (cause instanceof InsufficientStorageException) {
+			throw (InsufficientStorageException) cause;
+		}
+		throw new InternalException(cause.getClass() + " " + cause.getMessage());
+	}
+
+	/**
+	 * Return null if the parameters of the dataSelection can be added to the
+	 * uriBuilder without exceeding the maximum length of a URI. Otherwise
+	 * return the dataSelection split into groups of chunks which can each be
+	 * added.
+	 */
+	private List<List<DataSelection>> split(URIBuilder uriBuilder, DataSelection dataSelection)
+			throws InternalException {
+		try {
+			URI base = uriBuilder.build();
+			URIBuilder full = new URIBuilder(base);
+			for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
+				full.addParameter(entry.getKey(), entry.getValue());
+			}
+			if (full.build().toString().length() <= MAX_URI_LENGTH) {
+				return null;
+			}
+			return dataSelection.split(MAX_URI_LENGTH - base.toString().length());
+		} catch (URISyntaxException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+	}
+
+	static URI getUri(URIBuilder uriBuilder) throws InternalException, BadRequestException {
 		try {
 			URI uri = uriBuilder.build();
-			if (uri.toString().length() > 2048) {
-				throw new BadRequestException(
-						"Generated URI is of length " + uri.toString().length() + " which exceeds 2048");
+			if (uri.toString().length() > MAX_URI_LENGTH) {
+				throw new BadRequestException("Generated URI is of length " + uri.toString().length()
+						+ " which exceeds " + MAX_URI_LENGTH);
 			}
 			return uri;
 		} catch (URISyntaxException e) {
@@ -996,6 +2312,30 @@ public class IdsClient {
 		}
 	}
 
+	private CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+		RetryPolicy policy = retryPolicy;
+		if (policy == null) {
+			return hedge(request);
+		}
+		return policy.execute(request, this::hedge);
+	}
+
+	private CloseableHttpResponse hedge(HttpUriRequest request) throws IOException {
+		Hedger h = hedger;
+		if (h == null) {
+			return send(request);
+		}
+		return h.execute(request, this::send);
+	}
+
+	private CloseableHttpResponse send(HttpUriRequest request) throws IOException {
+		Metering m = metering;
+		if (m == null) {
+			return transport.execute(request);
+		}
+		return m.execute(transport, request);
+	}
+
 	private URIBuilder getUriBuilder(String path) {
 		return new URIBuilder(idsUri).setPath(basePath + path);
 
@@ -1025,22 +2365,48 @@ public class IdsClient {
 		uriBuilder.setParameter("preparedId", preparedId);
 		URI uri = getUri(uriBuilder);
 
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpGet httpGet = new HttpGet(uri);
+		HttpGet httpGet = new HttpGet(uri);
 
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				return Boolean.parseBoolean(getString(response));
-			} catch (InsufficientStorageException | DataNotOnlineException | InsufficientPrivilegesException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
-		} catch (IOException e) {
+		try (CloseableHttpResponse response = execute(httpGet)) {
+			return Boolean.parseBoolean(getString(response));
+		} catch (IOException | InsufficientStorageException | DataNotOnlineException
+				| InsufficientPrivilegesException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
 
+	/**
+	 * Wait without blocking for the data associated with the preparedId to be
+	 * ready.
+	 * 
+	 * <p>
+	 * All the preparedIds being waited for by this client are polled by one
+	 * scheduler which backs off exponentially from an initial interval of half
+	 * a second to a maximum of one minute, and which makes no more than half
+	 * as many calls at once as the maximum number of connections per route.
+	 * Waiting for a preparedId which is already being waited for shares its
+	 * polling but returns a separate future, which may be cancelled without
+	 * affecting the others. Polling stops once all have been cancelled.
+	 * </p>
+	 * 
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * 
+	 * @return a future which completes with the preparedId once the data are
+	 *         ready, or completes exceptionally with a BadRequestException,
+	 *         NotFoundException, NotImplementedException or InternalException
+	 *         if the preparedId cannot be polled or the client is closed.
+	 */
+	public CompletableFuture<String> waitForPrepared(String preparedId) {
+		return preparedWaiter.waitFor(preparedId);
+	}
+
 	/**
 	 * Returns the readOnly status of the server
 	 * 
+	 * The value is only fetched from the server on the first call and then
+	 * refreshed in the background, see setServerPropertyRefreshInterval.
+	 * 
 	 * @return true if readonly, else false
 	 * 
 	 * @throws InternalException
@@ -1049,21 +2415,26 @@ public class IdsClient {
 	 *             if the operation has not been implemented.
 	 */
 	public boolean isReadOnly() throws InternalException, NotImplementedException {
+		Boolean value = readOnly.get();
+		if (value == null) {
+			value = fetchReadOnly();
+			readOnly.set(value);
+		}
+		return value;
+	}
+
+	private boolean fetchReadOnly() throws InternalException, NotImplementedException {
 		URI uri;
 		try {
 			uri = getUri(getUriBuilder("isReadOnly"));
 		} catch (BadRequestException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpGet httpGet = new HttpGet(uri);
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				return Boolean.parseBoolean(getString(response));
-			} catch (InsufficientStorageException | DataNotOnlineException | BadRequestException
-					| InsufficientPrivilegesException | NotFoundException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
-		} catch (IOException e) {
+		HttpGet httpGet = new HttpGet(uri);
+		try (CloseableHttpResponse response = execute(httpGet)) {
+			return Boolean.parseBoolean(getString(response));
+		} catch (IOException | InsufficientStorageException | DataNotOnlineException | BadRequestException
+				| InsufficientPrivilegesException | NotFoundException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
@@ -1071,6 +2442,9 @@ public class IdsClient {
 	/**
 	 * Returns the twoLevel status of the server
 	 * 
+	 * The value is only fetched from the server on the first call and then
+	 * refreshed in the background, see setServerPropertyRefreshInterval.
+	 * 
 	 * @return true if the server uses both main and archive storage, else false
 	 * 
 	 * @throws InternalException
@@ -1079,21 +2453,26 @@ public class IdsClient {
 	 *             if the operation has not been implemented.
 	 */
 	public boolean isTwoLevel() throws InternalException, NotImplementedException {
+		Boolean value = twoLevel.get();
+		if (value == null) {
+			value = fetchTwoLevel();
+			twoLevel.set(value);
+		}
+		return value;
+	}
+
+	private boolean fetchTwoLevel() throws InternalException, NotImplementedException {
 		URI uri;
 		try {
 			uri = getUri(getUriBuilder("isTwoLevel"));
 		} catch (BadRequestException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpGet httpGet = new HttpGet(uri);
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				return Boolean.parseBoolean(getString(response));
-			} catch (IOException | InsufficientStorageException | DataNotOnlineException | BadRequestException
-					| InsufficientPrivilegesException | NotFoundException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
-		} catch (IOException e) {
+		HttpGet httpGet = new HttpGet(uri);
+		try (CloseableHttpResponse response = execute(httpGet)) {
+			return Boolean.parseBoolean(getString(response));
+		} catch (IOException | InsufficientStorageException | DataNotOnlineException | BadRequestException
+				| InsufficientPrivilegesException | NotFoundException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
@@ -1113,19 +2492,14 @@ public class IdsClient {
 		} catch (BadRequestException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-
-			HttpGet httpGet = new HttpGet(uri);
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				String result = getString(response);
-				if (!result.equals("IdsOK")) {
-					throw new InternalException("Server gave invalid response: " + result);
-				}
-			} catch (InsufficientStorageException | DataNotOnlineException | BadRequestException
-					| InsufficientPrivilegesException | NotFoundException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
+		HttpGet httpGet = new HttpGet(uri);
+		try (CloseableHttpResponse response = execute(httpGet)) {
+			String result = getString(response);
+			if (!result.equals("IdsOK")) {
+				throw new InternalException("Server gave invalid response: " + result);
 			}
-		} catch (IOException e) {
+		} catch (IOException | InsufficientStorageException | DataNotOnlineException | BadRequestException
+				| InsufficientPrivilegesException | NotFoundException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
@@ -1142,70 +2516,264 @@ public class IdsClient {
 	 * 
 	 * @return a prepareId to be used in calls to getData and getStatus
 	 * 
-	 * @throws NotImplementedException
-	 *             if the operation has not been implemented.
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotFoundException
+	 *             if a part of the data is not known to ICAT.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 */
+	public String prepareData(String sessionId, DataSelection dataSelection, Flag flags) throws NotImplementedException,
+			BadRequestException, InsufficientPrivilegesException, NotFoundException, InternalException {
+		URI uri = getUri(getUriBuilder("prepareData"));
+		List<NameValuePair> formparams = new ArrayList<>();
+		formparams.add(new BasicNameValuePair("sessionId", sessionId));
+		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
+			formparams.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
+		}
+		if (flags == Flag.ZIP || flags == Flag.ZIP_AND_COMPRESS) {
+			formparams.add(new BasicNameValuePair("zip", "true"));
+		}
+		if (flags == Flag.COMPRESS || flags == Flag.ZIP_AND_COMPRESS) {
+			formparams.add(new BasicNameValuePair("compress", "true"));
+		}
+		try {
+			HttpEntity entity = new UrlEncodedFormEntity(formparams);
+			HttpPost httpPost = new HttpPost(uri);
+			httpPost.setEntity(entity);
+			try (CloseableHttpResponse response = execute(httpPost)) {
+				String preparedId = getString(response);
+				if (router != null) {
+					router.pin(preparedId, httpPost.getURI());
+				}
+				return preparedId;
+			} catch (InsufficientStorageException | DataNotOnlineException e) {
+				throw new InternalException(e.getClass() + " " + e.getMessage());
+			}
+		} catch (IOException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Put the data in the inputStream into a data file and catalogue it. The
+	 * client generates a checksum which is compared to that produced by the
+	 * server to detect any transmission errors.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param inputStream
+	 *            the input stream providing the data to store
+	 * @param name
+	 *            the name to associate with the data file
+	 * @param datasetId
+	 *            the id of the ICAT data set which should own the data file
+	 * @param datafileFormatId
+	 *            the id of the ICAT "DatafileForat" to be associated with the
+	 *            data file
+	 * @param description
+	 *            Free text to associate with the data file (may be null)
+	 * 
+	 * @return the ICAT id of the data file object created
+	 * 
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws NotFoundException
+	 *             if the data set with an id of datasetId is not known to ICAT.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws DataNotOnlineException
+	 *             if the data set, datasetId, is not online.
+	 * @throws InsufficientStorageException
+	 *             if there is insufficient storage space to store the file.
+	 */
+	public Long put(String sessionId, InputStream inputStream, String name, long datasetId, long datafileFormatId,
+			String description)
+					throws BadRequestException, NotFoundException, InternalException, InsufficientPrivilegesException,
+					NotImplementedException, DataNotOnlineException, InsufficientStorageException {
+		return put(sessionId, inputStream, name, datasetId, datafileFormatId, description, null, null, null);
+	}
+
+	/**
+	 * Put the data in the inputStream into a data file and catalogue it. The
+	 * client generates a checksum which is compared to that produced by the
+	 * server to detect any transmission errors.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param inputStream
+	 *            the input stream providing the data to store
+	 * @param name
+	 *            the name to associate with the data file
+	 * @param datasetId
+	 *            the id of the ICAT data set which should own the data file
+	 * @param datafileFormatId
+	 *            the id of the ICAT "DatafileFormat" to be associated with the
+	 *            data file
+	 * @param description
+	 *            Free text to associate with the data file. (may be null)
+	 * @param doi
+	 *            The Digital Object Identifier to associate with the data file.
+	 *            (may be null)
+	 * @param datafileCreateTime
+	 *            the time to record as the creation time of the data file. If
+	 *            null the current time as known to the IDS server will be
+	 *            stored.
+	 * @param datafileModTime
+	 *            the time to record as the modification time of the data file.
+	 *            If null the value of the datafileCreateTime or the current
+	 *            time as known to the IDS server if that value is also null
+	 *            will be stored.
+	 * 
+	 * @return the ICAT id of the data file object created.
+	 * 
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws NotFoundException
+	 *             if the data set with id datasetId is not known to ICAT.
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws DataNotOnlineException
+	 *             if the data set, datasetId, is not online.
+	 * @throws InsufficientStorageException
+	 *             if there is insufficient storage space to store the file.
+	 */
+	public Long put(String sessionId, InputStream inputStream, String name, long datasetId, long datafileFormatId,
+			String description, String doi, Date datafileCreateTime, Date datafileModTime)
+					throws BadRequestException, NotFoundException, InternalException, InsufficientPrivilegesException,
+					NotImplementedException, DataNotOnlineException, InsufficientStorageException {
+		return put(sessionId, inputStream, name, datasetId, datafileFormatId, description, doi, datafileCreateTime,
+				datafileModTime, null);
+	}
+
+	/**
+	 * Put the data in the inputStream into a data file and catalogue it. The
+	 * checksum produced by the server is compared to that supplied, or if none
+	 * is supplied to one generated by the client, to detect any transmission
+	 * errors.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param inputStream
+	 *            the input stream providing the data to store
+	 * @param name
+	 *            the name to associate with the data file
+	 * @param datasetId
+	 *            the id of the ICAT data set which should own the data file
+	 * @param datafileFormatId
+	 *            the id of the ICAT "DatafileFormat" to be associated with the
+	 *            data file
+	 * @param description
+	 *            Free text to associate with the data file. (may be null)
+	 * @param doi
+	 *            The Digital Object Identifier to associate with the data file.
+	 *            (may be null)
+	 * @param datafileCreateTime
+	 *            the time to record as the creation time of the data file. If
+	 *            null the current time as known to the IDS server will be
+	 *            stored.
+	 * @param datafileModTime
+	 *            the time to record as the modification time of the data file.
+	 *            If null the value of the datafileCreateTime or the current
+	 *            time as known to the IDS server if that value is also null
+	 *            will be stored.
+	 * @param checksum
+	 *            the CRC32 checksum of the data, as computed by
+	 *            {@link Crc32#compute(Path)}, or null to compute it as the
+	 *            data are sent.
+	 * 
+	 * @return the ICAT id of the data file object created.
+	 * 
 	 * @throws BadRequestException
 	 *             if an argument is invalid.
-	 * @throws InsufficientPrivilegesException
-	 *             if your are not authorized to perform the operation.
 	 * @throws NotFoundException
-	 *             if a part of the data is not known to ICAT.
+	 *             if the data set with id datasetId is not known to ICAT.
 	 * @throws InternalException
 	 *             if some unexpected problem should occur.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws DataNotOnlineException
+	 *             if the data set, datasetId, is not online.
+	 * @throws InsufficientStorageException
+	 *             if there is insufficient storage space to store the file.
 	 */
-	public String prepareData(String sessionId, DataSelection dataSelection, Flag flags) throws NotImplementedException,
-			BadRequestException, InsufficientPrivilegesException, NotFoundException, InternalException {
-		URI uri = getUri(getUriBuilder("prepareData"));
-		List<NameValuePair> formparams = new ArrayList<>();
-		formparams.add(new BasicNameValuePair("sessionId", sessionId));
-		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
-			formparams.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
-		}
-		if (flags == Flag.ZIP || flags == Flag.ZIP_AND_COMPRESS) {
-			formparams.add(new BasicNameValuePair("zip", "true"));
-		}
-		if (flags == Flag.COMPRESS || flags == Flag.ZIP_AND_COMPRESS) {
-			formparams.add(new BasicNameValuePair("compress", "true"));
+	public Long put(String sessionId, InputStream inputStream, String name, long datasetId, long datafileFormatId,
+			String description, String doi, Date datafileCreateTime, Date datafileModTime, Long checksum)
+					throws BadRequestException, NotFoundException, InternalException, InsufficientPrivilegesException,
+					NotImplementedException, DataNotOnlineException, InsufficientStorageException {
+		if (inputStream == null) {
+			throw new BadRequestException("Input stream is null");
 		}
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpEntity entity = new UrlEncodedFormEntity(formparams);
-			HttpPost httpPost = new HttpPost(uri);
-			httpPost.setEntity(entity);
-			try (CloseableHttpResponse response = httpclient.execute(httpPost)) {
-				return getString(response);
-			} catch (InsufficientStorageException | DataNotOnlineException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
-		} catch (IOException e) {
-			throw new InternalException(e.getClass() + " " + e.getMessage());
+		LongSupplier expected;
+		if (checksum == null) {
+			CRC32 crc = new CRC32();
+			inputStream = new CheckedInputStream(inputStream, crc);
+			expected = crc::getValue;
+		} else {
+			expected = checksum::longValue;
 		}
+		return put(sessionId, new InputStreamEntity(inputStream, ContentType.APPLICATION_OCTET_STREAM), expected,
+				name, datasetId, datafileFormatId, description, doi, datafileCreateTime, datafileModTime);
 	}
 
 	/**
-	 * Put the data in the inputStream into a data file and catalogue it. The
-	 * client generates a checksum which is compared to that produced by the
-	 * server to detect any transmission errors.
+	 * Put the data in a file into a data file and catalogue it. The client
+	 * generates a checksum which is compared to that produced by the server to
+	 * detect any transmission errors.
+	 * 
+	 * <p>
+	 * Unlike the call taking an InputStream the length of the data is sent in
+	 * advance rather than the data being sent in chunks. For files of more
+	 * than a few megabytes the file is read ahead of the data being sent, and
+	 * the checksum computed, by another thread.
+	 * </p>
 	 * 
 	 * @param sessionId
 	 *            A valid ICAT session ID
-	 * @param inputStream
-	 *            the input stream providing the data to store
+	 * @param path
+	 *            the file holding the data to store
 	 * @param name
 	 *            the name to associate with the data file
 	 * @param datasetId
 	 *            the id of the ICAT data set which should own the data file
 	 * @param datafileFormatId
-	 *            the id of the ICAT "DatafileForat" to be associated with the
+	 *            the id of the ICAT "DatafileFormat" to be associated with the
 	 *            data file
 	 * @param description
-	 *            Free text to associate with the data file (may be null)
+	 *            Free text to associate with the data file. (may be null)
+	 * @param doi
+	 *            The Digital Object Identifier to associate with the data file.
+	 *            (may be null)
+	 * @param datafileCreateTime
+	 *            the time to record as the creation time of the data file. If
+	 *            null the current time as known to the IDS server will be
+	 *            stored.
+	 * @param datafileModTime
+	 *            the time to record as the modification time of the data file.
+	 *            If null the value of the datafileCreateTime or the current
+	 *            time as known to the IDS server if that value is also null
+	 *            will be stored.
 	 * 
-	 * @return the ICAT id of the data file object created
+	 * @return the ICAT id of the data file object created.
 	 * 
 	 * @throws BadRequestException
-	 *             if an argument is invalid.
+	 *             if an argument is invalid or the file cannot be read.
 	 * @throws NotFoundException
-	 *             if the data set with an id of datasetId is not known to ICAT.
+	 *             if the data set with id datasetId is not known to ICAT.
 	 * @throws InternalException
 	 *             if some unexpected problem should occur.
 	 * @throws InsufficientPrivilegesException
@@ -1217,22 +2785,24 @@ public class IdsClient {
 	 * @throws InsufficientStorageException
 	 *             if there is insufficient storage space to store the file.
 	 */
-	public Long put(String sessionId, InputStream inputStream, String name, long datasetId, long datafileFormatId,
-			String description)
+	public Long put(String sessionId, Path path, String name, long datasetId, long datafileFormatId,
+			String description, String doi, Date datafileCreateTime, Date datafileModTime)
 					throws BadRequestException, NotFoundException, InternalException, InsufficientPrivilegesException,
 					NotImplementedException, DataNotOnlineException, InsufficientStorageException {
-		return put(sessionId, inputStream, name, datasetId, datafileFormatId, description, null, null, null);
+		return put(sessionId, path, name, datasetId, datafileFormatId, description, doi, datafileCreateTime,
+				datafileModTime, null);
 	}
 
 	/**
-	 * Put the data in the inputStream into a data file and catalogue it. The
-	 * client generates a checksum which is compared to that produced by the
-	 * server to detect any transmission errors.
+	 * Put the data in a file into a data file and catalogue it, as by the call
+	 * without a checksum, but comparing the checksum produced by the server to
+	 * that supplied. This avoids computing the checksum as the data are sent
+	 * when it is already known, for example from {@link Crc32#compute(Path)}.
 	 * 
 	 * @param sessionId
 	 *            A valid ICAT session ID
-	 * @param inputStream
-	 *            the input stream providing the data to store
+	 * @param path
+	 *            the file holding the data to store
 	 * @param name
 	 *            the name to associate with the data file
 	 * @param datasetId
@@ -1254,11 +2824,14 @@ public class IdsClient {
 	 *            If null the value of the datafileCreateTime or the current
 	 *            time as known to the IDS server if that value is also null
 	 *            will be stored.
+	 * @param checksum
+	 *            the CRC32 checksum of the file or null to compute it as the
+	 *            data are sent.
 	 * 
 	 * @return the ICAT id of the data file object created.
 	 * 
 	 * @throws BadRequestException
-	 *             if an argument is invalid.
+	 *             if an argument is invalid or the file cannot be read.
 	 * @throws NotFoundException
 	 *             if the data set with id datasetId is not known to ICAT.
 	 * @throws InternalException
@@ -1272,15 +2845,37 @@ public class IdsClient {
 	 * @throws InsufficientStorageException
 	 *             if there is insufficient storage space to store the file.
 	 */
-	public Long put(String sessionId, InputStream inputStream, String name, long datasetId, long datafileFormatId,
-			String description, String doi, Date datafileCreateTime, Date datafileModTime)
+	public Long put(String sessionId, Path path, String name, long datasetId, long datafileFormatId,
+			String description, String doi, Date datafileCreateTime, Date datafileModTime, Long checksum)
 					throws BadRequestException, NotFoundException, InternalException, InsufficientPrivilegesException,
 					NotImplementedException, DataNotOnlineException, InsufficientStorageException {
-		if (inputStream == null) {
-			throw new BadRequestException("Input stream is null");
+		if (path == null) {
+			throw new BadRequestException("Path is null");
+		}
+		long size;
+		try {
+			size = Files.size(path);
+		} catch (IOException e) {
+			throw new BadRequestException(e.getClass() + " " + e.getMessage());
+		}
+		if (checksum != null) {
+			return put(sessionId, new FileUploadEntity(path, size, null, fileReaders), checksum::longValue, name,
+					datasetId, datafileFormatId, description, doi, datafileCreateTime, datafileModTime);
 		}
 		CRC32 crc = new CRC32();
-		inputStream = new CheckedInputStream(inputStream, crc);
+		return put(sessionId, new FileUploadEntity(path, size, crc, fileReaders), crc::getValue, name, datasetId,
+				datafileFormatId, description, doi, datafileCreateTime, datafileModTime);
+	}
+
+	/**
+	 * Send the entity and check the checksum returned by the server against
+	 * that supplied once the entity has been written.
+	 */
+	private Long put(String sessionId, HttpEntity entity, LongSupplier checksum, String name, long datasetId,
+			long datafileFormatId, String description, String doi, Date datafileCreateTime, Date datafileModTime)
+					throws BadRequestException, NotFoundException, InternalException, InsufficientPrivilegesException,
+					NotImplementedException, DataNotOnlineException, InsufficientStorageException {
+		invalidateCache(true);
 		URIBuilder uriBuilder = getUriBuilder("put");
 		uriBuilder.setParameter("sessionId", sessionId).setParameter("name", name)
 				.setParameter("datafileFormatId", Long.toString(datafileFormatId))
@@ -1299,15 +2894,15 @@ public class IdsClient {
 		}
 
 		URI uri = getUri(uriBuilder);
-		CloseableHttpClient httpclient = HttpClients.createDefault();
 		HttpPut httpPut = new HttpPut(uri);
-		httpPut.setEntity(new InputStreamEntity(inputStream, ContentType.APPLICATION_OCTET_STREAM));
+		httpPut.setEntity(entity);
 
-		try (CloseableHttpResponse response = httpclient.execute(httpPut)) {
+		try (CloseableHttpResponse response = execute(httpPut)) {
 			String result = getString(response);
 			try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
 				JsonObject rootNode = jsonReader.readObject();
-				if (rootNode.getJsonNumber("checksum").longValueExact() != crc.getValue()) {
+				invalidateCache(true);
+				if (rootNode.getJsonNumber("checksum").longValueExact() != checksum.getAsLong()) {
 					throw new InternalException("Error uploading - the checksum was not as expected");
 				}
 				return rootNode.getJsonNumber("id").longValueExact();
@@ -1321,7 +2916,92 @@ public class IdsClient {
 	}
 
 	/**
-	 * Restore data specified by the dataSelection.
+	 * Store a batch of data files over pooled connections, making up to
+	 * maxConcurrency put calls at once. The checksum of each file is checked
+	 * as by the put call. A failure to store one file does not stop the others
+	 * being stored.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param uploads
+	 *            descriptions of the data files to store
+	 * @param maxConcurrency
+	 *            the maximum number of files to upload at once. The number of
+	 *            connections per route with which the client was constructed
+	 *            also limits this.
+	 * 
+	 * @return the result of each upload in the same order as the uploads
+	 * 
+	 * @throws InternalException
+	 *             if interrupted while waiting for the uploads to complete.
+	 */
+	public List<UploadResult> putAll(String sessionId, List<Upload> uploads, int maxConcurrency)
+			throws InternalException {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be at least 1");
+		}
+		if (uploads.isEmpty()) {
+			return new ArrayList<>();
+		}
+		/*
+		 * Each task of the worker pool of the client takes the next upload
+		 * until there are none left, so that no more than maxConcurrency are
+		 * made at once
+		 */
+		UploadResult[] results = new UploadResult[uploads.size()];
+		AtomicInteger next = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>();
+		try {
+			for (int i = 0; i < Math.min(maxConcurrency, uploads.size()); i++) {
+				futures.add(executor.submit(() -> {
+					int n;
+					while ((n = next.getAndIncrement()) < results.length) {
+						results[n] = put(sessionId, uploads.get(n));
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			return new ArrayList<>(Arrays.asList(results));
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw new InternalException(cause.getClass() + " " + cause.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalException("Interrupted while waiting for uploads to complete");
+		} finally {
+			next.set(results.length);
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private UploadResult put(String sessionId, Upload upload) {
+		try {
+			Long id;
+			if (upload.path != null) {
+				id = put(sessionId, upload.path, upload.name, upload.datasetId, upload.datafileFormatId,
+						upload.description, upload.doi, upload.datafileCreateTime, upload.datafileModTime,
+						upload.checksum);
+			} else {
+				id = put(sessionId, upload.inputStream, upload.name, upload.datasetId, upload.datafileFormatId,
+						upload.description, upload.doi, upload.datafileCreateTime, upload.datafileModTime,
+						upload.checksum);
+			}
+			return new UploadResult(upload, id, null);
+		} catch (IdsException e) {
+			return new UploadResult(upload, null, e);
+		} catch (RuntimeException e) {
+			return new UploadResult(upload, null, new InternalException(e.getClass() + " " + e.getMessage()));
+		}
+	}
+
+	/**
+	 * Restore data specified by the dataSelection. To restore a large
+	 * selection without flooding the queue of the IDS use a
+	 * {@link BulkRestore}.
 	 * 
 	 * @param sessionId
 	 *            A valid ICAT session ID
@@ -1342,18 +3022,20 @@ public class IdsClient {
 	public void restore(String sessionId, DataSelection dataSelection) throws NotImplementedException,
 			BadRequestException, InsufficientPrivilegesException, InternalException, NotFoundException {
 
+		invalidateCache(false);
 		URI uri = getUri(getUriBuilder("restore"));
 		List<NameValuePair> formparams = new ArrayList<>();
 		formparams.add(new BasicNameValuePair("sessionId", sessionId));
 		for (Entry<String, String> entry : dataSelection.getParameters().entrySet()) {
 			formparams.add(new BasicNameValuePair(entry.getKey(), entry.getValue()));
 		}
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
+		try {
 			HttpEntity entity = new UrlEncodedFormEntity(formparams);
 			HttpPost httpPost = new HttpPost(uri);
 			httpPost.setEntity(entity);
-			try (CloseableHttpResponse response = httpclient.execute(httpPost)) {
+			try (CloseableHttpResponse response = execute(httpPost)) {
 				expectNothing(response);
+				invalidateCache(false);
 			} catch (InsufficientStorageException | DataNotOnlineException e) {
 				throw new InternalException(e.getClass() + " " + e.getMessage());
 			}
@@ -1383,32 +3065,77 @@ public class IdsClient {
 	public List<Long> getDatafileIds(String preparedId)
 			throws InternalException, BadRequestException, NotFoundException, NotImplementedException {
 
-		URIBuilder uriBuilder = getUriBuilder("getDatafileIds");
-		uriBuilder.setParameter("preparedId", preparedId);
-		URI uri = getUri(uriBuilder);
-
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpGet httpGet = new HttpGet(uri);
+		List<Long> ids = new ArrayList<>();
+		try (DatafileIdIterator iterator = openDatafileIds(preparedId)) {
+			while (iterator.hasNext()) {
+				ids.add(iterator.nextLong());
+			}
+		} catch (JsonException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+		return ids;
+	}
 
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				String result = getString(response);
-				try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
+	/**
+	 * Return the id values of data files included in the preparedId returned
+	 * by a call to prepareData as an array of primitive longs. The response
+	 * is parsed as it is read so no more memory is needed than for the array
+	 * itself.
+	 * 
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * 
+	 * @return an array of id values
+	 * 
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws NotFoundException
+	 *             if the preparedId is not known to ICAT.
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 */
+	public long[] getDatafileIdArray(String preparedId)
+			throws InternalException, BadRequestException, NotFoundException, NotImplementedException {
+		return toArray(openDatafileIds(preparedId));
+	}
 
-					JsonObject rootNode = jsonReader.readObject();
-					List<Long> ids = new ArrayList<>();
-					for (JsonValue num : rootNode.getJsonArray("ids")) {
-						Long id = ((JsonNumber) num).longValueExact();
-						ids.add(id);
-					}
-					return ids;
-				} catch (JsonException e) {
-					throw new InternalException(e.getClass() + " " + e.getMessage() + " from " + result);
-				}
+	/**
+	 * Return the id values of data files included in the preparedId returned
+	 * by a call to prepareData as a stream which reads them from the
+	 * connection as they are consumed, so that memory use does not depend on
+	 * the number of ids. The stream must be closed, preferably with a
+	 * try-with-resources statement, unless it is consumed to the end.
+	 * Operations on the stream throw a JsonException if the response cannot
+	 * be read.
+	 * 
+	 * @param preparedId
+	 *            A valid preparedId returned by a call to prepareData
+	 * 
+	 * @return a stream of id values
+	 * 
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws NotFoundException
+	 *             if the preparedId is not known to ICAT.
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 */
+	public LongStream streamDatafileIds(String preparedId)
+			throws InternalException, BadRequestException, NotFoundException, NotImplementedException {
+		return toStream(openDatafileIds(preparedId));
+	}
 
-			} catch (InsufficientStorageException | DataNotOnlineException | InsufficientPrivilegesException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
-			}
-		} catch (IOException e) {
+	private DatafileIdIterator openDatafileIds(String preparedId)
+			throws InternalException, BadRequestException, NotFoundException, NotImplementedException {
+		URIBuilder uriBuilder = getUriBuilder("getDatafileIds");
+		uriBuilder.setParameter("preparedId", preparedId);
+		try {
+			return openDatafileIds(getUri(uriBuilder));
+		} catch (InsufficientPrivilegesException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
@@ -1438,35 +3165,167 @@ public class IdsClient {
 			BadRequestException, NotFoundException, NotImplementedException, InsufficientPrivilegesException {
 		URIBuilder uriBuilder = getUriBuilder("getDatafileIds");
 		uriBuilder.setParameter("sessionId", sessionId);
+		List<List<DataSelection>> groups = split(uriBuilder, data);
+		if (groups != null) {
+			try {
+				Set<Long> ids = new LinkedHashSet<>();
+				for (List<Long> chunkIds : invokeAll(groups, chunk -> getDatafileIds(sessionId, chunk))) {
+					ids.addAll(chunkIds);
+				}
+				return new ArrayList<>(ids);
+			} catch (InsufficientStorageException | DataNotOnlineException e) {
+				throw new InternalException(e.getClass() + " " + e.getMessage());
+			}
+		}
 		for (Entry<String, String> entry : data.getParameters().entrySet()) {
 			uriBuilder.setParameter(entry.getKey(), entry.getValue());
 		}
-		URI uri = getUri(uriBuilder);
+		List<Long> ids = new ArrayList<>();
+		try (DatafileIdIterator iterator = openDatafileIds(getUri(uriBuilder))) {
+			while (iterator.hasNext()) {
+				ids.add(iterator.nextLong());
+			}
+		} catch (JsonException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+		return ids;
+	}
 
-		try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-			HttpGet httpGet = new HttpGet(uri);
+	/**
+	 * Return the id values of data files specified by the dataSelection as an
+	 * array of primitive longs. The response is parsed as it is read so no
+	 * more memory is needed than for the array itself. If the dataSelection
+	 * is too large for one request the ids are sorted and duplicates removed.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param data
+	 *            A data selection object
+	 * 
+	 * @return an array of id values
+	 * 
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws NotFoundException
+	 *             if some part of the data is not known to ICAT.
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 */
+	public long[] getDatafileIdArray(String sessionId, DataSelection data) throws InternalException,
+			BadRequestException, NotFoundException, NotImplementedException, InsufficientPrivilegesException {
+		URIBuilder uriBuilder = getUriBuilder("getDatafileIds");
+		uriBuilder.setParameter("sessionId", sessionId);
+		List<List<DataSelection>> groups = split(uriBuilder, data);
+		if (groups != null) {
+			try {
+				IdSet ids = new IdSet();
+				for (long[] chunkIds : invokeAll(groups, chunk -> getDatafileIdArray(sessionId, chunk))) {
+					ids.addAll(chunkIds);
+				}
+				return ids.toArray();
+			} catch (InsufficientStorageException | DataNotOnlineException e) {
+				throw new InternalException(e.getClass() + " " + e.getMessage());
+			}
+		}
+		for (Entry<String, String> entry : data.getParameters().entrySet()) {
+			uriBuilder.setParameter(entry.getKey(), entry.getValue());
+		}
+		return toArray(openDatafileIds(getUri(uriBuilder)));
+	}
 
-			try (CloseableHttpResponse response = httpclient.execute(httpGet)) {
-				String result = getString(response);
-				try (JsonReader jsonReader = Json.createReader(new StringReader(result))) {
+	/**
+	 * Return the id values of data files specified by the dataSelection as a
+	 * stream which reads them from the connection as they are consumed, so
+	 * that memory use does not depend on the number of ids. The stream must
+	 * be closed, preferably with a try-with-resources statement, unless it is
+	 * consumed to the end. Operations on the stream throw a JsonException if
+	 * the response cannot be read. If the dataSelection is too large for one
+	 * request the ids are collected as by
+	 * {@link #getDatafileIdArray(String, DataSelection)} before the stream is
+	 * returned.
+	 * 
+	 * @param sessionId
+	 *            A valid ICAT session ID
+	 * @param data
+	 *            A data selection object
+	 * 
+	 * @return a stream of id values
+	 * 
+	 * @throws InternalException
+	 *             if some unexpected problem should occur.
+	 * @throws BadRequestException
+	 *             if an argument is invalid.
+	 * @throws NotFoundException
+	 *             if some part of the data is not known to ICAT.
+	 * @throws NotImplementedException
+	 *             if the operation has not been implemented.
+	 * @throws InsufficientPrivilegesException
+	 *             if your are not authorized to perform the operation.
+	 */
+	public LongStream streamDatafileIds(String sessionId, DataSelection data) throws InternalException,
+			BadRequestException, NotFoundException, NotImplementedException, InsufficientPrivilegesException {
+		URIBuilder uriBuilder = getUriBuilder("getDatafileIds");
+		uriBuilder.setParameter("sessionId", sessionId);
+		if (split(uriBuilder, data) != null) {
+			return LongStream.of(getDatafileIdArray(sessionId, data));
+		}
+		for (Entry<String, String> entry : data.getParameters().entrySet()) {
+			uriBuilder.setParameter(entry.getKey(), entry.getValue());
+		}
+		return toStream(openDatafileIds(getUri(uriBuilder)));
+	}
 
-					JsonObject rootNode = jsonReader.readObject();
-					List<Long> ids = new ArrayList<>();
-					for (JsonValue num : rootNode.getJsonArray("ids")) {
-						Long id = ((JsonNumber) num).longValueExact();
-						ids.add(id);
-					}
-					return ids;
-				} catch (JsonException e) {
-					throw new InternalException(e.getClass() + " " + e.getMessage() + " from " + result);
+	/**
+	 * Make a getDatafileIds call and return an iterator over the ids which
+	 * owns the response.
+	 */
+	private DatafileIdIterator openDatafileIds(URI uri) throws InternalException, BadRequestException,
+			NotFoundException, NotImplementedException, InsufficientPrivilegesException {
+		CloseableHttpResponse response = null;
+		try {
+			response = execute(new HttpGet(uri));
+			checkStatus(response);
+			DatafileIdIterator iterator = new DatafileIdIterator(response);
+			response = null;
+			return iterator;
+		} catch (IOException | InsufficientStorageException | DataNotOnlineException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		} finally {
+			if (response != null) {
+				try {
+					response.close();
+				} catch (IOException e) {
+					// Ignore it
 				}
+			}
+		}
+	}
 
-			} catch (InsufficientStorageException | DataNotOnlineException e) {
-				throw new InternalException(e.getClass() + " " + e.getMessage());
+	private static long[] toArray(DatafileIdIterator iterator) throws InternalException {
+		try (DatafileIdIterator ids = iterator) {
+			long[] result = new long[1024];
+			int n = 0;
+			while (ids.hasNext()) {
+				if (n == result.length) {
+					result = Arrays.copyOf(result, n + (n >> 1));
+				}
+				result[n++] = ids.nextLong();
 			}
-		} catch (IOException e) {
+			return Arrays.copyOf(result, n);
+		} catch (JsonException e) {
 			throw new InternalException(e.getClass() + " " + e.getMessage());
 		}
 	}
 
+	private static LongStream toStream(DatafileIdIterator iterator) {
+		return StreamSupport
+				.longStream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL),
+						false)
+				.onClose(iterator::close);
+	}
+
 }
\ No newline at end of file
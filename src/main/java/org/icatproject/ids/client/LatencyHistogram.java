@@ -0,0 +1,150 @@
+package org.icatproject.ids.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds,
+ * which may be recorded by many threads at once without locking.
+ *
+ * <p>
+ * As in HdrHistogram values are counted in buckets whose width grows with the
+ * value: values below 128 have a bucket each and above that each power of two
+ * is divided into 64 buckets. A value is therefore reported to within 1/64 of
+ * itself over the whole range of a long while recording is just an array
+ * index calculation and an atomic increment. Percentiles are computed from a
+ * copy of the counts taken when they are requested.
+ * </p>
+ */
+public final class LatencyHistogram {
+
+	/** Number of bits of each value kept beyond the leading one */
+	private static final int SUB_BUCKET_BITS = 6;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder count = new LongAdder();
+
+	private final AtomicLong max = new AtomicLong();
+
+	private final LongAdder total = new LongAdder();
+
+	/**
+	 * Record a value. Negative values are recorded as zero.
+	 *
+	 * @param value
+	 *            the value to record
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.increment();
+		total.add(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// Try again
+		}
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the largest value recorded or 0 if there are none
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of the values recorded or 0 if there are none
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) total.sum() / n;
+	}
+
+	/**
+	 * Return a value which is not exceeded by the given percentage of the
+	 * values recorded, to within the precision of the histogram.
+	 *
+	 * @param percentile
+	 *            the percentage, such as 50 for the median or 99.9
+	 *
+	 * @return the highest value which falls in the same bucket as the value
+	 *         at the percentile, but no more than the largest value recorded.
+	 *         If nothing has been recorded it is 0.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+		long[] snapshot = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= wanted) {
+				return Math.min(highestInBucket(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Discard all the values recorded. Values recorded while this is running
+	 * may be partly discarded.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "count " + getCount() + " mean " + (long) getMean() + " p50 " + getValueAtPercentile(50) + " p99 "
+				+ getValueAtPercentile(99) + " p99.9 " + getValueAtPercentile(99.9) + " max " + getMax();
+	}
+
+	static int index(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	static long highestInBucket(int index) {
+		if (index < 2 * SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long top = index % SUB_BUCKETS + SUB_BUCKETS;
+		/* For the last bucket this overflows to Long.MAX_VALUE */
+		return ((top + 1) << shift) - 1;
+	}
+
+}
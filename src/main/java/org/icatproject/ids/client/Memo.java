@@ -0,0 +1,79 @@
+package org.icatproject.ids.client;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds a value obtained from the server which is not expected to change
+ * often.
+ *
+ * <p>
+ * Once the value has been set it is always returned at once. When it is older
+ * than the refresh interval a single background task is started to fetch it
+ * again and the old value is returned meanwhile. If the refresh fails the old
+ * value is kept and another refresh is tried on a later call.
+ * </p>
+ */
+class Memo<T> {
+
+	private final Executor executor;
+
+	private final Callable<T> loader;
+
+	private volatile long loaded;
+
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	private volatile long refreshNanos;
+
+	private volatile T value;
+
+	/**
+	 * @param loader
+	 *            fetches the value from the server
+	 * @param executor
+	 *            runs the background refreshes
+	 */
+	Memo(Callable<T> loader, Executor executor, long refreshMillis) {
+		this.loader = loader;
+		this.executor = executor;
+		setRefreshInterval(refreshMillis);
+	}
+
+	/**
+	 * Return the value, or null if it must be fetched by the caller, starting
+	 * a refresh if the value is stale
+	 */
+	T get() {
+		T current = value;
+		if (current != null && System.nanoTime() - loaded > refreshNanos && refreshing.compareAndSet(false, true)) {
+			try {
+				executor.execute(() -> {
+					try {
+						set(loader.call());
+					} catch (Exception e) {
+						// Keep the old value
+					} finally {
+						refreshing.set(false);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				refreshing.set(false);
+			}
+		}
+		return current;
+	}
+
+	void set(T value) {
+		loaded = System.nanoTime();
+		this.value = value;
+	}
+
+	void setRefreshInterval(long refreshMillis) {
+		refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+	}
+
+}
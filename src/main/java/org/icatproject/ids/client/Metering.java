@@ -0,0 +1,203 @@
+package org.icatproject.ids.client;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Executes requests on behalf of an IdsClient reporting each to a
+ * {@link MetricsListener}.
+ *
+ * <p>
+ * The request entity, if any, is wrapped to count the bytes written and the
+ * response is replaced by a copy whose entity counts the bytes read. The
+ * request is reported when that response is closed, which every caller does
+ * whether it succeeds or fails, with any exception noted on the way by
+ * {@link #failed(HttpResponse, Exception)}.
+ * </p>
+ */
+class Metering {
+
+	private class Call extends BasicHttpResponse implements CloseableHttpResponse {
+
+		private final AtomicBoolean done = new AtomicBoolean();
+		private volatile Class<? extends Exception> exception;
+		private final String operation;
+		/** Only updated by the thread writing the request */
+		private volatile long requestBytes;
+		private CloseableHttpResponse response;
+		/** Only updated by the thread reading the response */
+		private volatile long responseBytes;
+		private final long start = System.nanoTime();
+
+		Call(String operation) {
+			/* The status line is replaced when the response arrives */
+			super(HttpVersion.HTTP_1_1, 0, null);
+			this.operation = operation;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (response != null) {
+					response.close();
+				}
+			} finally {
+				complete();
+			}
+		}
+
+		void complete() {
+			if (done.compareAndSet(false, true)) {
+				int n = getActive(operation).decrementAndGet();
+				int statusCode = response == null ? 0 : response.getStatusLine().getStatusCode();
+				try {
+					listener.completed(operation, n, System.nanoTime() - start, statusCode, requestBytes, responseBytes,
+							exception);
+				} catch (RuntimeException e) {
+					// Metrics must not break the call
+				}
+			}
+		}
+
+		void setResponse(CloseableHttpResponse response) {
+			this.response = response;
+			setStatusLine(response.getStatusLine());
+			setHeaders(response.getAllHeaders());
+			HttpEntity entity = response.getEntity();
+			if (entity != null) {
+				setEntity(new HttpEntityWrapper(entity) {
+
+					@Override
+					public InputStream getContent() throws IOException {
+						return new FilterInputStream(super.getContent()) {
+
+							@Override
+							public int read() throws IOException {
+								try {
+									int b = in.read();
+									if (b >= 0) {
+										responseBytes++;
+									}
+									return b;
+								} catch (IOException e) {
+									exception = e.getClass();
+									throw e;
+								}
+							}
+
+							@Override
+							public int read(byte[] b, int off, int len) throws IOException {
+								try {
+									int n = in.read(b, off, len);
+									if (n > 0) {
+										responseBytes += n;
+									}
+									return n;
+								} catch (IOException e) {
+									exception = e.getClass();
+									throw e;
+								}
+							}
+
+						};
+					}
+
+				});
+			}
+		}
+
+	}
+
+	/**
+	 * Note the exception with which a request failed if the response came
+	 * from a metered call.
+	 */
+	static void failed(HttpResponse response, Exception e) {
+		if (response instanceof Call) {
+			((Call) response).exception = e.getClass();
+		}
+	}
+
+	private final ConcurrentMap<String, AtomicInteger> active = new ConcurrentHashMap<>();
+
+	private final MetricsListener listener;
+
+	Metering(MetricsListener listener) {
+		this.listener = listener;
+	}
+
+	CloseableHttpResponse execute(Transport transport, HttpUriRequest request) throws IOException {
+		String path = request.getURI().getPath();
+		String operation = path.substring(path.lastIndexOf('/') + 1);
+		int n = getActive(operation).incrementAndGet();
+		try {
+			listener.started(operation, n);
+		} catch (RuntimeException e) {
+			// Metrics must not break the call
+		}
+
+		final Call call = new Call(operation);
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+			HttpEntity entity = enclosing.getEntity();
+			if (entity != null) {
+				enclosing.setEntity(new HttpEntityWrapper(entity) {
+
+					@Override
+					public void writeTo(OutputStream outstream) throws IOException {
+						super.writeTo(new FilterOutputStream(outstream) {
+
+							@Override
+							public void write(int b) throws IOException {
+								out.write(b);
+								call.requestBytes++;
+							}
+
+							@Override
+							public void write(byte[] b, int off, int len) throws IOException {
+								out.write(b, off, len);
+								call.requestBytes += len;
+							}
+
+						});
+					}
+
+				});
+			}
+		}
+
+		try {
+			call.setResponse(transport.execute(request));
+			return call;
+		} catch (IOException | RuntimeException e) {
+			call.exception = e.getClass();
+			call.close();
+			throw e;
+		}
+	}
+
+	private AtomicInteger getActive(String operation) {
+		AtomicInteger n = active.get(operation);
+		if (n == null) {
+			n = active.computeIfAbsent(operation, k -> new AtomicInteger());
+		}
+		return n;
+	}
+
+}
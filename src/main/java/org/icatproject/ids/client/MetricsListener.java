@@ -0,0 +1,57 @@
+package org.icatproject.ids.client;
+
+/**
+ * Receives a report of each request made to the IDS by an {@link IdsClient}.
+ *
+ * <p>
+ * Requests are named by their IDS operation, such as "getData", "put" or
+ * "getStatus". A call which is split into several requests, or which polls
+ * the server, reports each request separately. The methods are called by the
+ * threads making the requests so implementations must be thread safe, and
+ * they should be quick as they add to the time taken by each call. See
+ * {@link MetricsRecorder} for an implementation which keeps histograms of the
+ * latencies.
+ * </p>
+ */
+public interface MetricsListener {
+
+	/**
+	 * Called as each request is about to be sent.
+	 *
+	 * @param operation
+	 *            the name of the IDS operation
+	 * @param active
+	 *            the number of requests for this operation now in progress,
+	 *            including this one
+	 */
+	default void started(String operation, int active) {
+	}
+
+	/**
+	 * Called once each request has finished. A request finishes when its
+	 * response has been closed, so for a getData call the latency includes
+	 * the time to read the data.
+	 *
+	 * @param operation
+	 *            the name of the IDS operation
+	 * @param active
+	 *            the number of requests for this operation still in progress
+	 * @param nanos
+	 *            the time from sending the request to closing the response in
+	 *            nanoseconds
+	 * @param statusCode
+	 *            the HTTP status code of the response or 0 if no response was
+	 *            received
+	 * @param requestBytes
+	 *            the number of bytes of content sent, such as the data of a
+	 *            put
+	 * @param responseBytes
+	 *            the number of bytes of content received
+	 * @param exception
+	 *            the class of the exception with which the request failed or
+	 *            null if it succeeded
+	 */
+	void completed(String operation, int active, long nanos, int statusCode, long requestBytes, long responseBytes,
+			Class<? extends Exception> exception);
+
+}
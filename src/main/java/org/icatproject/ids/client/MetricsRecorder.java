@@ -0,0 +1,185 @@
+package org.icatproject.ids.client;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link MetricsListener} which keeps, for each IDS operation, a latency
+ * histogram, counts of requests, errors and bytes and the number of requests
+ * in progress.
+ *
+ * <p>
+ * Recording takes no locks so one recorder may be shared by many clients.
+ * The figures may be read at any time, for example to be published by a
+ * monitoring system, and {@link #toString()} gives a summary of them all.
+ * </p>
+ */
+public class MetricsRecorder implements MetricsListener {
+
+	/**
+	 * The figures recorded for one IDS operation
+	 */
+	public static class Operation {
+
+		private final AtomicInteger active = new AtomicInteger();
+
+		private final LongAdder count = new LongAdder();
+
+		private final ConcurrentMap<Class<? extends Exception>, LongAdder> errors = new ConcurrentHashMap<>();
+
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		private final LongAdder requestBytes = new LongAdder();
+
+		private final LongAdder responseBytes = new LongAdder();
+
+		private final ConcurrentMap<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+
+		/**
+		 * @return the number of requests in progress
+		 */
+		public int getActive() {
+			return active.get();
+		}
+
+		/**
+		 * @return the number of requests completed, whether or not they
+		 *         succeeded
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * @return the number of requests which failed
+		 */
+		public long getErrorCount() {
+			long n = 0;
+			for (LongAdder adder : errors.values()) {
+				n += adder.sum();
+			}
+			return n;
+		}
+
+		/**
+		 * @return the number of requests which failed with each class of
+		 *         exception
+		 */
+		public Map<Class<? extends Exception>, Long> getErrors() {
+			Map<Class<? extends Exception>, Long> result = new TreeMap<>(
+					(a, b) -> a.getName().compareTo(b.getName()));
+			for (Entry<Class<? extends Exception>, LongAdder> entry : errors.entrySet()) {
+				result.put(entry.getKey(), entry.getValue().sum());
+			}
+			return result;
+		}
+
+		/**
+		 * @return the histogram of the latencies of completed requests in
+		 *         nanoseconds
+		 */
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		/**
+		 * @return the total number of bytes of content sent
+		 */
+		public long getRequestBytes() {
+			return requestBytes.sum();
+		}
+
+		/**
+		 * @return the total number of bytes of content received
+		 */
+		public long getResponseBytes() {
+			return responseBytes.sum();
+		}
+
+		/**
+		 * @return the number of responses with each HTTP status code. Requests
+		 *         which received no response are counted under 0.
+		 */
+		public Map<Integer, Long> getStatusCodes() {
+			Map<Integer, Long> result = new TreeMap<>();
+			for (Entry<Integer, LongAdder> entry : statusCodes.entrySet()) {
+				result.put(entry.getKey(), entry.getValue().sum());
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return "active " + getActive() + " errors " + getErrorCount() + " sent " + getRequestBytes()
+					+ " received " + getResponseBytes() + " latency ns " + latency;
+		}
+
+	}
+
+	private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<>();
+
+	@Override
+	public void started(String operation, int active) {
+		getOrCreate(operation).active.incrementAndGet();
+	}
+
+	@Override
+	public void completed(String operation, int active, long nanos, int statusCode, long requestBytes,
+			long responseBytes, Class<? extends Exception> exception) {
+		Operation op = getOrCreate(operation);
+		op.active.decrementAndGet();
+		op.count.increment();
+		op.latency.record(nanos);
+		op.requestBytes.add(requestBytes);
+		op.responseBytes.add(responseBytes);
+		op.statusCodes.computeIfAbsent(statusCode, k -> new LongAdder()).increment();
+		if (exception != null) {
+			op.errors.computeIfAbsent(exception, k -> new LongAdder()).increment();
+		}
+	}
+
+	/**
+	 * Return the figures for one operation
+	 *
+	 * @param operation
+	 *            the name of the IDS operation such as "getData"
+	 *
+	 * @return the figures or null if no request for that operation has been
+	 *         seen
+	 */
+	public Operation getOperation(String operation) {
+		return operations.get(operation);
+	}
+
+	/**
+	 * @return the figures for each operation for which a request has been
+	 *         seen, sorted by name
+	 */
+	public Map<String, Operation> getOperations() {
+		return Collections.unmodifiableMap(new TreeMap<>(operations));
+	}
+
+	private Operation getOrCreate(String operation) {
+		Operation op = operations.get(operation);
+		if (op == null) {
+			op = operations.computeIfAbsent(operation, k -> new Operation());
+		}
+		return op;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Entry<String, Operation> entry : getOperations().entrySet()) {
+			sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+
+}
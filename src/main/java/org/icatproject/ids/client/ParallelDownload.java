@@ -0,0 +1,255 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the data identified by a getData URI into a file by fetching
+ * several byte ranges concurrently.
+ *
+ * <p>
+ * The total length is taken from the first response. The file is then split
+ * into one contiguous range per stream and each range is read from its own
+ * connection, starting with a "Range: bytes=start-" header, and written at its
+ * position in the file. The IDS only supports open ended ranges so a stream is
+ * aborted once its range is complete. If a range fails part way through it is
+ * resumed from the last byte written. If the length is not known, as is the
+ * case for zipped data, the data are read over the first connection alone,
+ * as a single range which is resumed in the same way. As a chunked response
+ * cut off between two chunks looks complete, this range is only taken to be
+ * complete once the data end with the end of central directory record of a
+ * zip. The file is extended to its full length before the ranges are
+ * written, but this only makes a sparse file rather than reserving the space.
+ * </p>
+ */
+class ParallelDownload {
+
+	private class Range {
+
+		private final long end;
+		private long position;
+
+		Range(long start, long end) {
+			this.position = start;
+			this.end = end;
+		}
+
+		void fetch(HttpInputStream in) throws NotImplementedException, BadRequestException,
+				InsufficientPrivilegesException, NotFoundException, InternalException, DataNotOnlineException {
+			int failures = 0;
+			while (true) {
+				try {
+					if (in == null) {
+						in = client.openDataStream(uri, position);
+						if (position != 0 && in.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+							throw new InternalException(
+									"Server did not honour request for data from offset " + position);
+						}
+					}
+					copy(in);
+					if (end == UNKNOWN_END) {
+						if (!cancelled && !endsWithZip(position)) {
+							throw new IOException("Data ended at " + position + " before the end of the zip");
+						}
+					} else if (position < end) {
+						throw new IOException("Data ended at " + position + " but " + end + " bytes were expected");
+					}
+					return;
+				} catch (IOException e) {
+					if (cancelled) {
+						return;
+					}
+					if (++failures > RANGE_RETRIES) {
+						throw new InternalException(e.getClass() + " " + e.getMessage());
+					}
+					try {
+						Thread.sleep(RETRY_DELAY_MILLIS * failures);
+					} catch (InterruptedException e1) {
+						Thread.currentThread().interrupt();
+						throw new InternalException("Interrupted while waiting to resume download");
+					}
+				} finally {
+					closeQuietly(in);
+					in = null;
+				}
+			}
+		}
+
+		private void copy(HttpInputStream in) throws IOException {
+			byte[] bytes = new byte[BUFFER_SIZE];
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (position < end && !cancelled) {
+				int n = in.read(bytes, 0, (int) Math.min(bytes.length, end - position));
+				if (n < 0) {
+					return;
+				}
+				buffer.clear().limit(n);
+				while (buffer.hasRemaining()) {
+					position += channel.write(buffer, position);
+				}
+			}
+		}
+
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The end of a range which runs to the end of data of unknown length */
+	private static final long UNKNOWN_END = Long.MAX_VALUE;
+
+	/** The length of the end of central directory record of a zip without its comment */
+	private static final int ZIP_END_LENGTH = 22;
+
+	private static final int ZIP_END_SIGNATURE = 0x06054b50;
+
+	/** Below this size there is nothing to gain from more than one stream */
+	private static final long MIN_PARALLEL_LENGTH = 8 * 1024 * 1024;
+
+	private static final int RANGE_RETRIES = 3;
+
+	private static final long RETRY_DELAY_MILLIS = 1000;
+
+	private static void closeQuietly(HttpInputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Ignore it
+			}
+		}
+	}
+
+	private volatile boolean cancelled;
+	private FileChannel channel;
+	private IdsClient client;
+	private int streams;
+	private Path target;
+	private URI uri;
+
+	ParallelDownload(IdsClient client, URI uri, Path target, int streams) {
+		if (streams < 1) {
+			throw new IllegalArgumentException("streams must be at least 1");
+		}
+		this.client = client;
+		this.uri = uri;
+		this.target = target;
+		this.streams = streams;
+	}
+
+	/**
+	 * Whether the first length bytes of the file end with the end of central
+	 * directory record of a zip, which may be followed by a comment of up to
+	 * 65535 bytes
+	 */
+	private boolean endsWithZip(long length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, ZIP_END_LENGTH + 0xffff));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		long start = length - buffer.capacity();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, start + buffer.position()) < 0) {
+				return false;
+			}
+		}
+		for (int i = buffer.capacity() - ZIP_END_LENGTH; i >= 0; i--) {
+			if (buffer.getInt(i) == ZIP_END_SIGNATURE
+					&& i + ZIP_END_LENGTH + (buffer.getShort(i + 20) & 0xffff) == buffer.capacity()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Perform the download
+	 *
+	 * @return the number of bytes written
+	 */
+	long run() throws NotImplementedException, BadRequestException, InsufficientPrivilegesException,
+			NotFoundException, InternalException, DataNotOnlineException {
+		HttpInputStream first = client.getDataStream(uri, 0);
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			this.channel = channel;
+			long length = first.getContentLength();
+			if (length < 0) {
+				Range range = new Range(0, UNKNOWN_END);
+				HttpInputStream in = first;
+				first = null;
+				range.fetch(in);
+				return range.position;
+			}
+			if (length == 0) {
+				return 0;
+			}
+
+			/* Extend the file so that ranges can be written in any order. It is sparse until they are. */
+			channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+
+			int n = length < MIN_PARALLEL_LENGTH ? 1 : streams;
+			long rangeSize = (length + n - 1) / n;
+			List<Range> ranges = new ArrayList<>();
+			for (long start = 0; start < length; start += rangeSize) {
+				ranges.add(new Range(start, Math.min(start + rangeSize, length)));
+			}
+			if (ranges.size() == 1) {
+				HttpInputStream in = first;
+				first = null;
+				ranges.get(0).fetch(in);
+				return length;
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(ranges.size() - 1,
+					new DaemonThreadFactory("IdsClient range download"));
+			List<Future<Void>> futures = new ArrayList<>();
+			try {
+				for (final Range range : ranges.subList(1, ranges.size())) {
+					futures.add(executor.submit(new Callable<Void>() {
+
+						@Override
+						public Void call() throws Exception {
+							range.fetch(null);
+							return null;
+						}
+					}));
+				}
+				HttpInputStream in = first;
+				first = null;
+				ranges.get(0).fetch(in);
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+			} catch (ExecutionException e) {
+				try {
+					IdsClient.rethrow(e.getCause());
+				} catch (InsufficientStorageException e1) {
+					throw new InternalException(e1.getClass() + " " + e1.getMessage());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalException("Interrupted while waiting for download to complete");
+			} finally {
+				cancelled = true;
+				executor.shutdownNow();
+			}
+			return length;
+		} catch (IOException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		} finally {
+			closeQuietly(first);
+		}
+	}
+
+}
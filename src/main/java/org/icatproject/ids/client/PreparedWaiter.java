@@ -0,0 +1,189 @@
+package org.icatproject.ids.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls isPrepared for all the preparedIds being waited for by the clients of
+ * one IdsClient.
+ *
+ * <p>
+ * Each preparedId is polled on its own schedule, starting soon after the wait
+ * begins and then backing off exponentially up to a maximum interval, so that
+ * long preparations cost few calls while short ones are noticed quickly. The
+ * polls are run by a small fixed set of threads so that however many
+ * preparedIds are outstanding only that many calls are made at once. Waiting
+ * twice for the same preparedId shares one schedule but each caller has its
+ * own future, so that one may cancel without affecting the others. The
+ * polling stops once all have cancelled.
+ * </p>
+ */
+class PreparedWaiter {
+
+	private class Wait implements Runnable {
+
+		/** The time to wait before the next poll, which follows this one */
+		private long delay;
+		private int failures;
+		private final CompletableFuture<String> future = new CompletableFuture<>();
+		/** The next poll, if scheduled, to be cancelled if the wait is */
+		private volatile ScheduledFuture<?> next;
+		private final String preparedId;
+		/** The callers whose futures are not cancelled, only changed while the wait is in the map */
+		private int waiters;
+
+		Wait(String preparedId) {
+			this.preparedId = preparedId;
+			future.whenComplete((result, e) -> {
+				waits.remove(preparedId, this);
+				ScheduledFuture<?> n = next;
+				if (n != null) {
+					n.cancel(false);
+				}
+			});
+		}
+
+		/**
+		 * Called when the future of a caller is cancelled. When none is left
+		 * the wait is cancelled too.
+		 */
+		void cancelled() {
+			boolean[] last = new boolean[1];
+			waits.computeIfPresent(preparedId, (k, w) -> {
+				if (w == this && --waiters == 0) {
+					last[0] = true;
+					return null;
+				}
+				return w;
+			});
+			/* Outside compute as completing the future removes it from the map */
+			if (last[0]) {
+				future.cancel(false);
+			}
+		}
+
+		@Override
+		public void run() {
+			if (future.isDone()) {
+				return;
+			}
+			try {
+				if (client.isPrepared(preparedId)) {
+					complete();
+					return;
+				}
+				failures = 0;
+			} catch (InternalException e) {
+				/* Perhaps a transient failure of the connection so try again */
+				if (++failures > MAX_FAILURES) {
+					completeExceptionally(e);
+					return;
+				}
+			} catch (IdsException e) {
+				completeExceptionally(e);
+				return;
+			} catch (RuntimeException e) {
+				completeExceptionally(new InternalException(e.getClass() + " " + e.getMessage()));
+				return;
+			}
+			/* Set before scheduling so that the thread of the next poll sees it */
+			delay = delay == 0 ? INITIAL_DELAY_MILLIS : Math.min((long) (delay * BACKOFF_FACTOR), MAX_DELAY_MILLIS);
+			schedule();
+		}
+
+		private void complete() {
+			future.complete(preparedId);
+		}
+
+		private void completeExceptionally(IdsException e) {
+			future.completeExceptionally(e);
+		}
+
+		private void schedule() {
+			try {
+				next = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				completeExceptionally(new InternalException("IdsClient has been closed"));
+			}
+		}
+
+	}
+
+	private static final double BACKOFF_FACTOR = 1.5;
+
+	private static final long INITIAL_DELAY_MILLIS = 500;
+
+	/** Consecutive InternalExceptions tolerated before giving up */
+	private static final int MAX_FAILURES = 5;
+
+	private static final long MAX_DELAY_MILLIS = 60000;
+
+	private IdsClient client;
+
+	private ScheduledThreadPoolExecutor scheduler;
+
+	private ConcurrentMap<String, Wait> waits = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxConcurrentPolls
+	 *            the maximum number of isPrepared calls to be made at once
+	 */
+	PreparedWaiter(IdsClient client, int maxConcurrentPolls) {
+		this.client = client;
+		scheduler = new ScheduledThreadPoolExecutor(maxConcurrentPolls,
+				new DaemonThreadFactory("IdsClient prepared poller"));
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Stop polling and fail all outstanding futures
+	 */
+	void close() {
+		scheduler.shutdownNow();
+		for (Wait wait : waits.values()) {
+			wait.completeExceptionally(new InternalException("IdsClient has been closed"));
+		}
+	}
+
+	CompletableFuture<String> waitFor(String preparedId) {
+		Wait[] created = new Wait[1];
+		Wait wait = waits.compute(preparedId, (k, w) -> {
+			if (w == null) {
+				w = created[0] = new Wait(k);
+			}
+			w.waiters++;
+			return w;
+		});
+
+		/* Completed as the wait is, with the same exception, but cancelled alone */
+		CompletableFuture<String> future = new CompletableFuture<>();
+		wait.future.whenComplete((result, e) -> {
+			if (e != null) {
+				future.completeExceptionally(e);
+			} else {
+				future.complete(result);
+			}
+		});
+		future.whenComplete((result, e) -> {
+			if (future.isCancelled()) {
+				wait.cancelled();
+			}
+		});
+
+		if (created[0] != null) {
+			/* Poll at once in case the data are already prepared */
+			try {
+				scheduler.execute(wait);
+			} catch (RejectedExecutionException e) {
+				wait.completeExceptionally(new InternalException("IdsClient has been closed"));
+			}
+		}
+		return future;
+	}
+
+}
@@ -0,0 +1,24 @@
+package org.icatproject.ids.client;
+
+/**
+ * Receives progress reports from a {@link BulkRestore}.
+ */
+public interface RestoreListener {
+
+	/**
+	 * Called from the thread of the BulkRestore whenever a batch has been
+	 * submitted, has come online or has failed. It should return quickly so as
+	 * not to hold up the restore.
+	 *
+	 * @param batches
+	 *            the total number of batches
+	 * @param submitted
+	 *            the number of batches submitted and not yet online
+	 * @param online
+	 *            the number of batches online
+	 * @param failed
+	 *            the number of batches which have failed
+	 */
+	void progress(int batches, int submitted, int online, int failed);
+
+}
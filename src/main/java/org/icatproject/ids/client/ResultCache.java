@@ -0,0 +1,130 @@
+package org.icatproject.ids.client;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the results of calls, each entry having its own time to
+ * live.
+ *
+ * <p>
+ * Each entry has a weight, which for a result keyed on a DataSelection is the
+ * number of ids in the selection, and the least recently used entries are
+ * evicted to keep the total weight within the maximum. Entries are grouped by
+ * the name of the call so that all the results of one call can be
+ * invalidated together.
+ * </p>
+ *
+ * <p>
+ * A result fetched while a change was being made might predate the change,
+ * so the caller notes the generation of the cache before fetching a result
+ * and the result is only stored if there has been no invalidation since.
+ * </p>
+ */
+class ResultCache {
+
+	private static class Entry {
+
+		private final long expires;
+		private final Object value;
+		private final long weight;
+
+		Entry(Object value, long expires, long weight) {
+			this.value = value;
+			this.expires = expires;
+			this.weight = weight;
+		}
+
+	}
+
+	/** Incremented by each invalidation */
+	private long generation;
+
+	private AtomicLong hits = new AtomicLong();
+
+	private LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long maxWeight;
+
+	private AtomicLong misses = new AtomicLong();
+
+	private long weight;
+
+	ResultCache(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Return the cached value or null if there is none or it has expired
+	 */
+	synchronized Object get(String call, String key) {
+		String fullKey = call + '\0' + key;
+		Entry entry = map.get(fullKey);
+		if (entry != null && entry.expires - System.nanoTime() <= 0) {
+			map.remove(fullKey);
+			weight -= entry.weight;
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Return the generation to pass to put for a result about to be fetched
+	 */
+	synchronized long getGeneration() {
+		return generation;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Remove all the results of a call
+	 */
+	synchronized void invalidate(String call) {
+		generation++;
+		String prefix = call + '\0';
+		for (Iterator<Map.Entry<String, Entry>> iter = map.entrySet().iterator(); iter.hasNext();) {
+			Map.Entry<String, Entry> mapEntry = iter.next();
+			if (mapEntry.getKey().startsWith(prefix)) {
+				weight -= mapEntry.getValue().weight;
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Store a value unless the ttl is not positive, the entry is too heavy to
+	 * be held or the cache has been invalidated since the given generation
+	 */
+	synchronized void put(String call, String key, Object value, long ttlMillis, long entryWeight,
+			long generation) {
+		if (ttlMillis <= 0 || entryWeight > maxWeight || generation != this.generation) {
+			return;
+		}
+		Entry old = map.put(call + '\0' + key,
+				new Entry(value, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis), entryWeight));
+		if (old != null) {
+			weight -= old.weight;
+		}
+		weight += entryWeight;
+		for (Iterator<Map.Entry<String, Entry>> iter = map.entrySet().iterator(); weight > maxWeight;) {
+			weight -= iter.next().getValue().weight;
+			iter.remove();
+		}
+	}
+
+}
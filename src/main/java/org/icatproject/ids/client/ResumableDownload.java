@@ -0,0 +1,197 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Downloads the data identified by a getData URI into a file, surviving both
+ * dropped connections and restarts of the calling process.
+ *
+ * <p>
+ * Progress is recorded in a small checkpoint file alongside the target, named
+ * by appending {@value #CHECKPOINT_SUFFIX} to the target file name. It holds
+ * a key identifying the data, the total length if known and the number of
+ * bytes known to be safely on disk. When a download starts and a checkpoint
+ * for the same key is found the existing file is truncated to the recorded
+ * offset and the transfer continues from there using a "Range: bytes=n-"
+ * header. The same is done after a failure of the connection, waiting before
+ * each attempt with an exponential backoff. The checkpoint is deleted once the
+ * download is complete.
+ * </p>
+ */
+class ResumableDownload {
+
+	static final String CHECKPOINT_SUFFIX = ".idsresume";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The offset is written to the checkpoint after this many bytes */
+	private static final long CHECKPOINT_INTERVAL = 64 * 1024 * 1024;
+
+	private static final long INITIAL_BACKOFF_MILLIS = 1000;
+
+	private static final long MAX_BACKOFF_MILLIS = 60000;
+
+	private Path checkpoint;
+	private IdsClient client;
+	private String key;
+	private long length = -1;
+	private int maxRetries;
+	private long offset;
+	private Path target;
+	private URI uri;
+
+	/**
+	 * @param key
+	 *            identifies the data independently of the sessionId so that a
+	 *            checkpoint is only used to resume the same download
+	 */
+	ResumableDownload(IdsClient client, URI uri, String key, Path target, int maxRetries) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("maxRetries must not be negative");
+		}
+		this.client = client;
+		this.uri = uri;
+		this.key = key;
+		this.target = target;
+		this.maxRetries = maxRetries;
+		checkpoint = target.resolveSibling(target.getFileName() + CHECKPOINT_SUFFIX);
+	}
+
+	/**
+	 * Perform the download
+	 *
+	 * @return the number of bytes in the file
+	 */
+	long run() throws NotImplementedException, BadRequestException, InsufficientPrivilegesException,
+			NotFoundException, InternalException, DataNotOnlineException {
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			readCheckpoint();
+			if (length >= 0 && offset == length && channel.size() == length) {
+				/* The process stopped after the last checkpoint but before deleting it */
+				Files.deleteIfExists(checkpoint);
+				return length;
+			}
+			if (offset > channel.size()) {
+				offset = 0;
+			}
+			channel.truncate(offset);
+
+			int failures = 0;
+			long backoff = INITIAL_BACKOFF_MILLIS;
+			while (true) {
+				long start = offset;
+				try (HttpInputStream in = client.openDataStream(uri, offset)) {
+					if (offset != 0 && in.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+						throw new InternalException("Server did not honour request for data from offset " + offset);
+					}
+					long contentLength = in.getContentLength();
+					if (contentLength >= 0) {
+						if (length >= 0 && length != offset + contentLength) {
+							/* The data have changed since the checkpoint was written */
+							offset = 0;
+							length = -1;
+							channel.truncate(0);
+							continue;
+						}
+						length = offset + contentLength;
+					}
+					copy(in, channel);
+					if (length >= 0 && offset != length) {
+						throw new IOException("Data ended at " + offset + " but " + length + " bytes were expected");
+					}
+					Files.deleteIfExists(checkpoint);
+					return offset;
+				} catch (IOException e) {
+					if (offset > start) {
+						failures = 0;
+						backoff = INITIAL_BACKOFF_MILLIS;
+					}
+					if (++failures > maxRetries) {
+						throw new InternalException(
+								e.getClass() + " " + e.getMessage() + " after " + offset + " bytes");
+					}
+					try {
+						Thread.sleep(backoff);
+					} catch (InterruptedException e1) {
+						Thread.currentThread().interrupt();
+						throw new InternalException("Interrupted while waiting to resume download at " + offset);
+					}
+					backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+				}
+			}
+		} catch (IOException e) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+	}
+
+	private void copy(InputStream in, FileChannel channel) throws IOException {
+		byte[] bytes = new byte[BUFFER_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		long lastCheckpoint = offset;
+		try {
+			int n;
+			while ((n = in.read(bytes)) >= 0) {
+				buffer.clear().limit(n);
+				while (buffer.hasRemaining()) {
+					offset += channel.write(buffer, offset);
+				}
+				if (offset - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+					writeCheckpoint(channel);
+					lastCheckpoint = offset;
+				}
+			}
+		} finally {
+			if (offset != lastCheckpoint) {
+				writeCheckpoint(channel);
+			}
+		}
+	}
+
+	private void readCheckpoint() throws IOException {
+		if (Files.exists(checkpoint)) {
+			Properties props = new Properties();
+			try (InputStream in = Files.newInputStream(checkpoint)) {
+				props.load(in);
+			}
+			if (key.equals(props.getProperty("key"))) {
+				try {
+					offset = Long.parseLong(props.getProperty("offset", "0"));
+					length = Long.parseLong(props.getProperty("length", "-1"));
+				} catch (NumberFormatException e) {
+					offset = 0;
+					length = -1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record the current offset once the bytes before it are on disk. The
+	 * checkpoint is replaced atomically so that a crash never leaves a
+	 * partially written one.
+	 */
+	private void writeCheckpoint(FileChannel channel) throws IOException {
+		channel.force(false);
+		Properties props = new Properties();
+		props.setProperty("key", key);
+		props.setProperty("offset", Long.toString(offset));
+		props.setProperty("length", Long.toString(length));
+		Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp)) {
+			props.store(out, "IDS download checkpoint for " + target.getFileName());
+		}
+		Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
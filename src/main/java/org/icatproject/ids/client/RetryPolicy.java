@@ -0,0 +1,301 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Decides which requests of an {@link IdsClient} to repeat after a transient
+ * failure, and when, and stops requests being sent at all while the IDS
+ * appears to be down.
+ *
+ * <p>
+ * Only requests which read, made with GET, are repeated, which covers calls
+ * such as getStatus, getSize, isPrepared, getDatafileIds, ping and the
+ * request of a getData call. A failure is transient if no response was
+ * received or the response has status 429, 502 or 504, or 503 without the
+ * error body of the IDS itself, as the IDS reports DataNotOnlineException with
+ * a 503. Before attempt n+1 the client waits a random time of up to
+ * initialBackoffMillis &times; 2<sup>n</sup>, limited to maxBackoffMillis, so
+ * that clients failing together do not retry together. If the response has a
+ * Retry-After header that time is waited instead, unless it is longer than
+ * maxBackoffMillis in which case the failure is reported at once.
+ * </p>
+ *
+ * <p>
+ * Transient failures of any request also count towards a circuit breaker.
+ * After failureThreshold in a row it opens, and for the next openMillis every
+ * request fails at once with an InternalException rather than being sent.
+ * Then one request is let through to test the IDS: if it succeeds the circuit
+ * closes again and if not it stays open for another openMillis. Any response
+ * other than a transient failure counts as a success.
+ * </p>
+ *
+ * <p>
+ * A policy holds the state of the circuit breaker for one IDS so it should
+ * not be shared by clients of different servers.
+ * </p>
+ */
+public class RetryPolicy {
+
+	/**
+	 * Makes one attempt to send a request
+	 */
+	interface Attempt {
+		CloseableHttpResponse send(HttpUriRequest request) throws IOException;
+	}
+
+	/**
+	 * Thrown in place of sending a request while the circuit is open
+	 */
+	@SuppressWarnings("serial")
+	static class CircuitOpenException extends IOException {
+
+		CircuitOpenException(String msg) {
+			super(msg);
+		}
+
+	}
+
+	private int failures;
+
+	private int failureThreshold = 5;
+
+	private long initialBackoffMillis = 100;
+
+	private long maxBackoffMillis = 10000;
+
+	private int maxRetries = 3;
+
+	private long openMillis = 30000;
+
+	private long openUntil;
+
+	private boolean probing;
+
+	/**
+	 * Create a policy with the defaults: three retries starting from a
+	 * backoff of 100 ms up to ten seconds, and a circuit which opens for 30
+	 * seconds after five failures in a row.
+	 */
+	public RetryPolicy() {
+	}
+
+	/**
+	 * @param failureThreshold
+	 *            the number of transient failures in a row which opens the
+	 *            circuit
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public RetryPolicy setFailureThreshold(int failureThreshold) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("failureThreshold must be at least 1");
+		}
+		this.failureThreshold = failureThreshold;
+		return this;
+	}
+
+	/**
+	 * @param initialBackoffMillis
+	 *            the upper limit of the wait before the first retry, which
+	 *            doubles for each retry after that
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public RetryPolicy setInitialBackoffMillis(long initialBackoffMillis) {
+		if (initialBackoffMillis < 0) {
+			throw new IllegalArgumentException("initialBackoffMillis must not be negative");
+		}
+		this.initialBackoffMillis = initialBackoffMillis;
+		return this;
+	}
+
+	/**
+	 * @param maxBackoffMillis
+	 *            the longest wait before any retry
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public RetryPolicy setMaxBackoffMillis(long maxBackoffMillis) {
+		if (maxBackoffMillis < 0) {
+			throw new IllegalArgumentException("maxBackoffMillis must not be negative");
+		}
+		this.maxBackoffMillis = maxBackoffMillis;
+		return this;
+	}
+
+	/**
+	 * @param maxRetries
+	 *            the number of times a request may be repeated, or zero to
+	 *            use only the circuit breaker
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public RetryPolicy setMaxRetries(int maxRetries) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("maxRetries must not be negative");
+		}
+		this.maxRetries = maxRetries;
+		return this;
+	}
+
+	/**
+	 * @param openMillis
+	 *            the time for which requests fail at once when the circuit
+	 *            has opened
+	 *
+	 * @return itself to allow chaining of setXXX calls
+	 */
+	public RetryPolicy setOpenMillis(long openMillis) {
+		if (openMillis < 0) {
+			throw new IllegalArgumentException("openMillis must not be negative");
+		}
+		this.openMillis = openMillis;
+		return this;
+	}
+
+	/**
+	 * Send a request, repeating it if allowed
+	 *
+	 * @return the first response which is not a transient failure or, if the
+	 *         retries are exhausted, the last response
+	 */
+	CloseableHttpResponse execute(HttpUriRequest request, Attempt attempt) throws IOException {
+		boolean repeatable = request.getMethod().equals("GET");
+		for (int retries = 0;; retries++) {
+			acquire();
+			CloseableHttpResponse response;
+			try {
+				response = attempt.send(request);
+			} catch (RuntimeException e) {
+				released();
+				throw e;
+			} catch (IOException e) {
+				failed();
+				if (!repeatable || retries >= maxRetries) {
+					throw e;
+				}
+				sleep(getBackoff(retries));
+				continue;
+			}
+
+			if (!isTransient(response)) {
+				succeeded();
+				return response;
+			}
+			failed();
+			long wait = getRetryAfter(response);
+			if (wait < 0) {
+				wait = getBackoff(retries);
+			}
+			if (!repeatable || retries >= maxRetries || wait > maxBackoffMillis) {
+				return response;
+			}
+			EntityUtils.consumeQuietly(response.getEntity());
+			response.close();
+			sleep(wait);
+		}
+	}
+
+	/**
+	 * Return a random wait before retry n + 1
+	 */
+	long getBackoff(int n) {
+		long ceiling = initialBackoffMillis << Math.min(n, 30);
+		if (ceiling < 0 || ceiling > maxBackoffMillis) {
+			ceiling = maxBackoffMillis;
+		}
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/**
+	 * Return the wait requested by a Retry-After header, which may be in
+	 * seconds or a date, or -1 if there is none or it is not understood
+	 */
+	static long getRetryAfter(CloseableHttpResponse response) {
+		Header header = response.getFirstHeader("Retry-After");
+		if (header == null) {
+			return -1;
+		}
+		String value = header.getValue().trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			Date date = DateUtils.parseDate(value);
+			return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+		}
+	}
+
+	private synchronized void acquire() throws CircuitOpenException {
+		if (failures < failureThreshold) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now < openUntil || probing) {
+			throw new CircuitOpenException("The IDS is unavailable after " + failures
+					+ " failures in a row so the request was not sent");
+		}
+		probing = true;
+	}
+
+	private synchronized void failed() {
+		if (++failures >= failureThreshold) {
+			openUntil = System.currentTimeMillis() + openMillis;
+		}
+		probing = false;
+	}
+
+	/**
+	 * Whether the response is a transient failure. The body of a 503 is
+	 * buffered, as it is small, so that it may both be examined here and read
+	 * again by the caller.
+	 */
+	private static boolean isTransient(CloseableHttpResponse response) throws IOException {
+		int rc = response.getStatusLine().getStatusCode();
+		if (rc == 429 || rc == 502 || rc == 504) {
+			return true;
+		}
+		if (rc != 503) {
+			return false;
+		}
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return true;
+		}
+		entity = new BufferedHttpEntity(entity);
+		response.setEntity(entity);
+		return !EntityUtils.toString(entity).contains("\"code\"");
+	}
+
+	/**
+	 * Neither success nor failure, but let another request test the IDS
+	 */
+	private synchronized void released() {
+		probing = false;
+	}
+
+	private static void sleep(long millis) throws InterruptedIOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry");
+		}
+	}
+
+	private synchronized void succeeded() {
+		failures = 0;
+		probing = false;
+	}
+
+}
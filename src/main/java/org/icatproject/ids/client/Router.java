@@ -0,0 +1,314 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A {@link Transport} which spreads the requests of one IdsClient over
+ * several IDS servers sharing the same storage.
+ *
+ * <p>
+ * Each server is pinged in the background to find whether it is healthy, and
+ * a server which fails to respond to a request is taken to be unhealthy until
+ * it next answers a ping. Each request goes to the healthy server with the
+ * lowest product of its average latency and one more than the number of
+ * requests in progress on it, so that a fast server is preferred until it
+ * becomes busy. A request is in progress until its response is closed, as
+ * the body of a getData may take far longer to arrive than the headers. The
+ * latency is a moving average of the time to the response headers of pings
+ * and other GET requests. Requests with a preparedId are sent to the server
+ * which issued it, as only that server may know it.
+ * </p>
+ *
+ * <p>
+ * Requests are built by the client for the first server and the URI is
+ * rewritten here for the server chosen.
+ * </p>
+ */
+class Router implements Transport {
+
+	/**
+	 * A copy of a response which keeps its request counted as outstanding on
+	 * the server until it is closed
+	 */
+	private static class Response extends BasicHttpResponse implements CloseableHttpResponse {
+
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private final CloseableHttpResponse response;
+		private final Server server;
+
+		Response(CloseableHttpResponse response, Server server) {
+			super(response.getStatusLine());
+			this.response = response;
+			this.server = server;
+			setHeaders(response.getAllHeaders());
+			setEntity(response.getEntity());
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				response.close();
+			} finally {
+				if (closed.compareAndSet(false, true)) {
+					server.outstanding.decrementAndGet();
+				}
+			}
+		}
+
+	}
+
+	private static class Server {
+
+		private volatile boolean healthy = true;
+		private volatile long latencyNanos;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private final String prefix;
+
+		Server(String prefix) {
+			this.prefix = prefix;
+		}
+
+		/**
+		 * Each new measurement contributes a fifth of the average
+		 */
+		void recordLatency(long nanos) {
+			long average = latencyNanos;
+			latencyNanos = average == 0 ? nanos : average + (nanos - average) / 5;
+		}
+
+		long score() {
+			return (latencyNanos + 1) * (outstanding.get() + 1);
+		}
+
+	}
+
+	private static final int MAX_PINNED = 10000;
+
+	private ScheduledExecutorService healthChecker;
+
+	/** The server which issued each recent preparedId */
+	private Map<String, Server> pinned = new LinkedHashMap<String, Server>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Server> eldest) {
+			return size() > MAX_PINNED;
+		}
+
+	};
+
+	private List<Server> servers = new ArrayList<>();
+
+	private Transport transport;
+
+	/**
+	 * @param baseUrls
+	 *            the URL of the IDS resources on each server, ending in
+	 *            "ids/", the first being the one for which requests are built
+	 * @param transport
+	 *            the transport which sends the requests
+	 * @param healthCheckSeconds
+	 *            the interval between pings of each server
+	 */
+	Router(List<URL> baseUrls, Transport transport, int healthCheckSeconds) {
+		if (baseUrls.isEmpty()) {
+			throw new IllegalArgumentException("At least one IDS URL is needed");
+		}
+		for (URL baseUrl : baseUrls) {
+			servers.add(new Server(baseUrl.toString()));
+		}
+		this.transport = transport;
+		healthChecker = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("IdsClient health check"));
+		healthChecker.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				for (Server server : servers) {
+					ping(server);
+				}
+			}
+		}, 0, healthCheckSeconds, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void close() {
+		healthChecker.shutdownNow();
+		transport.close();
+	}
+
+	@Override
+	public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+		URI uri = request.getURI();
+		String target = uri.toString();
+		Server from = null;
+		for (Server server : servers) {
+			if (target.startsWith(server.prefix)) {
+				from = server;
+				break;
+			}
+		}
+		if (from == null || !(request instanceof HttpRequestBase)) {
+			return transport.execute(request);
+		}
+
+		Server to = null;
+		String preparedId = getPreparedId(uri);
+		if (preparedId != null) {
+			synchronized (pinned) {
+				to = pinned.get(preparedId);
+			}
+		}
+		if (to == null) {
+			to = choose();
+		}
+		if (to != from) {
+			((HttpRequestBase) request).setURI(URI.create(to.prefix + target.substring(from.prefix.length())));
+		}
+
+		to.outstanding.incrementAndGet();
+		long start = System.nanoTime();
+		boolean sent = false;
+		try {
+			CloseableHttpResponse response = transport.execute(request);
+			if (request.getMethod().equals("GET")) {
+				to.recordLatency(System.nanoTime() - start);
+			}
+			sent = true;
+			return new Response(response, to);
+		} catch (IOException e) {
+			/* A request aborted by a Hedger says nothing about the server */
+			if (!((HttpRequestBase) request).isAborted()) {
+				to.healthy = false;
+			}
+			throw e;
+		} finally {
+			if (!sent) {
+				to.outstanding.decrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public int getMaxConcurrency() {
+		return transport.getMaxConcurrency();
+	}
+
+	/**
+	 * @return the number of requests in progress on the server, or -1 if it
+	 *         is not one of those routed to
+	 */
+	int getOutstanding(URL baseUrl) {
+		for (Server server : servers) {
+			if (server.prefix.equals(baseUrl.toString())) {
+				return server.outstanding.get();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Send later requests for the preparedId to the server to which the
+	 * prepareData request was sent
+	 *
+	 * @param uri
+	 *            the URI to which the prepareData request was sent
+	 */
+	void pin(String preparedId, URI uri) {
+		String target = uri.toString();
+		for (Server server : servers) {
+			if (target.startsWith(server.prefix)) {
+				synchronized (pinned) {
+					pinned.put(preparedId, server);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Rewrite a URL built for the first server to refer to the server which
+	 * issued the preparedId, if known.
+	 */
+	URL pinnedUrl(String preparedId, URL url) {
+		Server to;
+		synchronized (pinned) {
+			to = pinned.get(preparedId);
+		}
+		String target = url.toString();
+		Server from = servers.get(0);
+		if (to == null || to == from || !target.startsWith(from.prefix)) {
+			return url;
+		}
+		try {
+			return new URL(to.prefix + target.substring(from.prefix.length()));
+		} catch (IOException e) {
+			return url;
+		}
+	}
+
+	private Server choose() {
+		Server best = null;
+		for (Server server : servers) {
+			if (server.healthy && (best == null || server.score() < best.score())) {
+				best = server;
+			}
+		}
+		if (best == null) {
+			/* None is known to be healthy so try the least bad */
+			for (Server server : servers) {
+				if (best == null || server.score() < best.score()) {
+					best = server;
+				}
+			}
+		}
+		return best;
+	}
+
+	private static String getPreparedId(URI uri) {
+		if (uri.getRawQuery() == null) {
+			return null;
+		}
+		for (NameValuePair pair : URLEncodedUtils.parse(uri, "UTF-8")) {
+			if (pair.getName().equals("preparedId")) {
+				return pair.getValue();
+			}
+		}
+		return null;
+	}
+
+	private void ping(Server server) {
+		long start = System.nanoTime();
+		try (CloseableHttpResponse response = transport.execute(new HttpGet(server.prefix + "ping"))) {
+			boolean ok = response.getStatusLine().getStatusCode() == 200 && response.getEntity() != null
+					&& EntityUtils.toString(response.getEntity()).equals("IdsOK");
+			if (ok) {
+				server.recordLatency(System.nanoTime() - start);
+			}
+			server.healthy = ok;
+		} catch (IOException | RuntimeException e) {
+			server.healthy = false;
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.icatproject.ids.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares one call to the server among all the threads which ask for the same
+ * result while it is in progress.
+ *
+ * <p>
+ * The first thread to ask makes the call and the others wait for its result,
+ * or its exception, rather than making their own. Once the call has finished
+ * the next thread to ask makes a new one. As with the {@link ResultCache}
+ * calls are grouped by name so that, when a change is made, the calls of one
+ * name still in progress can be forgotten. Threads asking after that make a
+ * new call rather than share one which may have started before the change.
+ * </p>
+ */
+class SingleFlight {
+
+	/**
+	 * A call whose result may be shared
+	 */
+	interface Call<T> {
+		T call() throws IdsException;
+	}
+
+	private final ConcurrentMap<String, ConcurrentMap<String, CompletableFuture<Object>>> groups =
+			new ConcurrentHashMap<>();
+
+	private final LongAdder shared = new LongAdder();
+
+	/**
+	 * Make the call, or wait for the identical one in progress
+	 *
+	 * @param name
+	 *            the name of the call, such as getStatus
+	 * @param key
+	 *            identifies the arguments of the call
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T execute(String name, String key, Call<T> call) throws IdsException {
+		ConcurrentMap<String, CompletableFuture<Object>> group = groups.computeIfAbsent(name,
+				k -> new ConcurrentHashMap<>());
+		CompletableFuture<Object> mine = new CompletableFuture<>();
+		CompletableFuture<Object> existing = group.putIfAbsent(key, mine);
+		if (existing != null) {
+			shared.increment();
+			try {
+				return (T) existing.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IdsException) {
+					throw (IdsException) cause;
+				} else if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new InternalException(cause.getClass() + " " + cause.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalException("Interrupted while waiting for the result of " + name);
+			}
+		}
+
+		try {
+			T result = call.call();
+			mine.complete(result);
+			return result;
+		} catch (IdsException | RuntimeException | Error e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			group.remove(key, mine);
+		}
+	}
+
+	/**
+	 * @return the number of calls which shared the result of another
+	 */
+	long getShared() {
+		return shared.sum();
+	}
+
+	/**
+	 * Make the next calls of this name afresh even if others are in progress
+	 */
+	void invalidate(String name) {
+		groups.remove(name);
+	}
+
+}
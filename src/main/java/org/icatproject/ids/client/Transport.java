@@ -0,0 +1,59 @@
+package org.icatproject.ids.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Sends the requests of an {@link IdsClient} to the IDS.
+ *
+ * <p>
+ * The client builds each request, and reads each response, using the
+ * message classes of Apache HttpCore whatever the transport, so an
+ * implementation only has to convert them to and from those of the HTTP
+ * library it uses. The default is an {@link ApacheTransport} using pooled
+ * HTTP/1.1 connections. An HTTP/2 transport in which many concurrent
+ * requests share one connection is available for Java 11 and later in the
+ * separate ids.client.http2 artifact.
+ * </p>
+ */
+public interface Transport extends Closeable {
+
+	/**
+	 * Send a request and return its response once the status and headers
+	 * have arrived. The body of the response is read from its entity, if
+	 * any, and closing the response releases whatever is held for it. If the
+	 * body has not been read to the end closing it should abandon the rest
+	 * rather than wait for it.
+	 *
+	 * @param request
+	 *            the request, whose entity, if any, should be sent with its
+	 *            writeTo method
+	 *
+	 * @return the response
+	 *
+	 * @throws IOException
+	 *             if the request could not be sent or no response was
+	 *             received
+	 */
+	CloseableHttpResponse execute(HttpUriRequest request) throws IOException;
+
+	/**
+	 * Return the number of requests to the IDS which can usefully be in
+	 * progress at once. This sizes the pool of threads with which the client
+	 * makes requests on behalf of a single call.
+	 *
+	 * @return the number of requests
+	 */
+	int getMaxConcurrency();
+
+	/**
+	 * Release the connections and threads held by the transport. This is
+	 * called when the client is closed.
+	 */
+	@Override
+	void close();
+
+}
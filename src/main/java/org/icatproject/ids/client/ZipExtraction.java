@@ -0,0 +1,271 @@
+package org.icatproject.ids.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Unpacks a zip stream from getData into a directory as it arrives.
+ *
+ * <p>
+ * The stream is decoded on the calling thread. The data of each entry are
+ * read into buffers which are handed to a pool of writer threads, each buffer
+ * being written at its own position in the file, so that slow storage does
+ * not stall the reading of the network. The number of buffers is fixed so
+ * that reading waits once that many are waiting to be written. A file is
+ * closed, and reported to the listener, by whichever thread completes the
+ * last write to it.
+ * </p>
+ *
+ * <p>
+ * Entries whose names would place them outside the target directory, such as
+ * those containing "..", cause the extraction to fail.
+ * </p>
+ */
+class ZipExtraction {
+
+	private class Entry {
+
+		/** Set by the reader if the data of the entry could not all be read */
+		private volatile boolean abandoned;
+		private FileChannel channel;
+		private final Path path;
+		private final AtomicInteger pending = new AtomicInteger(1);
+		private final AtomicLong size = new AtomicLong();
+		private final long time;
+
+		Entry(Path path, long time) {
+			this.path = path;
+			this.time = time;
+		}
+
+		synchronized FileChannel getChannel() throws IOException {
+			if (channel == null) {
+				channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+			}
+			return channel;
+		}
+
+		/**
+		 * Called once by the reader when it has finished with the entry and
+		 * once by each write. The last call closes the file which is only
+		 * reported if it is complete.
+		 */
+		void release() throws IOException {
+			if (pending.decrementAndGet() == 0) {
+				if (abandoned || error.get() != null) {
+					synchronized (this) {
+						if (channel != null) {
+							channel.close();
+						}
+					}
+					return;
+				}
+				getChannel().close();
+				if (time != -1) {
+					Files.setLastModifiedTime(path, FileTime.fromMillis(time));
+				}
+				long n = size.get();
+				long totalFiles = files.incrementAndGet();
+				long totalBytes = bytes.addAndGet(n);
+				if (listener != null) {
+					listener.extracted(path, totalFiles, totalBytes);
+				}
+			}
+		}
+
+	}
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	/** Number of buffers that may be waiting to be written */
+	private static final int BUFFERS = 32;
+
+	/** Number of buffers created, only used by the reading thread */
+	private int allocated;
+
+	private AtomicLong bytes = new AtomicLong();
+
+	private AtomicReference<Throwable> error = new AtomicReference<>();
+
+	private AtomicLong files = new AtomicLong();
+
+	private BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(BUFFERS);
+
+	private ExtractListener listener;
+
+	private Path targetDir;
+
+	private int writers;
+
+	/**
+	 * @param listener
+	 *            to be told of each file written, may be null
+	 */
+	ZipExtraction(Path targetDir, int writers, ExtractListener listener) {
+		if (writers < 1) {
+			throw new IllegalArgumentException("writers must be at least 1");
+		}
+		this.targetDir = targetDir.toAbsolutePath().normalize();
+		this.writers = writers;
+		this.listener = listener;
+	}
+
+	/**
+	 * Extract the zip from the stream which is closed on return.
+	 *
+	 * @return the number of bytes written
+	 */
+	long run(HttpInputStream in) throws InternalException {
+		ExecutorService pool = Executors.newFixedThreadPool(writers, new DaemonThreadFactory("IdsClient zip writer"));
+		try (HttpInputStream stream = in) {
+			Files.createDirectories(targetDir);
+			Set<Path> dirs = new HashSet<>();
+			ZipInputStream zip = new ZipInputStream(stream);
+			ZipEntry zipEntry;
+			boolean any = false;
+			while (error.get() == null && (zipEntry = zip.getNextEntry()) != null) {
+				any = true;
+				Path path = resolve(zipEntry.getName());
+				if (zipEntry.isDirectory()) {
+					if (dirs.add(path)) {
+						Files.createDirectories(path);
+					}
+					continue;
+				}
+				Path parent = path.getParent();
+				if (dirs.add(parent)) {
+					Files.createDirectories(parent);
+				}
+				Entry entry = new Entry(path, zipEntry.getTime());
+				long position = 0;
+				boolean read = false;
+				try {
+					while (error.get() == null) {
+						byte[] buffer = takeBuffer();
+						int n = fill(zip, buffer);
+						if (n == 0) {
+							free.add(buffer);
+							break;
+						}
+						submit(pool, entry, buffer, n, position);
+						position += n;
+					}
+					read = true;
+				} finally {
+					/* Otherwise the file would be left open if reading failed part way */
+					entry.abandoned = !read;
+					entry.release();
+				}
+			}
+			if (!any && error.get() == null) {
+				throw new InternalException("The data returned are not a zip file");
+			}
+			/* Read the central directory so that the connection may be reused */
+			byte[] skip = new byte[8192];
+			while (error.get() == null && stream.read(skip) >= 0) {
+				// Discard it
+			}
+		} catch (IOException | InternalException | RuntimeException e) {
+			error.compareAndSet(null, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			error.compareAndSet(null, e);
+		} finally {
+			pool.shutdown();
+			try {
+				if (!pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+					pool.shutdownNow();
+				}
+			} catch (InterruptedException e) {
+				pool.shutdownNow();
+				Thread.currentThread().interrupt();
+				error.compareAndSet(null, e);
+			}
+		}
+		Throwable e = error.get();
+		if (e instanceof InternalException) {
+			throw (InternalException) e;
+		} else if (e != null) {
+			throw new InternalException(e.getClass() + " " + e.getMessage());
+		}
+		return bytes.get();
+	}
+
+	/**
+	 * Read until the buffer is full or the entry ends
+	 */
+	private static int fill(InputStream in, byte[] buffer) throws IOException {
+		int n = 0;
+		int r;
+		while (n < buffer.length && (r = in.read(buffer, n, buffer.length - n)) >= 0) {
+			n += r;
+		}
+		return n;
+	}
+
+	private Path resolve(String name) throws InternalException {
+		Path path = targetDir.resolve(name).normalize();
+		if (!path.startsWith(targetDir) || path.equals(targetDir)) {
+			throw new InternalException("Zip entry " + name + " would be written outside " + targetDir);
+		}
+		return path;
+	}
+
+	private void submit(ExecutorService pool, final Entry entry, final byte[] buffer, final int n,
+			final long position) {
+		entry.pending.incrementAndGet();
+		pool.execute(() -> {
+			try {
+				if (error.get() == null) {
+					ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+					FileChannel channel = entry.getChannel();
+					long p = position;
+					while (bb.hasRemaining()) {
+						p += channel.write(bb, p);
+					}
+					entry.size.addAndGet(n);
+				}
+			} catch (IOException | RuntimeException e) {
+				error.compareAndSet(null, e);
+			} finally {
+				free.add(buffer);
+				try {
+					entry.release();
+				} catch (IOException | RuntimeException e) {
+					error.compareAndSet(null, e);
+				}
+			}
+		});
+	}
+
+	private byte[] takeBuffer() throws InterruptedException {
+		byte[] buffer = free.poll();
+		if (buffer == null) {
+			if (allocated < BUFFERS) {
+				allocated++;
+				return new byte[BUFFER_SIZE];
+			}
+			buffer = free.take();
+		}
+		return buffer;
+	}
+}
@@ -0,0 +1,107 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Calls of the AsyncIdsClient made to an {@link IdsStub}
+ */
+public class AsyncIdsClientTest {
+
+	private AsyncIdsClient client;
+
+	private byte[] data;
+
+	private IdsStub stub;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		data = new byte[500000];
+		new Random(3).nextBytes(data);
+		stub.addDatafile(1, 10, 100, "big", data);
+		client = new AsyncIdsClient(stub.getUrl());
+	}
+
+	@After
+	public void after() {
+		client.close();
+		stub.close();
+	}
+
+	@Test
+	public void exceptionTest() throws Exception {
+		expect(NotFoundException.class, client.getSize("s", new DataSelection().addDatafile(999)));
+		expect(BadRequestException.class, client.getStatus("s", new DataSelection()));
+		expect(NotImplementedException.class, client.getLink("s", 100));
+		stub.archive(10);
+		expect(DataNotOnlineException.class,
+				client.getData("s", new DataSelection().addDatafile(100), Flag.NONE, 0, buffer -> {
+				}));
+	}
+
+	@Test
+	public void getDataTest() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataConsumer dataConsumer = buffer -> {
+			while (buffer.hasRemaining()) {
+				out.write(buffer.get());
+			}
+		};
+		DataSelection dataSelection = new DataSelection().addDatafile(100);
+		assertEquals(data.length, (long) client.getData("s", dataSelection, Flag.NONE, 0, dataConsumer).get());
+		assertArrayEquals(data, out.toByteArray());
+
+		out.reset();
+		String preparedId = client.prepareData("s", dataSelection, Flag.NONE).get();
+		assertEquals(data.length - 1000, (long) client.getData(preparedId, 1000, dataConsumer).get());
+		assertArrayEquals(Arrays.copyOfRange(data, 1000, data.length), out.toByteArray());
+	}
+
+	@Test
+	public void putTest() throws Exception {
+		Path file = Files.createTempFile("AsyncIdsClientTest", null);
+		try {
+			Files.write(file, data);
+			long id = client.put("s", file, "copy", 10, 1, null, null, null, null).get();
+			assertEquals(data.length, (long) client.getSize("s", new DataSelection().addDatafile(id)).get());
+
+			stub.setCorrupt(true);
+			try {
+				client.put("s", file, "corrupt", 10, 1, null, null, null, null).get();
+				fail("Expected InternalException");
+			} catch (ExecutionException e) {
+				assertEquals(InternalException.class, e.getCause().getClass());
+				assertTrue(e.getCause().getMessage().contains("checksum"));
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private static void expect(Class<? extends IdsException> expected, CompletableFuture<?> future)
+			throws InterruptedException {
+		try {
+			future.get();
+			fail("Expected " + expected.getSimpleName());
+		} catch (ExecutionException e) {
+			assertEquals(expected, e.getCause().getClass());
+		}
+	}
+
+}
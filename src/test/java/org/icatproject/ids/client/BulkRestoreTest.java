@@ -0,0 +1,120 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.icatproject.ids.client.BulkRestore.Batch;
+import org.icatproject.ids.client.IdsClient.Status;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BulkRestoreTest {
+
+	private IdsClient client;
+
+	private IdsStub stub;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		stub.setTwoLevel(true);
+		stub.setRestoreMillis(100);
+		for (long ds = 10; ds < 15; ds++) {
+			stub.addDatafile(1, ds, ds * 10, "file", new byte[] { (byte) ds });
+			stub.archive(ds);
+		}
+		client = new IdsClient(stub.getUrl());
+	}
+
+	@After
+	public void after() {
+		client.close();
+		stub.close();
+	}
+
+	@Test
+	public void batchTest() throws Exception {
+		DataSelection dataSelection = new DataSelection().addDatasets(new long[] { 10, 11, 12, 13, 14 });
+		BulkRestore restore = new BulkRestore(client, "s", dataSelection).setBatchSize(2)
+				.setSubmitIntervalMillis(10).setPollIntervalMillis(20);
+		restore.start().get(30, TimeUnit.SECONDS);
+
+		assertEquals(3, restore.getBatchCount());
+		assertEquals(3, restore.getOnlineCount());
+		assertEquals(0, restore.getSubmittedCount());
+		assertEquals(3, stub.getRequestCount("restore"));
+		assertEquals(Status.ONLINE, client.getStatus("s", dataSelection));
+	}
+
+	@Test
+	public void backpressureTest() throws Exception {
+		DataSelection dataSelection = new DataSelection().addDatasets(new long[] { 10, 11, 12, 13, 14 })
+				.addDataset(99);
+		AtomicInteger maxSubmitted = new AtomicInteger();
+		AtomicInteger reports = new AtomicInteger();
+		BulkRestore restore = new BulkRestore(client, "s", dataSelection).setBatchSize(1).setMaxOpItems(1)
+				.setMaxOutstanding(10).setSubmitIntervalMillis(5).setPollIntervalMillis(10)
+				.setListener((batches, submitted, online, failed) -> {
+					maxSubmitted.accumulateAndGet(submitted, Math::max);
+					reports.incrementAndGet();
+				});
+		restore.start().get(30, TimeUnit.SECONDS);
+
+		/* Only one data set is in the queue of the stub at a time */
+		assertEquals(1, maxSubmitted.get());
+		assertTrue(reports.get() > 0);
+		assertEquals(5, restore.getOnlineCount());
+		assertEquals(1, restore.getFailedCount());
+		List<Batch> batches = restore.getBatches();
+		for (Batch batch : batches.subList(0, 5)) {
+			assertEquals(Status.ONLINE, batch.getStatus());
+			assertNull(batch.getException());
+		}
+		assertTrue(batches.get(5).getException() instanceof NotFoundException);
+	}
+
+	@Test
+	public void outageTest() throws Exception {
+		DataSelection dataSelection = new DataSelection().addDatasets(new long[] { 10, 11, 12, 13, 14 });
+		BulkRestore restore = new BulkRestore(client, "s", dataSelection).setBatchSize(2)
+				.setSubmitIntervalMillis(10).setPollIntervalMillis(100).setMaxOutageMillis(5000);
+
+		/* Down for far longer than a few steps */
+		stub.setDown(true);
+		CompletableFuture<Void> future = restore.start();
+		Thread.sleep(700);
+		long calls = stub.getRequestCount("getServiceStatus");
+		stub.setDown(false);
+		future.get(30, TimeUnit.SECONDS);
+
+		/* Backing off to the poll interval rather than calling at every step */
+		assertTrue("" + calls, calls < 15);
+		assertEquals(3, restore.getOnlineCount());
+		assertEquals(Status.ONLINE, client.getStatus("s", dataSelection));
+	}
+
+	@Test
+	public void outageTooLongTest() throws Exception {
+		stub.setDown(true);
+		BulkRestore restore = new BulkRestore(client, "s", new DataSelection().addDataset(10))
+				.setSubmitIntervalMillis(10).setPollIntervalMillis(20).setMaxOutageMillis(300);
+		long start = System.nanoTime();
+		try {
+			restore.start().get(30, TimeUnit.SECONDS);
+			fail("Expected InternalException");
+		} catch (ExecutionException e) {
+			assertEquals(InternalException.class, e.getCause().getClass());
+		}
+		assertTrue(System.nanoTime() - start >= 300_000_000L);
+	}
+
+}
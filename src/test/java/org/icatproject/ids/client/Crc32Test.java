@@ -0,0 +1,56 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+public class Crc32Test {
+
+	@Test
+	public void combineTest() {
+		byte[] data = new byte[100000];
+		new Random(1).nextBytes(data);
+		CRC32 whole = new CRC32();
+		whole.update(data);
+
+		for (int split : new int[] { 0, 1, 4095, 50000, 99999, 100000 }) {
+			CRC32 first = new CRC32();
+			first.update(data, 0, split);
+			CRC32 second = new CRC32();
+			second.update(data, split, data.length - split);
+			assertEquals(whole.getValue(), Crc32.combine(first.getValue(), second.getValue(), data.length - split));
+		}
+	}
+
+	@Test
+	public void computeTest() throws Exception {
+		Path file = Files.createTempFile("crc32", null);
+		try {
+			CRC32 crc = new CRC32();
+			byte[] data = new byte[1024 * 1024];
+			Random random = new Random(2);
+			try (OutputStream out = Files.newOutputStream(file)) {
+				for (int i = 0; i < 20; i++) {
+					random.nextBytes(data);
+					out.write(data);
+					crc.update(data);
+				}
+				out.write(data, 0, 12345);
+				crc.update(data, 0, 12345);
+			}
+			assertEquals(crc.getValue(), Crc32.compute(file));
+
+			Files.write(file, new byte[0]);
+			assertEquals(new CRC32().getValue(), Crc32.compute(file));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+}
@@ -5,6 +5,12 @@ import static org.junit.Assert.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 import org.junit.Test;
 
@@ -164,4 +170,74 @@ public class DataSelectionTest {
 		assertEquals("3", in_map_ids);
 	}
 
+	@Test
+	public void addBulkTest() {
+		DataSelection dataSelection = new DataSelection();
+
+		dataSelection.addDatafiles(new long[] { 5, 3, 1 });
+		dataSelection.addDatafiles(LongStream.of(3, 4, 2));
+		dataSelection.addDatafile(1);
+		dataSelection.addDatasets(LongStream.rangeClosed(1, 3));
+
+		Map<String, String> map = dataSelection.getParameters();
+
+		assertEquals("1,2,3,4,5", map.get("datafileIds"));
+		assertEquals("1,2,3", map.get("datasetIds"));
+		assertNull(map.get("investigationIds"));
+
+		dataSelection.addDatafile(0);
+		assertEquals("0,1,2,3,4,5", dataSelection.getParameters().get("datafileIds"));
+	}
+
+	@Test
+	public void splitTest() {
+		DataSelection dataSelection = new DataSelection();
+		for (long i = 1000; i < 2000; i++) {
+			dataSelection.addDatafile(i);
+			dataSelection.addInvestigation(i);
+		}
+
+		List<List<DataSelection>> groups = dataSelection.split(100);
+		assertEquals(2, groups.size());
+
+		for (List<DataSelection> group : groups) {
+			assertTrue(group.size() > 1);
+			int n = 0;
+			for (DataSelection chunk : group) {
+				assertEquals(1, chunk.getTypeCount());
+				Map<String, String> map = chunk.getParameters();
+				Entry<String, String> entry = map.entrySet().iterator().next();
+				assertTrue(entry.getKey().length() + 1 + entry.getValue().replace(",", "%2C").length() <= 100);
+				n += entry.getValue().split(",").length;
+			}
+			assertEquals(1000, n);
+		}
+		assertTrue(groups.get(0).get(0).getParameters().containsKey("datafileIds"));
+		assertTrue(groups.get(1).get(0).getParameters().containsKey("investigationIds"));
+	}
+
+	@Test
+	public void concurrentReadTest() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			for (int round = 0; round < 20; round++) {
+				DataSelection dataSelection = new DataSelection();
+				for (long i = 20000; i > 0; i--) {
+					dataSelection.addDatafile(i);
+				}
+				String expected = LongStream.rangeClosed(1, 20000).mapToObj(Long::toString)
+						.collect(Collectors.joining(","));
+				List<Future<String>> futures = new ArrayList<>();
+				for (int i = 0; i < 8; i++) {
+					futures.add(pool.submit(() -> dataSelection.getParameters().get("datafileIds")));
+				}
+				for (Future<String> future : futures) {
+					assertEquals(expected, future.get());
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
 }
@@ -0,0 +1,114 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The streaming parser behind getDatafileIdArray and streamDatafileIds
+ */
+public class DatafileIdsTest {
+
+	private static class Response extends BasicHttpResponse implements CloseableHttpResponse {
+
+		private boolean closed;
+
+		Response(String body) throws Exception {
+			super(HttpVersion.HTTP_1_1, 200, null);
+			setEntity(new StringEntity(body));
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+	}
+
+	private static final int COUNT = 100000;
+
+	private IdsClient client;
+
+	private IdsStub stub;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		for (long id = 1; id <= COUNT; id++) {
+			stub.addDatafile(1, 10, id, "f" + id, new byte[0]);
+		}
+		/* A single connection so that one not released would stop later calls */
+		client = new IdsClient(stub.getUrl(), 1, 1, 30);
+	}
+
+	@After
+	public void after() {
+		client.close();
+		stub.close();
+	}
+
+	@Test
+	public void emptyTest() throws Exception {
+		Response response = new Response("{\"ids\":[]}");
+		try (DatafileIdIterator iterator = new DatafileIdIterator(response)) {
+			assertFalse(iterator.hasNext());
+			assertTrue(response.closed);
+		}
+	}
+
+	@Test
+	public void largeTest() throws Exception {
+		long[] expected = LongStream.rangeClosed(1, COUNT).toArray();
+		DataSelection dataSelection = new DataSelection().addDataset(10);
+		assertArrayEquals(expected, client.getDatafileIdArray("s", dataSelection));
+		try (LongStream ids = client.streamDatafileIds("s", dataSelection)) {
+			assertArrayEquals(expected, ids.toArray());
+		}
+		String preparedId = client.prepareData("s", dataSelection, Flag.NONE);
+		assertArrayEquals(expected, client.getDatafileIdArray(preparedId));
+		assertEquals(COUNT, client.streamDatafileIds(preparedId).count());
+	}
+
+	@Test
+	public void closeEarlyTest() throws Exception {
+		Response response = new Response("{\"ids\":[1,2,3]}");
+		try (DatafileIdIterator iterator = new DatafileIdIterator(response)) {
+			assertEquals(1, iterator.nextLong());
+		}
+		assertTrue(response.closed);
+
+		/* Were a connection not released the next call would wait for ever */
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Long> size = executor.submit(() -> {
+				DataSelection dataSelection = new DataSelection().addDataset(10);
+				for (int i = 0; i < 3; i++) {
+					try (LongStream ids = client.streamDatafileIds("s", dataSelection)) {
+						assertArrayEquals(new long[] { 1, 2, 3 }, ids.limit(3).toArray());
+					}
+				}
+				return client.getSize("s", dataSelection);
+			});
+			assertEquals(0L, (long) size.get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,231 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.ZipInputStream;
+
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Downloads of data into files from an {@link IdsStub}
+ */
+public class DownloadTest {
+
+	private IdsClient client;
+
+	private byte[] data;
+
+	private Path dir;
+
+	private IdsStub stub;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		/* Large enough to be fetched as several ranges */
+		data = new byte[9 * 1024 * 1024 + 17];
+		new Random(7).nextBytes(data);
+		stub.addDatafile(1, 10, 100, "big", data);
+		stub.addDatafile(1, 10, 101, "small", "Hello".getBytes());
+		client = new IdsClient(stub.getUrl());
+		dir = Files.createTempDirectory("DownloadTest");
+	}
+
+	@After
+	public void after() throws Exception {
+		client.close();
+		stub.close();
+		for (Path path : Files.newDirectoryStream(dir)) {
+			Files.delete(path);
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void parallelTest() throws Exception {
+		Path target = dir.resolve("parallel");
+		DataSelection dataSelection = new DataSelection().addDatafile(100);
+		assertEquals(data.length, client.getDataInParallel("s", dataSelection, Flag.NONE, target, 3));
+		assertArrayEquals(data, Files.readAllBytes(target));
+		List<String> ranges = stub.getRanges();
+		assertEquals(3, ranges.size());
+		assertEquals(null, ranges.get(0));
+		assertTrue(ranges.contains("bytes=" + (data.length + 2) / 3 + "-"));
+		assertTrue(ranges.contains("bytes=" + 2 * ((data.length + 2) / 3) + "-"));
+
+		/* Small data are read over one connection */
+		assertEquals(5, client.getDataInParallel("s", new DataSelection().addDatafile(101), Flag.NONE, target, 3));
+		assertEquals("Hello", new String(Files.readAllBytes(target)));
+		assertEquals(4, stub.getRequestCount("getData"));
+	}
+
+	@Test
+	public void parallelResumeTest() throws Exception {
+		Path target = dir.resolve("parallel");
+		stub.cutData(1, 1000000);
+		assertEquals(data.length,
+				client.getDataInParallel("s", new DataSelection().addDatafile(100), Flag.NONE, target, 3));
+		assertArrayEquals(data, Files.readAllBytes(target));
+		/* Whichever part was cut is resumed from where it stopped */
+		List<String> ranges = stub.getRanges();
+		assertEquals(4, ranges.size());
+		long part = (data.length + 2) / 3;
+		assertTrue(ranges.contains("bytes=1000000-") || ranges.contains("bytes=" + (part + 1000000) + "-")
+				|| ranges.contains("bytes=" + (2 * part + 1000000) + "-"));
+	}
+
+	@Test
+	public void parallelZipResumeTest() throws Exception {
+		/* The length of zipped data is not known so they are read as a single range */
+		Path target = dir.resolve("parallel.zip");
+		stub.cutData(1, 1000000);
+		DataSelection dataSelection = new DataSelection().addDatafile(100);
+		long length = client.getDataInParallel("s", dataSelection, Flag.ZIP, target, 3);
+		assertEquals(Files.size(target), length);
+		assertEquals(Arrays.asList(null, "bytes=1000000-"), stub.getRanges());
+		try (ZipInputStream in = new ZipInputStream(Files.newInputStream(target))) {
+			assertEquals("ids/1/10/big", in.getNextEntry().getName());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+			assertArrayEquals(data, out.toByteArray());
+		}
+	}
+
+	@Test
+	public void parallelFailureTest() throws Exception {
+		stub.setRangeSupported(false);
+		try {
+			client.getDataInParallel("s", new DataSelection().addDatafile(100), Flag.NONE, dir.resolve("parallel"), 3);
+			fail("Expected InternalException");
+		} catch (InternalException e) {
+			assertTrue(e.getMessage().startsWith("Server did not honour request"));
+		}
+	}
+
+	@Test
+	public void pathTest() throws Exception {
+		/* Longer than the data so that the file must be truncated */
+		Path target = dir.resolve("path");
+		Files.write(target, new byte[data.length + 1000]);
+		DataSelection dataSelection = new DataSelection().addDatafile(100);
+		assertEquals(data.length, client.getData("s", dataSelection, Flag.NONE, target));
+		assertArrayEquals(data, Files.readAllBytes(target));
+
+		/* This reuses the buffer of the first transfer */
+		String preparedId = client.prepareData("s", dataSelection, Flag.NONE);
+		Files.delete(target);
+		assertEquals(data.length, client.getData(preparedId, target));
+		assertArrayEquals(data, Files.readAllBytes(target));
+	}
+
+	@Test
+	public void channelTest() throws Exception {
+		DataSelection dataSelection = new DataSelection().addDatafile(100);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(data.length, client.getData("s", dataSelection, Flag.NONE, Channels.newChannel(out)));
+		assertArrayEquals(data, out.toByteArray());
+
+		String preparedId = client.prepareData("s", dataSelection, Flag.NONE);
+		out.reset();
+		assertEquals(data.length, client.getData(preparedId, Channels.newChannel(out)));
+		assertArrayEquals(data, out.toByteArray());
+
+		for (boolean direct : new boolean[] { false, true }) {
+			try (ReadableByteChannel channel = client.getDataChannel("s", dataSelection, Flag.NONE, 0)) {
+				assertArrayEquals(data, read(channel, direct));
+			}
+		}
+		int offset = 1500000;
+		try (ReadableByteChannel channel = client.getDataChannel(preparedId, offset)) {
+			assertArrayEquals(Arrays.copyOfRange(data, offset, data.length), read(channel, true));
+		}
+	}
+
+	@Test
+	public void resumeFromCheckpointTest() throws Exception {
+		String preparedId = client.prepareData("s", new DataSelection().addDatafile(100), Flag.NONE);
+		Path target = dir.resolve("resumed");
+		Path checkpoint = dir.resolve("resumed" + ResumableDownload.CHECKPOINT_SUFFIX);
+		Files.write(target, Arrays.copyOf(data, 5000000));
+		writeCheckpoint(checkpoint, "preparedId=" + preparedId, 4000000);
+
+		assertEquals(data.length, client.getDataResumable(preparedId, target, 2));
+		assertArrayEquals(data, Files.readAllBytes(target));
+		assertEquals(Arrays.asList("bytes=4000000-"), stub.getRanges());
+		assertFalse(Files.exists(checkpoint));
+	}
+
+	@Test
+	public void completeCheckpointTest() throws Exception {
+		/* As left by a process which stopped just before deleting the checkpoint */
+		String preparedId = client.prepareData("s", new DataSelection().addDatafile(100), Flag.NONE);
+		Path target = dir.resolve("resumed");
+		Path checkpoint = dir.resolve("resumed" + ResumableDownload.CHECKPOINT_SUFFIX);
+		Files.write(target, data);
+		writeCheckpoint(checkpoint, "preparedId=" + preparedId, data.length);
+
+		assertEquals(data.length, client.getDataResumable(preparedId, target, 2));
+		assertArrayEquals(data, Files.readAllBytes(target));
+		assertEquals(0, stub.getRequestCount("getData"));
+		assertFalse(Files.exists(checkpoint));
+	}
+
+	@Test
+	public void resumeAfterCutTest() throws Exception {
+		Path target = dir.resolve("resumed");
+		stub.cutData(1, 3000000);
+		assertEquals(data.length,
+				client.getDataResumable("s", new DataSelection().addDatafile(100), Flag.NONE, target, 2));
+		assertArrayEquals(data, Files.readAllBytes(target));
+		assertEquals(Arrays.asList(null, "bytes=3000000-"), stub.getRanges());
+		assertFalse(Files.exists(dir.resolve("resumed" + ResumableDownload.CHECKPOINT_SUFFIX)));
+	}
+
+	private void writeCheckpoint(Path checkpoint, String key, long offset) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("key", key);
+		props.setProperty("offset", Long.toString(offset));
+		props.setProperty("length", Integer.toString(data.length));
+		try (OutputStream out = Files.newOutputStream(checkpoint)) {
+			props.store(out, null);
+		}
+	}
+
+	private static byte[] read(ReadableByteChannel channel, boolean direct) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(100000) : ByteBuffer.allocate(100000);
+		byte[] bytes = new byte[buffer.capacity()];
+		while (channel.read(buffer) >= 0) {
+			buffer.flip();
+			int n = buffer.remaining();
+			buffer.get(bytes, 0, n);
+			out.write(bytes, 0, n);
+			buffer.clear();
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,155 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Extraction of the zip returned by getData from an {@link IdsStub}
+ */
+public class ExtractTest {
+
+	private IdsClient client;
+
+	private byte[] data;
+
+	private Path dir;
+
+	private Map<Path, Long> extracted = new ConcurrentHashMap<>();
+
+	private ExtractListener listener;
+
+	private AtomicLong maxBytes = new AtomicLong();
+
+	private AtomicLong maxFiles = new AtomicLong();
+
+	private IdsStub stub;
+
+	private Path target;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		/* Large enough to be written as several buffers */
+		data = new byte[3 * 1024 * 1024 + 11];
+		new Random(5).nextBytes(data);
+		stub.addDatafile(1, 10, 100, "big", data);
+		stub.addDatafile(1, 10, 101, "small", "Hello".getBytes());
+		stub.addDatafile(1, 10, 102, "empty", new byte[0]);
+		client = new IdsClient(stub.getUrl());
+		dir = Files.createTempDirectory("ExtractTest");
+		target = dir.resolve("target");
+		listener = (file, files, bytes) -> {
+			extracted.put(file, Files.exists(file) ? file.toFile().length() : -1);
+			maxFiles.accumulateAndGet(files, Math::max);
+			maxBytes.accumulateAndGet(bytes, Math::max);
+		};
+	}
+
+	@After
+	public void after() throws Exception {
+		client.close();
+		stub.close();
+		try (Stream<Path> paths = Files.walk(dir)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Test
+	public void extractTest() throws Exception {
+		DataSelection dataSelection = new DataSelection().addDataset(10);
+		long total = data.length + 5;
+		assertEquals(total, client.getDataAndExtract("s", dataSelection, Flag.NONE, target, 2, listener));
+
+		Path ds = target.resolve("ids/1/10");
+		assertArrayEquals(data, Files.readAllBytes(ds.resolve("big")));
+		assertEquals("Hello", new String(Files.readAllBytes(ds.resolve("small"))));
+		assertEquals(0, Files.size(ds.resolve("empty")));
+
+		/* Each file is reported once it is complete */
+		assertEquals(3, extracted.size());
+		assertEquals(data.length, (long) extracted.get(ds.resolve("big")));
+		assertEquals(5L, (long) extracted.get(ds.resolve("small")));
+		assertEquals(0L, (long) extracted.get(ds.resolve("empty")));
+		assertEquals(3, maxFiles.get());
+		assertEquals(total, maxBytes.get());
+	}
+
+	@Test
+	public void parentTest() throws Exception {
+		stub.setEntryName(101, "../x");
+		expectOutside();
+		assertFalse(Files.exists(dir.resolve("x")));
+	}
+
+	@Test
+	public void absoluteTest() throws Exception {
+		Path outside = dir.resolve("absolute");
+		stub.setEntryName(101, outside.toString());
+		expectOutside();
+		assertFalse(Files.exists(outside));
+	}
+
+	@Test
+	public void cutTest() throws Exception {
+		/* Part way through the last buffer of the big file, so that earlier ones have been written */
+		stub.cutData(1, 3000000);
+		try {
+			client.getDataAndExtract("s", new DataSelection().addDataset(10), Flag.NONE, target, 2, listener);
+			fail("Expected InternalException");
+		} catch (InternalException e) {
+			// Expected
+		}
+		/* The partial file was closed and not reported */
+		Path big = target.toRealPath().resolve("ids/1/10/big");
+		assertTrue(extracted.isEmpty());
+		Path fds = Paths.get("/proc/self/fd");
+		if (Files.isDirectory(fds)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(fds)) {
+				for (Path fd : stream) {
+					try {
+						assertFalse(big.equals(Files.readSymbolicLink(fd)));
+					} catch (IOException e) {
+						// Closed since it was listed
+					}
+				}
+			}
+		}
+
+		/* And may be replaced by a later attempt */
+		client.getDataAndExtract("s", new DataSelection().addDataset(10), Flag.NONE, target, 2, listener);
+		assertArrayEquals(data, Files.readAllBytes(target.resolve("ids/1/10/big")));
+		assertEquals(3, extracted.size());
+	}
+
+	private void expectOutside() throws Exception {
+		try {
+			client.getDataAndExtract("s", new DataSelection().addDataset(10), Flag.NONE, target, 2, listener);
+			fail("Expected InternalException");
+		} catch (InternalException e) {
+			assertTrue(e.getMessage().contains("would be written outside"));
+		}
+	}
+
+}
@@ -0,0 +1,220 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.icatproject.ids.client.IdsClient.Status;
+import org.junit.Test;
+
+public class HedgerTest {
+
+	private static class Response extends BasicHttpResponse implements CloseableHttpResponse {
+
+		private volatile boolean closed;
+
+		Response() {
+			super(HttpVersion.HTTP_1_1, 200, null);
+		}
+
+		Response(int statusCode, String body) {
+			super(HttpVersion.HTTP_1_1, statusCode, null);
+			setEntity(new StringEntity(body, ContentType.TEXT_PLAIN));
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+	}
+
+	@Test
+	public void hedgeTest() throws Exception {
+		Hedger hedger = new Hedger(90, 0.05, 4);
+		AtomicInteger sends = new AtomicInteger();
+		Response slow = new Response();
+		RetryPolicy.Attempt attempt = request -> {
+			/* The first request after the latencies are known is very slow */
+			if (sends.incrementAndGet() == 33) {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					// Ignore it
+				}
+				return slow;
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				// Ignore it
+			}
+			return new Response();
+		};
+		HttpGet get = new HttpGet("http://ids/ids/getStatus?sessionId=s&datafileIds=1");
+		for (int i = 0; i < 32; i++) {
+			hedger.execute(get, attempt);
+		}
+		assertEquals(0, hedger.getHedges());
+
+		long start = System.nanoTime();
+		CloseableHttpResponse response = hedger.execute(new HttpGet(get.getURI()), attempt);
+		assertTrue(response != slow);
+		assertTrue(System.nanoTime() - start < 500_000_000L);
+		assertEquals(1, hedger.getHedges());
+		Thread.sleep(1200);
+		assertTrue(slow.closed);
+
+		/* Only one copy in twenty may be sent so this one is not copied */
+		sends.set(32);
+		response = hedger.execute(new HttpGet(get.getURI()), attempt);
+		assertTrue(response == slow);
+		assertEquals(1, hedger.getHedges());
+
+		/* Other calls are never copied */
+		sends.set(32);
+		assertTrue(hedger.execute(new HttpGet("http://ids/ids/getData?preparedId=p"), attempt) == slow);
+		hedger.close();
+	}
+
+	@Test
+	public void abortedTest() throws Exception {
+		Hedger hedger = new Hedger(90, 0.05, 4);
+		AtomicInteger sends = new AtomicInteger();
+		RetryPolicy.Attempt attempt = request -> {
+			/* The first request after the latencies are known waits until it is aborted */
+			if (sends.incrementAndGet() == 33) {
+				while (!((HttpGet) request).isAborted()) {
+					sleep(1);
+				}
+				throw new IOException("Aborted");
+			}
+			sleep(1);
+			return new Response();
+		};
+		HttpGet get = new HttpGet("http://ids/ids/getStatus?sessionId=s&datafileIds=1");
+		for (int i = 0; i < 32; i++) {
+			hedger.execute(get, attempt);
+		}
+		assertEquals(32, hedger.getRecorded("getStatus"));
+
+		HttpGet request = new HttpGet(get.getURI());
+		hedger.execute(request, attempt);
+		assertEquals(1, hedger.getHedges());
+		/* Only the copy sent in its place is aborted */
+		assertFalse(request.isAborted());
+
+		/* Both the copy and the aborted loser are recorded */
+		long end = System.nanoTime() + 1000_000_000L;
+		while (hedger.getRecorded("getStatus") < 34 && System.nanoTime() < end) {
+			Thread.sleep(1);
+		}
+		assertEquals(34, hedger.getRecorded("getStatus"));
+		hedger.close();
+	}
+
+	@Test
+	public void boundedTest() throws Exception {
+		Hedger hedger = new Hedger(90, 1, 1);
+		AtomicInteger sends = new AtomicInteger();
+		RetryPolicy.Attempt attempt = request -> {
+			sleep(sends.incrementAndGet() == 33 ? 500 : 1);
+			return new Response();
+		};
+		HttpGet get = new HttpGet("http://ids/ids/getStatus?sessionId=s&datafileIds=1");
+		for (int i = 0; i < 32; i++) {
+			hedger.execute(get, attempt);
+		}
+
+		/* The slow request holds the only thread so it is not copied */
+		ExecutorService caller = Executors.newSingleThreadExecutor();
+		try {
+			HttpGet first = new HttpGet(get.getURI());
+			Future<CloseableHttpResponse> slow = caller.submit(() -> hedger.execute(first, attempt));
+			Thread.sleep(100);
+
+			/* And this one is sent by the caller */
+			long start = System.nanoTime();
+			assertTrue(hedger.execute(new HttpGet(get.getURI()), attempt) instanceof Response);
+			assertTrue(System.nanoTime() - start < 300_000_000L);
+			assertTrue(slow.get(10, TimeUnit.SECONDS) instanceof Response);
+			assertEquals(0, hedger.getHedges());
+		} finally {
+			caller.shutdownNow();
+			hedger.close();
+		}
+	}
+
+	@Test
+	public void retryTest() throws Exception {
+		AtomicInteger sends = new AtomicInteger();
+		Transport transport = new Transport() {
+
+			@Override
+			public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+				HttpGet get = (HttpGet) request;
+				if (get.isAborted()) {
+					throw new IOException("Request aborted");
+				}
+				int n = sends.incrementAndGet();
+				if (n == 33) {
+					/* Slow so that a copy is sent, which fails with a transient error */
+					while (!get.isAborted()) {
+						sleep(1);
+					}
+					throw new IOException("Request aborted");
+				} else if (n == 34) {
+					return new Response(502, "<html>Bad Gateway</html>");
+				}
+				sleep(1);
+				return new Response(200, "ONLINE");
+			}
+
+			@Override
+			public int getMaxConcurrency() {
+				return 4;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		try (IdsClient client = new IdsClient(new URL("http://ids.example.com/"), transport)) {
+			client.setRetryPolicy(new RetryPolicy().setInitialBackoffMillis(1).setMaxBackoffMillis(5));
+			client.enableHedging(90, 0.05);
+			DataSelection dataSelection = new DataSelection().addDatafile(1);
+			for (int i = 0; i < 32; i++) {
+				assertEquals(Status.ONLINE, client.getStatus("s", dataSelection));
+			}
+
+			/* The retry after the copy's 502 is sent afresh */
+			assertEquals(Status.ONLINE, client.getStatus("s", dataSelection));
+			assertEquals(1, client.getHedgeCount());
+			assertEquals(35, sends.get());
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			// Ignore it
+		}
+	}
+
+}
@@ -0,0 +1,867 @@
+package org.icatproject.ids.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.icatproject.ids.client.IdsClient.Status;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An IDS which runs in the same process as its clients and holds its data in
+ * memory or in local files, so that the client can be tested and measured
+ * without an ICAT or a deployed ids.server.
+ *
+ * <p>
+ * It implements enough of the REST interface for the calls of IdsClient to
+ * behave as they would against a real server: data selections are resolved
+ * to data files, getData returns a single file as it is or several as a zip
+ * and honours a Range header, put returns the CRC32 checksum of what it
+ * received and errors are reported as json with the same status codes. It
+ * does not check sessions, other than that one is given, or permissions.
+ * </p>
+ *
+ * <p>
+ * Data sets are online unless archived. Restoring one, or preparing or
+ * getting data from one which is archived, makes it RESTORING until the
+ * restore delay has passed. Prepared data may also be held back by a prepare
+ * delay and every request may be slowed by a fixed latency. The number of
+ * requests for each operation is counted. To test recovery from failures
+ * the connection may be dropped part way through sending data.
+ * </p>
+ */
+public class IdsStub implements AutoCloseable {
+
+	private static class Datafile {
+		private final byte[] data;
+		private final long datasetId;
+		private final long id;
+		private final long investigationId;
+		private final long length;
+		private final String name;
+		private final Path path;
+
+		Datafile(long investigationId, long datasetId, long id, String name, byte[] data, Path path, long length) {
+			this.investigationId = investigationId;
+			this.datasetId = datasetId;
+			this.id = id;
+			this.name = name;
+			this.data = data;
+			this.path = path;
+			this.length = length;
+		}
+
+		InputStream open() throws IOException {
+			return path == null ? new ByteArrayInputStream(data) : Files.newInputStream(path);
+		}
+	}
+
+	private static class Prepared {
+		private final List<Datafile> datafiles;
+		private final long readyAt;
+		private final boolean zip;
+
+		Prepared(List<Datafile> datafiles, boolean zip, long readyAt) {
+			this.datafiles = datafiles;
+			this.zip = zip;
+			this.readyAt = readyAt;
+		}
+	}
+
+	/** An error to be returned to the client as json */
+	private static class StubException extends Exception {
+		private static final long serialVersionUID = 1L;
+		private final String code;
+		private final int statusCode;
+
+		StubException(int statusCode, String code, String message) {
+			super(message);
+			this.statusCode = statusCode;
+			this.code = code;
+		}
+	}
+
+	/** Thrown once the data have been cut so that the connection is closed without ending the response */
+	private static class CutException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		CutException() {
+			super("Connection cut by IdsStub");
+		}
+	}
+
+	/** Fails once a given number of bytes has been written, as if the connection had dropped */
+	private static class CuttingOutputStream extends FilterOutputStream {
+		private boolean cut;
+		private long remaining;
+
+		CuttingOutputStream(OutputStream out, long remaining) {
+			super(out);
+			this.remaining = remaining;
+		}
+
+		/**
+		 * Leave the response unfinished once it has been cut, as otherwise the
+		 * end of a chunked response would be written and it would look
+		 * complete
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!cut) {
+				super.close();
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len <= remaining) {
+				remaining -= len;
+				out.write(b, off, len);
+				return;
+			}
+			out.write(b, off, (int) remaining);
+			out.flush();
+			remaining = 0;
+			cut = true;
+			throw new CutException();
+		}
+	}
+
+	/** Drops the first bytes written to it to honour a Range header */
+	private static class SkippingOutputStream extends FilterOutputStream {
+		private long skip;
+
+		SkippingOutputStream(OutputStream out, long skip) {
+			super(out);
+			this.skip = skip;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (skip > 0) {
+				skip--;
+			} else {
+				out.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (skip >= len) {
+				skip -= len;
+				return;
+			}
+			int s = (int) skip;
+			skip = 0;
+			out.write(b, off + s, len - s);
+		}
+	}
+
+	/** The modification time given to every zip entry: 2019-01-01 */
+	private static final long ZIP_ENTRY_TIME = 1546300800000L;
+
+	private final Map<Long, Datafile> datafiles = new ConcurrentHashMap<>();
+
+	/** Time at which each data set which is restoring will be online */
+	private final Map<Long, Long> restoring = new ConcurrentHashMap<>();
+
+	private final Set<Long> archived = ConcurrentHashMap.newKeySet();
+
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	private final Map<String, Prepared> prepared = new ConcurrentHashMap<>();
+
+	private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+
+	private final Map<String, Map<String, List<String>>> lastHeaders = new ConcurrentHashMap<>();
+
+	private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+
+	private final Map<Long, String> entryNames = new ConcurrentHashMap<>();
+
+	private final AtomicInteger cuts = new AtomicInteger();
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final AtomicInteger maxActive = new AtomicInteger();
+
+	private volatile long cutAfterBytes;
+
+	private volatile boolean corrupt;
+
+	private volatile boolean down;
+
+	private final ExecutorService threads;
+
+	private final HttpServer server;
+
+	private volatile long latencyMillis;
+
+	private volatile long prepareMillis;
+
+	private volatile boolean rangeSupported = true;
+
+	private volatile boolean readOnly;
+
+	private volatile long restoreMillis;
+
+	private volatile boolean twoLevel;
+
+	/**
+	 * Start a stub listening on an ephemeral port of the loopback interface.
+	 */
+	public IdsStub() throws IOException {
+		/*
+		 * Without this the headers and body of a small response wait on the
+		 * delayed acknowledgement of the client, adding 40 ms to each call.
+		 * It is read when the first server is created.
+		 */
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		threads = Executors.newCachedThreadPool(new DaemonThreadFactory("IdsStub"));
+		server.setExecutor(threads);
+		server.createContext("/ids/", this::handle);
+		server.start();
+	}
+
+	/**
+	 * Add a data file held in memory
+	 */
+	public void addDatafile(long investigationId, long datasetId, long datafileId, String name, byte[] data) {
+		datafiles.put(datafileId, new Datafile(investigationId, datasetId, datafileId, name, data, null, data.length));
+		nextId.accumulateAndGet(datafileId + 1, Math::max);
+	}
+
+	/**
+	 * Add a data file whose contents are read from a local file when they are
+	 * requested
+	 */
+	public void addDatafile(long investigationId, long datasetId, long datafileId, String name, Path file)
+			throws IOException {
+		datafiles.put(datafileId,
+				new Datafile(investigationId, datasetId, datafileId, name, null, file, Files.size(file)));
+		nextId.accumulateAndGet(datafileId + 1, Math::max);
+	}
+
+	/**
+	 * Mark a data set as archived so that its data are not online until it
+	 * has been restored
+	 */
+	public void archive(long datasetId) {
+		restoring.remove(datasetId);
+		archived.add(datasetId);
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		threads.shutdownNow();
+	}
+
+	/**
+	 * Drop the connection of each of the next getData responses once some of
+	 * the data have been sent
+	 *
+	 * @param count
+	 *            the number of responses to cut short
+	 * @param afterBytes
+	 *            the number of bytes of data to send before dropping the
+	 *            connection
+	 */
+	public void cutData(int count, long afterBytes) {
+		cutAfterBytes = afterBytes;
+		cuts.set(count);
+	}
+
+	/**
+	 * @return the Range header of each getData request received, or null for
+	 *         a request without one, in the order they arrived
+	 */
+	public List<String> getRanges() {
+		synchronized (ranges) {
+			return new ArrayList<>(ranges);
+		}
+	}
+
+	/**
+	 * @return the headers of the last request received for the operation,
+	 *         whose names are not case sensitive, or null if there has been
+	 *         none
+	 */
+	public Map<String, List<String>> getLastHeaders(String operation) {
+		return lastHeaders.get(operation);
+	}
+
+	/**
+	 * @return the largest number of requests which have been handled at the
+	 *         same time
+	 */
+	public int getMaxActive() {
+		return maxActive.get();
+	}
+
+	/**
+	 * @return the number of requests received for the operation, such as
+	 *         "getData"
+	 */
+	public long getRequestCount(String operation) {
+		LongAdder count = requestCounts.get(operation);
+		return count == null ? 0 : count.sum();
+	}
+
+	/**
+	 * @return the URL to pass to the IdsClient constructor
+	 */
+	public URL getUrl() {
+		try {
+			InetSocketAddress address = server.getAddress();
+			return new URL("http", address.getAddress().getHostAddress(), address.getPort(), "/");
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param corrupt
+	 *            true to change the first byte of the data of each put, as if
+	 *            they had been damaged on the way, so that the checksum
+	 *            returned does not match
+	 */
+	public void setCorrupt(boolean corrupt) {
+		this.corrupt = corrupt;
+	}
+
+	/**
+	 * @param down
+	 *            true to answer every request with an InternalException, as
+	 *            an IDS which is restarting might
+	 */
+	public void setDown(boolean down) {
+		this.down = down;
+	}
+
+	/**
+	 * Use the given name, in place of ids/investigationId/datasetId/name, for
+	 * the zip entry of a data file, as a misbehaving server might
+	 */
+	public void setEntryName(long datafileId, String entryName) {
+		entryNames.put(datafileId, entryName);
+	}
+
+	/**
+	 * @param latencyMillis
+	 *            the time to wait before handling each request
+	 */
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * @param prepareMillis
+	 *            the time from prepareData until the data are prepared, once
+	 *            they are online
+	 */
+	public void setPrepareMillis(long prepareMillis) {
+		this.prepareMillis = prepareMillis;
+	}
+
+	/**
+	 * @param rangeSupported
+	 *            false to ignore Range headers, as some servers do, and
+	 *            always send all the data
+	 */
+	public void setRangeSupported(boolean rangeSupported) {
+		this.rangeSupported = rangeSupported;
+	}
+
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * @param restoreMillis
+	 *            the time taken to restore an archived data set
+	 */
+	public void setRestoreMillis(long restoreMillis) {
+		this.restoreMillis = restoreMillis;
+	}
+
+	public void setTwoLevel(boolean twoLevel) {
+		this.twoLevel = twoLevel;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String operation = path.substring(path.lastIndexOf('/') + 1);
+		requestCounts.computeIfAbsent(operation, k -> new LongAdder()).increment();
+		Headers headers = new Headers();
+		headers.putAll(exchange.getRequestHeaders());
+		lastHeaders.put(operation, headers);
+		maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+		boolean cut = false;
+		try {
+			if (latencyMillis > 0) {
+				Thread.sleep(latencyMillis);
+			}
+			if (down) {
+				throw new StubException(500, "InternalException", "The IDS is unavailable");
+			}
+			Map<String, String> parameters = getParameters(exchange);
+			String method = exchange.getRequestMethod();
+			if (operation.equals("getData") && method.equals("GET")) {
+				getData(exchange, parameters);
+			} else if (operation.equals("put") && method.equals("PUT")) {
+				put(exchange, parameters);
+			} else if (operation.equals("delete") && method.equals("DELETE")) {
+				delete(parameters);
+				send(exchange, 200, "");
+			} else if (method.equals("POST")) {
+				send(exchange, 200, post(operation, parameters));
+			} else if (method.equals("GET")) {
+				send(exchange, 200, get(operation, parameters));
+			} else {
+				throw new StubException(501, "NotImplementedException", method + " " + operation);
+			}
+		} catch (CutException e) {
+			/* The server closes the connection when the handler fails */
+			cut = true;
+			throw e;
+		} catch (StubException e) {
+			sendError(exchange, e.statusCode, e.code, e.getMessage());
+		} catch (InterruptedException e) {
+			sendError(exchange, 500, "InternalException", "Interrupted");
+		} catch (RuntimeException e) {
+			sendError(exchange, 500, "InternalException", e.getClass() + " " + e.getMessage());
+		} finally {
+			if (!cut) {
+				exchange.close();
+			}
+			active.decrementAndGet();
+		}
+	}
+
+	private String get(String operation, Map<String, String> parameters) throws StubException {
+		switch (operation) {
+		case "ping":
+			return "IdsOK";
+		case "getApiVersion":
+			return "1.5.0";
+		case "getIcatUrl":
+			return getUrl().toString();
+		case "isReadOnly":
+			return Boolean.toString(readOnly);
+		case "isTwoLevel":
+			return Boolean.toString(twoLevel);
+		case "getStatus":
+			return getStatus(getDatafiles(parameters)).name();
+		case "getSize": {
+			/* Each type of id is sized separately, as by the IDS, so a data file selected twice counts twice */
+			getDatafiles(parameters);
+			long size = 0;
+			for (String type : new String[] { "investigationIds", "datasetIds", "datafileIds" }) {
+				if (parameters.containsKey(type)) {
+					Map<String, String> one = new HashMap<>();
+					one.put("sessionId", parameters.get("sessionId"));
+					one.put(type, parameters.get(type));
+					for (Datafile datafile : getDatafiles(one)) {
+						size += datafile.length;
+					}
+				}
+			}
+			return Long.toString(size);
+		}
+		case "isPrepared": {
+			Prepared p = getPrepared(parameters);
+			return Boolean.toString(
+					System.currentTimeMillis() >= p.readyAt && getStatus(p.datafiles) == Status.ONLINE);
+		}
+		case "getDatafileIds": {
+			Collection<Datafile> selected = parameters.containsKey("preparedId") ? getPrepared(parameters).datafiles
+					: getDatafiles(parameters);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (JsonGenerator gen = Json.createGenerator(baos)) {
+				gen.writeStartObject().writeStartArray("ids");
+				for (Datafile datafile : selected) {
+					gen.write(datafile.id);
+				}
+				gen.writeEnd().writeEnd();
+			}
+			return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+		}
+		case "getServiceStatus": {
+			requireSession(parameters);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (JsonGenerator gen = Json.createGenerator(baos)) {
+				gen.writeStartObject().writeStartArray("opsQueue");
+				for (Long datasetId : new TreeMap<>(restoring).keySet()) {
+					gen.writeStartObject().write("data", "DsInfo " + datasetId).write("request", "RESTORE").writeEnd();
+				}
+				gen.writeEnd().write("lockCount", 0).writeStartArray("lockedIds").writeEnd().writeEnd();
+			}
+			return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+		}
+		default:
+			throw new StubException(501, "NotImplementedException", "GET " + operation);
+		}
+	}
+
+	private String post(String operation, Map<String, String> parameters) throws StubException {
+		switch (operation) {
+		case "prepareData": {
+			List<Datafile> selected = getDatafiles(parameters);
+			restoreArchived(selected);
+			String preparedId = UUID.randomUUID().toString();
+			prepared.put(preparedId, new Prepared(selected, "true".equals(parameters.get("zip")),
+					System.currentTimeMillis() + prepareMillis));
+			return preparedId;
+		}
+		case "archive":
+			for (Long datasetId : getDatasetIds(getDatafiles(parameters))) {
+				archive(datasetId);
+			}
+			return "";
+		case "restore":
+			restoreArchived(getDatafiles(parameters));
+			return "";
+		default:
+			throw new StubException(501, "NotImplementedException", "POST " + operation);
+		}
+	}
+
+	private void getData(HttpExchange exchange, Map<String, String> parameters) throws StubException, IOException {
+		List<Datafile> selected;
+		boolean zip;
+		if (parameters.containsKey("preparedId")) {
+			Prepared p = getPrepared(parameters);
+			selected = p.datafiles;
+			zip = p.zip;
+		} else {
+			selected = getDatafiles(parameters);
+			zip = "true".equals(parameters.get("zip"));
+		}
+		if (getStatus(selected) != Status.ONLINE) {
+			restoreArchived(selected);
+			throw new StubException(503, "DataNotOnlineException", "Before getting data, they must be restored");
+		}
+
+		long offset = 0;
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		ranges.add(range);
+		if (!rangeSupported) {
+			range = null;
+		}
+		if (range != null) {
+			if (!range.startsWith("bytes=") || !range.endsWith("-")) {
+				throw new StubException(400, "BadRequestException", "Only ranges of the form bytes=n- are supported");
+			}
+			offset = Long.parseLong(range.substring(6, range.length() - 1));
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+		if (selected.size() == 1 && !zip) {
+			Datafile datafile = selected.get(0);
+			if (offset > datafile.length) {
+				throw new StubException(400, "BadRequestException", "Offset is beyond the end of the data");
+			}
+			if (range != null) {
+				exchange.getResponseHeaders().set("Content-Range",
+						"bytes " + offset + "-" + (datafile.length - 1) + "/" + datafile.length);
+			}
+			exchange.sendResponseHeaders(range == null ? 200 : 206, datafile.length - offset);
+			try (InputStream in = datafile.open(); OutputStream out = getBody(exchange)) {
+				copy(in, new SkippingOutputStream(out, offset));
+			}
+		} else {
+			exchange.sendResponseHeaders(range == null ? 200 : 206, 0);
+			try (ZipOutputStream out = new ZipOutputStream(
+					new SkippingOutputStream(getBody(exchange), offset))) {
+				out.setLevel(0);
+				for (Datafile datafile : selected) {
+					String name = entryNames.get(datafile.id);
+					if (name == null) {
+						name = "ids/" + datafile.investigationId + "/" + datafile.datasetId + "/" + datafile.name;
+					}
+					ZipEntry entry = new ZipEntry(name);
+					/* The same for every request so that a zip which was cut short may be resumed */
+					entry.setTime(ZIP_ENTRY_TIME);
+					out.putNextEntry(entry);
+					try (InputStream in = datafile.open()) {
+						copy(in, out);
+					}
+					out.closeEntry();
+				}
+			}
+		}
+	}
+
+	private void put(HttpExchange exchange, Map<String, String> parameters) throws StubException, IOException {
+		requireSession(parameters);
+		if (readOnly) {
+			throw new StubException(501, "NotImplementedException", "This operation is not supported when read only");
+		}
+		String name = parameters.get("name");
+		String datasetId = parameters.get("datasetId");
+		if (name == null || datasetId == null || parameters.get("datafileFormatId") == null) {
+			throw new StubException(400, "BadRequestException", "name, datasetId and datafileFormatId are required");
+		}
+		long dsid = Long.parseLong(datasetId);
+		if (archived.contains(dsid) || restoring.containsKey(dsid)) {
+			throw new StubException(503, "DataNotOnlineException", "Data set " + dsid + " is not online");
+		}
+		long investigationId = 0;
+		for (Datafile datafile : datafiles.values()) {
+			if (datafile.datasetId == dsid) {
+				investigationId = datafile.investigationId;
+				break;
+			}
+		}
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		try (InputStream in = exchange.getRequestBody()) {
+			copy(in, data);
+		}
+		byte[] bytes = data.toByteArray();
+		if (corrupt && bytes.length > 0) {
+			bytes[0] ^= 1;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		long id = nextId.getAndIncrement();
+		addDatafile(investigationId, dsid, id, name, bytes);
+		send(exchange, 201, "{\"id\":" + id + ",\"checksum\":" + crc.getValue() + "}");
+	}
+
+	private void delete(Map<String, String> parameters) throws StubException {
+		if (readOnly) {
+			throw new StubException(501, "NotImplementedException", "This operation is not supported when read only");
+		}
+		List<Datafile> selected = getDatafiles(parameters);
+		if (getStatus(selected) != Status.ONLINE) {
+			throw new StubException(503, "DataNotOnlineException", "Before deleting data, they must be restored");
+		}
+		for (Datafile datafile : selected) {
+			datafiles.remove(datafile.id);
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+	}
+
+	/**
+	 * @return the stream to which to write data, which may be cut short
+	 */
+	private OutputStream getBody(HttpExchange exchange) {
+		OutputStream out = exchange.getResponseBody();
+		return cuts.getAndUpdate(n -> Math.max(0, n - 1)) > 0 ? new CuttingOutputStream(out, cutAfterBytes) : out;
+	}
+
+	private static Set<Long> getDatasetIds(Collection<Datafile> selected) {
+		Set<Long> datasetIds = new LinkedHashSet<>();
+		for (Datafile datafile : selected) {
+			datasetIds.add(datafile.datasetId);
+		}
+		return datasetIds;
+	}
+
+	/**
+	 * Resolve the data selection in the parameters to data files, in order
+	 * of id
+	 */
+	private List<Datafile> getDatafiles(Map<String, String> parameters) throws StubException {
+		requireSession(parameters);
+		Set<Long> investigationIds = getIds(parameters, "investigationIds");
+		Set<Long> datasetIds = getIds(parameters, "datasetIds");
+		Set<Long> datafileIds = getIds(parameters, "datafileIds");
+		if (investigationIds.isEmpty() && datasetIds.isEmpty() && datafileIds.isEmpty()) {
+			throw new StubException(400, "BadRequestException", "No data selected");
+		}
+		Set<Long> foundInvestigations = new LinkedHashSet<>();
+		Set<Long> foundDatasets = new LinkedHashSet<>();
+		Map<Long, Datafile> selected = new TreeMap<>();
+		for (Datafile datafile : datafiles.values()) {
+			if (investigationIds.contains(datafile.investigationId)) {
+				foundInvestigations.add(datafile.investigationId);
+				selected.put(datafile.id, datafile);
+			}
+			if (datasetIds.contains(datafile.datasetId)) {
+				foundDatasets.add(datafile.datasetId);
+				selected.put(datafile.id, datafile);
+			}
+			if (datafileIds.contains(datafile.id)) {
+				selected.put(datafile.id, datafile);
+			}
+		}
+		investigationIds.removeAll(foundInvestigations);
+		datasetIds.removeAll(foundDatasets);
+		datafileIds.removeAll(selected.keySet());
+		if (!investigationIds.isEmpty() || !datasetIds.isEmpty() || !datafileIds.isEmpty()) {
+			throw new StubException(404, "NotFoundException", "Not found: investigations " + investigationIds
+					+ ", data sets " + datasetIds + ", data files " + datafileIds);
+		}
+		return new ArrayList<>(selected.values());
+	}
+
+	private static Set<Long> getIds(Map<String, String> parameters, String name) throws StubException {
+		Set<Long> ids = new LinkedHashSet<>();
+		String value = parameters.get(name);
+		if (value != null && !value.isEmpty()) {
+			try {
+				for (String id : value.split(",")) {
+					ids.add(Long.parseLong(id.trim()));
+				}
+			} catch (NumberFormatException e) {
+				throw new StubException(400, "BadRequestException", "Bad " + name + ": " + value);
+			}
+		}
+		return ids;
+	}
+
+	private static Map<String, String> getParameters(HttpExchange exchange) throws IOException {
+		Map<String, String> parameters = new HashMap<>();
+		parse(exchange.getRequestURI().getRawQuery(), parameters);
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (InputStream in = exchange.getRequestBody()) {
+				copy(in, body);
+			}
+			parse(new String(body.toByteArray(), StandardCharsets.UTF_8), parameters);
+		}
+		return parameters;
+	}
+
+	private Prepared getPrepared(Map<String, String> parameters) throws StubException {
+		String preparedId = parameters.get("preparedId");
+		if (preparedId == null) {
+			throw new StubException(400, "BadRequestException", "preparedId is required");
+		}
+		Prepared p = prepared.get(preparedId);
+		if (p == null) {
+			throw new StubException(404, "NotFoundException", "The preparedId " + preparedId + " is not known");
+		}
+		return p;
+	}
+
+	private Status getStatus(Collection<Datafile> selected) {
+		Status status = Status.ONLINE;
+		long now = System.currentTimeMillis();
+		for (Long datasetId : getDatasetIds(selected)) {
+			Long online = restoring.get(datasetId);
+			if (online != null && now >= online) {
+				restoring.remove(datasetId, online);
+				online = null;
+			}
+			if (online != null) {
+				status = Status.RESTORING;
+			} else if (archived.contains(datasetId)) {
+				return Status.ARCHIVED;
+			}
+		}
+		return status;
+	}
+
+	private static void parse(String query, Map<String, String> parameters) throws UnsupportedEncodingException {
+		if (query == null || query.isEmpty()) {
+			return;
+		}
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0) {
+				parameters.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+			}
+		}
+	}
+
+	private static void requireSession(Map<String, String> parameters) throws StubException {
+		if (parameters.get("sessionId") == null && parameters.get("preparedId") == null) {
+			throw new StubException(400, "BadRequestException", "sessionId is required");
+		}
+	}
+
+	private void restoreArchived(Collection<Datafile> selected) {
+		long online = System.currentTimeMillis() + restoreMillis;
+		for (Long datasetId : getDatasetIds(selected)) {
+			if (archived.remove(datasetId)) {
+				restoring.put(datasetId, online);
+			}
+		}
+	}
+
+	private static void send(HttpExchange exchange, int statusCode, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		/*
+		 * An empty body is sent chunked as with no body at all the server
+		 * closes the connection
+		 */
+		exchange.sendResponseHeaders(statusCode, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static void sendError(HttpExchange exchange, int statusCode, String code, String message)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (JsonGenerator gen = Json.createGenerator(baos)) {
+			gen.writeStartObject().write("code", code).write("message", message).writeEnd();
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		byte[] bytes = baos.toByteArray();
+		exchange.sendResponseHeaders(statusCode, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.icatproject.ids.client.IdsClient.Status;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Calls of the IdsClient made to an {@link IdsStub} so that they need no
+ * deployed server.
+ */
+public class IdsStubTest {
+
+	private IdsClient client;
+
+	private byte[] data;
+
+	private IdsStub stub;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		data = new byte[300000];
+		new Random(5).nextBytes(data);
+		stub.addDatafile(1, 10, 100, "big", data);
+		stub.addDatafile(1, 10, 101, "small", "Hello".getBytes());
+		stub.addDatafile(1, 11, 110, "other", "World".getBytes());
+		client = new IdsClient(stub.getUrl());
+	}
+
+	@After
+	public void after() {
+		client.close();
+		stub.close();
+	}
+
+	@Test
+	public void propertiesTest() throws Exception {
+		client.ping();
+		assertEquals("1.5.0", client.getApiVersion());
+		assertFalse(client.isReadOnly());
+		assertEquals(1, stub.getRequestCount("ping"));
+	}
+
+	@Test
+	public void selectionTest() throws Exception {
+		DataSelection dataSelection = new DataSelection().addDataset(10).addDatafile(110);
+		assertEquals(data.length + 10, client.getSize("s", dataSelection));
+		assertEquals(Status.ONLINE, client.getStatus("s", dataSelection));
+		assertEquals(Arrays.asList(100L, 101L, 110L), client.getDatafileIds("s", dataSelection));
+		try {
+			client.getSize("s", new DataSelection().addDatafile(999));
+			fail("Expected NotFoundException");
+		} catch (NotFoundException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void splitTest() throws Exception {
+		/* Too many ids for one URI, with some of the data files also in the data set */
+		DataSelection dataSelection = new DataSelection().addDataset(20);
+		for (long id = 1000; id < 2000; id++) {
+			stub.addDatafile(1, id < 1500 ? 20 : 21, id, "f" + id, new byte[] { 1, 2, 3 });
+			dataSelection.addDatafile(id);
+		}
+		/* As unsplit, each type is sized separately so the files of the data set count twice */
+		assertEquals(1500 + 3000, client.getSize("s", dataSelection));
+		assertTrue(stub.getRequestCount("getSize") > 1);
+		assertEquals(0, stub.getRequestCount("getDatafileIds"));
+
+		long requests = stub.getRequestCount("getSize");
+		DataSelection small = new DataSelection().addDataset(20).addDatafile(1000);
+		assertEquals(1500 + 3, client.getSize("s", small));
+		assertEquals(requests + 1, stub.getRequestCount("getSize"));
+	}
+
+	@Test
+	public void getDataTest() throws Exception {
+		DataSelection dataSelection = new DataSelection().addDatafile(100);
+		assertArrayEquals(data, read(client.getData("s", dataSelection, Flag.NONE, 0)));
+		assertArrayEquals(Arrays.copyOfRange(data, 12345, data.length),
+				read(client.getData("s", dataSelection, Flag.NONE, 12345)));
+
+		String preparedId = client.prepareData("s", new DataSelection().addDataset(10), Flag.ZIP);
+		assertTrue(client.isPrepared(preparedId));
+		try (ZipInputStream zip = new ZipInputStream(client.getData(preparedId, 0))) {
+			ZipEntry entry = zip.getNextEntry();
+			assertEquals("ids/1/10/big", entry.getName());
+			assertArrayEquals(data, read(zip));
+			assertEquals("ids/1/10/small", zip.getNextEntry().getName());
+			assertEquals("Hello", new String(read(zip)));
+		}
+	}
+
+	@Test
+	public void archiveTest() throws Exception {
+		stub.setRestoreMillis(200);
+		DataSelection dataSelection = new DataSelection().addDataset(11);
+		client.archive("s", dataSelection);
+		assertEquals(Status.ARCHIVED, client.getStatus("s", dataSelection));
+		try {
+			client.getData("s", dataSelection, Flag.NONE, 0);
+			fail("Expected DataNotOnlineException");
+		} catch (DataNotOnlineException e) {
+			// Expected
+		}
+		assertEquals(Status.RESTORING, client.getStatus("s", dataSelection));
+		assertEquals(1, client.getServiceStatus("s").getOpItems().size());
+		Thread.sleep(300);
+		assertEquals(Status.ONLINE, client.getStatus("s", dataSelection));
+	}
+
+	@Test
+	public void putTest() throws Exception {
+		Long id = client.put("s", new ByteArrayInputStream(data), "new", 11, 1, null);
+		assertEquals(Status.ONLINE, client.getStatus("s", new DataSelection().addDatafile(id)));
+		assertArrayEquals(data, read(client.getData("s", new DataSelection().addDatafile(id), Flag.NONE, 0)));
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		id = client.put("s", new ByteArrayInputStream(data), "again", 11, 1, null, null, null, null, crc.getValue());
+		assertEquals(data.length, client.getSize("s", new DataSelection().addDatafile(id)));
+
+		client.delete("s", new DataSelection().addDatafile(id));
+		try {
+			client.getSize("s", new DataSelection().addDatafile(id));
+			fail("Expected NotFoundException");
+		} catch (NotFoundException e) {
+			// Expected
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		if (!(in instanceof ZipInputStream)) {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,56 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void bucketTest() {
+		int last = -1;
+		for (long value : new long[] { 0, 1, 127, 128, 129, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE }) {
+			int index = LatencyHistogram.index(value);
+			assertTrue(index >= last);
+			long high = LatencyHistogram.highestInBucket(index);
+			assertTrue(value <= high);
+			assertTrue(high - value <= value / 64);
+			if (index > 0) {
+				assertTrue(LatencyHistogram.highestInBucket(index - 1) < value);
+			}
+			last = index;
+		}
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.highestInBucket(LatencyHistogram.index(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void percentileTest() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+
+		Random random = new Random(4);
+		long[] values = new long[100000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (long) Math.exp(random.nextDouble() * 25);
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+		assertEquals(values.length, histogram.getCount());
+		assertEquals(values[values.length - 1], histogram.getMax());
+		for (double percentile : new double[] { 0, 50, 90, 99, 99.9, 100 }) {
+			long exact = values[Math.max(0, (int) Math.ceil(percentile / 100 * values.length) - 1)];
+			long value = histogram.getValueAtPercentile(percentile);
+			assertTrue(value >= exact);
+			assertTrue(value - exact <= exact / 64);
+		}
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+	}
+
+}
@@ -0,0 +1,120 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.icatproject.ids.client.MetricsRecorder.Operation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Metrics of calls to an {@link IdsStub} collected by a {@link MetricsRecorder}
+ */
+public class MetricsTest {
+
+	private IdsClient client;
+
+	private byte[] data;
+
+	private MetricsRecorder recorder;
+
+	private IdsStub stub;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		data = new byte[300000];
+		new Random(17).nextBytes(data);
+		stub.addDatafile(1, 10, 100, "file", data);
+		client = new IdsClient(stub.getUrl());
+		recorder = new MetricsRecorder();
+		client.setMetricsListener(recorder);
+	}
+
+	@After
+	public void after() {
+		client.close();
+		stub.close();
+	}
+
+	@Test
+	public void bytesTest() throws Exception {
+		long id = client.put("s", new ByteArrayInputStream(data), "copy", 10, 1, null, null, null, null);
+		Operation put = recorder.getOperation("put");
+		assertEquals(1, put.getCount());
+		assertEquals(data.length, put.getRequestBytes());
+		assertTrue(put.getResponseBytes() > 0);
+		assertEquals(Collections.singletonMap(201, 1L), put.getStatusCodes());
+		assertEquals(0, put.getErrorCount());
+		assertEquals(0, put.getActive());
+
+		try (InputStream in = client.getData("s", new DataSelection().addDatafile(id), Flag.NONE, 0)) {
+			Operation getData = recorder.getOperation("getData");
+			assertEquals(1, getData.getActive());
+			assertEquals(0, getData.getCount());
+			assertArrayEquals(data, read(in));
+		}
+		Operation getData = recorder.getOperation("getData");
+		assertEquals(0, getData.getActive());
+		assertEquals(1, getData.getCount());
+		assertEquals(0, getData.getRequestBytes());
+		assertEquals(data.length, getData.getResponseBytes());
+		assertEquals(Collections.singletonMap(200, 1L), getData.getStatusCodes());
+		assertEquals(1, getData.getLatency().getCount());
+	}
+
+	@Test
+	public void failureTest() throws Exception {
+		try {
+			client.getSize("s", new DataSelection().addDatafile(999));
+			fail("Expected NotFoundException");
+		} catch (NotFoundException e) {
+			// Expected
+		}
+		Operation getSize = recorder.getOperation("getSize");
+		assertEquals(0, getSize.getActive());
+		assertEquals(Collections.singletonMap(NotFoundException.class, 1L), getSize.getErrors());
+		assertEquals(Collections.singletonMap(404, 1L), getSize.getStatusCodes());
+
+		/* A connection dropped while the data are read */
+		stub.cutData(1, 100000);
+		try (InputStream in = client.getData("s", new DataSelection().addDatafile(100), Flag.NONE, 0)) {
+			read(in);
+			fail("Expected IOException");
+		} catch (IOException e) {
+			Operation getData = recorder.getOperation("getData");
+			assertEquals(0, getData.getActive());
+			Map<Class<? extends Exception>, Long> errors = getData.getErrors();
+			assertEquals(Collections.singletonMap(e.getClass(), 1L), errors);
+			assertTrue(getData.getResponseBytes() <= 100000);
+		}
+
+		/* Nothing more is recorded once the listener is removed */
+		client.setMetricsListener(null);
+		client.getSize("s", new DataSelection().addDatafile(100));
+		assertEquals(1, recorder.getOperation("getSize").getCount());
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,115 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Waiting for prepared data with an {@link IdsStub}
+ */
+public class PreparedWaiterTest {
+
+	private IdsClient client;
+
+	private IdsStub stub;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		stub.addDatafile(1, 10, 100, "file", "Hello".getBytes());
+		client = new IdsClient(stub.getUrl());
+	}
+
+	@After
+	public void after() {
+		client.close();
+		stub.close();
+	}
+
+	@Test
+	public void waitTest() throws Exception {
+		stub.setPrepareMillis(1000);
+		String preparedId = client.prepareData("s", new DataSelection().addDatafile(100), Flag.NONE);
+		long start = System.nanoTime();
+		CompletableFuture<String> future = client.waitForPrepared(preparedId);
+		CompletableFuture<String> other = client.waitForPrepared(preparedId);
+		assertNotSame(future, other);
+		assertEquals(preparedId, future.get(10, TimeUnit.SECONDS));
+		assertEquals(preparedId, other.get(10, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= 1000_000_000L);
+		/* Both share one schedule, polling at once and then after half a second and 1.25 seconds */
+		assertEquals(3, stub.getRequestCount("isPrepared"));
+	}
+
+	@Test
+	public void cancelTest() throws Exception {
+		stub.setPrepareMillis(1000);
+		String preparedId = client.prepareData("s", new DataSelection().addDatafile(100), Flag.NONE);
+		CompletableFuture<String> cancelled = client.waitForPrepared(preparedId);
+		CompletableFuture<String> other = client.waitForPrepared(preparedId);
+		assertTrue(cancelled.cancel(false));
+		assertFalse(other.isDone());
+		assertEquals(preparedId, other.get(10, TimeUnit.SECONDS));
+		assertTrue(cancelled.isCancelled());
+
+		/* Once all have cancelled a new wait starts afresh */
+		stub.setPrepareMillis(500);
+		preparedId = client.prepareData("s", new DataSelection().addDatafile(100), Flag.NONE);
+		client.waitForPrepared(preparedId).cancel(false);
+		long polls = stub.getRequestCount("isPrepared");
+		CompletableFuture<String> again = client.waitForPrepared(preparedId);
+		assertFalse(again.isCancelled());
+		assertEquals(preparedId, again.get(10, TimeUnit.SECONDS));
+		assertTrue(stub.getRequestCount("isPrepared") > polls);
+	}
+
+	@Test
+	public void notFoundTest() throws Exception {
+		try {
+			client.waitForPrepared("unknown").get(10, TimeUnit.SECONDS);
+			fail("Expected NotFoundException");
+		} catch (ExecutionException e) {
+			assertEquals(NotFoundException.class, e.getCause().getClass());
+		}
+	}
+
+	@Test
+	public void runtimeExceptionTest() throws Exception {
+		try (IdsClient broken = new IdsClient(stub.getUrl(), new Transport() {
+
+			@Override
+			public CloseableHttpResponse execute(HttpUriRequest request) {
+				throw new IllegalStateException("Broken transport");
+			}
+
+			@Override
+			public int getMaxConcurrency() {
+				return 2;
+			}
+
+			@Override
+			public void close() {
+			}
+		})) {
+			broken.waitForPrepared("any").get(10, TimeUnit.SECONDS);
+			fail("Expected InternalException");
+		} catch (ExecutionException e) {
+			assertEquals(InternalException.class, e.getCause().getClass());
+			assertTrue(e.getCause().getMessage().contains("Broken transport"));
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.icatproject.ids.client.IdsClient.Upload;
+import org.icatproject.ids.client.IdsClient.UploadResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Uploads to an {@link IdsStub}
+ */
+public class PutTest {
+
+	private IdsClient client;
+
+	private byte[] data;
+
+	private Path file;
+
+	private IdsStub stub;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		stub.addDatafile(1, 10, 100, "existing", "Hello".getBytes());
+		stub.addDatafile(1, 11, 110, "archived", "World".getBytes());
+		data = new byte[200000];
+		new Random(11).nextBytes(data);
+		file = Files.createTempFile("PutTest", null);
+		Files.write(file, data);
+		client = new IdsClient(stub.getUrl());
+	}
+
+	@After
+	public void after() throws Exception {
+		client.close();
+		stub.close();
+		Files.delete(file);
+	}
+
+	@Test
+	public void putAllTest() throws Exception {
+		stub.archive(11);
+		List<Upload> uploads = new ArrayList<>();
+		uploads.add(new Upload(file, "fromPath", 10, 1));
+		uploads.add(new Upload(new ByteArrayInputStream(data), "fromStream", 10, 1));
+		uploads.add(new Upload(file, "offline", 11, 1));
+		uploads.add(new Upload(file, "badChecksum", 10, 1).setChecksum(1L));
+
+		List<UploadResult> results = client.putAll("s", uploads, 4);
+		assertEquals(4, results.size());
+		for (int i = 0; i < 4; i++) {
+			assertSame(uploads.get(i), results.get(i).getUpload());
+		}
+		for (UploadResult result : results.subList(0, 2)) {
+			assertTrue(result.isSuccess());
+			assertNull(result.getException());
+			assertArrayEquals(data, getData(result.getDatafileId()));
+		}
+		assertFalse(results.get(2).isSuccess());
+		assertEquals(DataNotOnlineException.class, results.get(2).getException().getClass());
+		assertNull(results.get(2).getDatafileId());
+		assertEquals(InternalException.class, results.get(3).getException().getClass());
+	}
+
+	@Test
+	public void putAllConcurrencyTest() throws Exception {
+		stub.setLatencyMillis(100);
+		List<Upload> uploads = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			uploads.add(new Upload(file, "file" + i, 10, 1));
+		}
+		for (UploadResult result : client.putAll("s", uploads, 3)) {
+			assertTrue(result.isSuccess());
+		}
+		assertEquals(8, stub.getRequestCount("put"));
+		assertEquals(3, stub.getMaxActive());
+	}
+
+	@Test
+	public void putAllCorruptTest() throws Exception {
+		stub.setCorrupt(true);
+		List<Upload> uploads = new ArrayList<>();
+		uploads.add(new Upload(file, "fromPath", 10, 1));
+		uploads.add(new Upload(new ByteArrayInputStream(data), "fromStream", 10, 1));
+		for (UploadResult result : client.putAll("s", uploads, 2)) {
+			assertEquals(InternalException.class, result.getException().getClass());
+			assertTrue(result.getException().getMessage().contains("checksum"));
+		}
+	}
+
+	@Test
+	public void putPathTest() throws Exception {
+		/* Large enough to be read ahead by another thread */
+		byte[] large = new byte[3 * 1024 * 1024 + 5];
+		new Random(13).nextBytes(large);
+		Path largeFile = Files.createTempFile("PutTest", null);
+		try {
+			Files.write(largeFile, large);
+			for (Path path : Arrays.asList(file, largeFile)) {
+				long id = client.put("s", path, "copy", 10, 1, null, null, null, null);
+				assertArrayEquals(Files.readAllBytes(path), getData(id));
+				Map<String, List<String>> headers = stub.getLastHeaders("put");
+				assertEquals(Arrays.asList(Long.toString(Files.size(path))), headers.get("Content-Length"));
+				assertNull(headers.get("Transfer-Encoding"));
+			}
+
+			stub.setCorrupt(true);
+			for (Path path : Arrays.asList(file, largeFile)) {
+				try {
+					client.put("s", path, "corrupt", 10, 1, null, null, null, null);
+					fail("Expected InternalException");
+				} catch (InternalException e) {
+					assertTrue(e.getMessage().contains("checksum"));
+				}
+			}
+		} finally {
+			Files.delete(largeFile);
+		}
+	}
+
+	@Test
+	public void readAheadFailureTest() throws Exception {
+		/* Claim the file is longer than it is so that the reader fails */
+		byte[] large = new byte[3 * 1024 * 1024];
+		Files.write(file, large);
+		ExecutorService readers = Executors.newCachedThreadPool();
+		try {
+			FileUploadEntity entity = new FileUploadEntity(file, large.length + 1000, new CRC32(), readers);
+			assertEquals(large.length + 1000, entity.getContentLength());
+			assertFalse(entity.isChunked());
+			entity.writeTo(new ByteArrayOutputStream());
+			fail("Expected IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().endsWith("is shorter than expected"));
+		} finally {
+			readers.shutdownNow();
+		}
+	}
+
+	private byte[] getData(long datafileId) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = client.getData("s", new DataSelection().addDatafile(datafileId), Flag.NONE, 0)) {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+		}
+		return out.toByteArray();
+	}
+
+}
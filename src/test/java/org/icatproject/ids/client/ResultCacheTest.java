@@ -0,0 +1,93 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.icatproject.ids.client.IdsClient.Status;
+import org.junit.Test;
+
+public class ResultCacheTest {
+
+	@Test
+	public void ttlTest() throws Exception {
+		ResultCache cache = new ResultCache(100);
+		cache.put("getSize", "a", 1L, 100, 1, cache.getGeneration());
+		cache.put("getSize", "b", 2L, 0, 1, cache.getGeneration());
+		assertEquals(1L, cache.get("getSize", "a"));
+		assertNull(cache.get("getSize", "b"));
+		Thread.sleep(150);
+		assertNull(cache.get("getSize", "a"));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void weightTest() {
+		ResultCache cache = new ResultCache(10);
+		cache.put("getSize", "a", 1L, 60000, 4, cache.getGeneration());
+		cache.put("getSize", "b", 2L, 60000, 4, cache.getGeneration());
+		assertEquals(1L, cache.get("getSize", "a"));
+		/* b is now the least recently used */
+		cache.put("getSize", "c", 3L, 60000, 4, cache.getGeneration());
+		assertNull(cache.get("getSize", "b"));
+		assertEquals(1L, cache.get("getSize", "a"));
+		assertEquals(3L, cache.get("getSize", "c"));
+
+		/* Too heavy to be held at all */
+		cache.put("getSize", "d", 4L, 60000, 11, cache.getGeneration());
+		assertNull(cache.get("getSize", "d"));
+		assertEquals(1L, cache.get("getSize", "a"));
+	}
+
+	@Test
+	public void invalidateTest() {
+		ResultCache cache = new ResultCache(100);
+		cache.put("getStatus", "a", Status.ONLINE, 60000, 1, cache.getGeneration());
+		cache.put("getSize", "a", 1L, 60000, 1, cache.getGeneration());
+		cache.invalidate("getStatus");
+		assertNull(cache.get("getStatus", "a"));
+		assertEquals(1L, cache.get("getSize", "a"));
+
+		/* A result fetched before an invalidation is not stored */
+		long generation = cache.getGeneration();
+		cache.invalidate("getSize");
+		cache.put("getSize", "a", 2L, 60000, 1, generation);
+		assertNull(cache.get("getSize", "a"));
+		cache.put("getSize", "a", 3L, 60000, 1, cache.getGeneration());
+		assertEquals(3L, cache.get("getSize", "a"));
+	}
+
+	@Test
+	public void clientTest() throws Exception {
+		try (IdsStub stub = new IdsStub(); IdsClient client = new IdsClient(stub.getUrl())) {
+			stub.addDatafile(1, 10, 100, "file", "Hello".getBytes());
+			Map<Status, Long> statusTtlMillis = new EnumMap<>(Status.class);
+			statusTtlMillis.put(Status.ONLINE, 60000L);
+			client.enableCache(1000, statusTtlMillis, 60000);
+
+			DataSelection dataSelection = new DataSelection().addDatafile(100);
+			assertEquals(Status.ONLINE, client.getStatus("s", dataSelection));
+			assertEquals(Status.ONLINE, client.getStatus("s", new DataSelection().addDatafile(100)));
+			assertEquals(5L, client.getSize("s", dataSelection));
+			assertEquals(5L, client.getSize("s", dataSelection));
+			assertEquals(1, stub.getRequestCount("getStatus"));
+			assertEquals(1, stub.getRequestCount("getSize"));
+			assertEquals(2, client.getCacheHits());
+			assertEquals(2, client.getCacheMisses());
+
+			/* Archiving invalidates the status but not the size */
+			client.archive("s", dataSelection);
+			assertEquals(Status.ARCHIVED, client.getStatus("s", dataSelection));
+			assertEquals(5L, client.getSize("s", dataSelection));
+			assertEquals(2, stub.getRequestCount("getStatus"));
+			assertEquals(1, stub.getRequestCount("getSize"));
+			/* Nor is an ARCHIVED status cached as it has no ttl */
+			assertEquals(Status.ARCHIVED, client.getStatus("s", dataSelection));
+			assertEquals(3, stub.getRequestCount("getStatus"));
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.icatproject.ids.client.RetryPolicy.CircuitOpenException;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+	private static class Response extends BasicHttpResponse implements CloseableHttpResponse {
+
+		Response(int statusCode, String body) {
+			super(HttpVersion.HTTP_1_1, statusCode, null);
+			setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+	private static final String DATA_NOT_ONLINE = "{\"code\":\"DataNotOnlineException\",\"message\":\"Archived\"}";
+
+	private RetryPolicy policy = new RetryPolicy().setInitialBackoffMillis(1).setMaxBackoffMillis(5);
+
+	@Test
+	public void retryTest() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		CloseableHttpResponse response = policy.execute(new HttpGet("http://ids/getStatus"), request -> {
+			if (attempts.incrementAndGet() == 1) {
+				throw new ConnectException("Connection refused");
+			} else if (attempts.get() == 2) {
+				return new Response(502, "<html>Bad Gateway</html>");
+			}
+			return new Response(200, "ONLINE");
+		});
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		assertEquals(3, attempts.get());
+
+		/* The IDS reports data which are not online with a 503 which is not repeated */
+		attempts.set(0);
+		response = policy.execute(new HttpGet("http://ids/getData"), request -> {
+			attempts.incrementAndGet();
+			return new Response(503, DATA_NOT_ONLINE);
+		});
+		assertEquals(1, attempts.get());
+		assertEquals(DATA_NOT_ONLINE, EntityUtils.toString(response.getEntity()));
+
+		/* Nor is a POST */
+		attempts.set(0);
+		try {
+			policy.execute(new HttpPost("http://ids/restore"), request -> {
+				attempts.incrementAndGet();
+				throw new ConnectException("Connection refused");
+			});
+			fail("Expected ConnectException");
+		} catch (ConnectException e) {
+			assertEquals(1, attempts.get());
+		}
+	}
+
+	@Test
+	public void retryAfterTest() throws Exception {
+		Response response = new Response(503, "Busy");
+		assertEquals(-1, RetryPolicy.getRetryAfter(response));
+		response.setHeader("Retry-After", "2");
+		assertEquals(2000, RetryPolicy.getRetryAfter(response));
+		response.setHeader("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT");
+		assertEquals(0, RetryPolicy.getRetryAfter(response));
+
+		/* A wait longer than the maximum backoff is not made */
+		AtomicInteger attempts = new AtomicInteger();
+		CloseableHttpResponse last = policy.execute(new HttpGet("http://ids/ping"), request -> {
+			attempts.incrementAndGet();
+			Response busy = new Response(503, "Busy");
+			busy.setHeader("Retry-After", "60");
+			return busy;
+		});
+		assertEquals(1, attempts.get());
+		assertEquals(503, last.getStatusLine().getStatusCode());
+
+		for (int n = 0; n < 10; n++) {
+			long backoff = policy.getBackoff(n);
+			assertTrue(backoff >= 0 && backoff <= 5);
+		}
+	}
+
+	@Test
+	public void circuitTest() throws Exception {
+		policy.setMaxRetries(0).setFailureThreshold(3).setOpenMillis(100);
+		AtomicInteger attempts = new AtomicInteger();
+		RetryPolicy.Attempt down = request -> {
+			attempts.incrementAndGet();
+			throw new ConnectException("Connection refused");
+		};
+		for (int n = 0; n < 3; n++) {
+			try {
+				policy.execute(new HttpGet("http://ids/ping"), down);
+				fail("Expected ConnectException");
+			} catch (ConnectException e) {
+				// Expected
+			}
+		}
+		try {
+			policy.execute(new HttpGet("http://ids/ping"), down);
+			fail("Expected CircuitOpenException");
+		} catch (CircuitOpenException e) {
+			assertEquals(3, attempts.get());
+		}
+
+		Thread.sleep(150);
+		CloseableHttpResponse response = policy.execute(new HttpGet("http://ids/ping"),
+				request -> new Response(200, "IdsOK"));
+		assertEquals(200, response.getStatusLine().getStatusCode());
+		try {
+			policy.execute(new HttpGet("http://ids/ping"), down);
+			fail("Expected ConnectException");
+		} catch (IOException e) {
+			assertEquals(ConnectException.class, e.getClass());
+		}
+	}
+
+}
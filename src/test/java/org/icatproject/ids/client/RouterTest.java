@@ -0,0 +1,124 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.icatproject.ids.client.IdsClient.Flag;
+import org.icatproject.ids.client.IdsClient.Status;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Calls of an IdsClient given two servers
+ */
+public class RouterTest {
+
+	private IdsClient client;
+
+	private IdsStub fast;
+
+	private IdsStub slow;
+
+	@Before
+	public void before() throws Exception {
+		slow = new IdsStub();
+		slow.setLatencyMillis(50);
+		fast = new IdsStub();
+		for (IdsStub stub : Arrays.asList(slow, fast)) {
+			stub.addDatafile(1, 10, 100, "file", "Hello".getBytes());
+		}
+		client = new IdsClient(Arrays.asList(slow.getUrl(), fast.getUrl()));
+	}
+
+	@After
+	public void after() {
+		client.close();
+		slow.close();
+		fast.close();
+	}
+
+	@Test
+	public void latencyTest() throws Exception {
+		DataSelection dataSelection = new DataSelection().addDatafile(100);
+		for (int i = 0; i < 20; i++) {
+			assertEquals(Status.ONLINE, client.getStatus("s", dataSelection));
+		}
+		assertTrue(fast.getRequestCount("getStatus") > slow.getRequestCount("getStatus"));
+	}
+
+	@Test
+	public void pinTest() throws Exception {
+		String preparedId = client.prepareData("s", new DataSelection().addDatafile(100), Flag.NONE);
+		IdsStub issuer = fast.getRequestCount("prepareData") == 1 ? fast : slow;
+		IdsStub other = issuer == fast ? slow : fast;
+		for (int i = 0; i < 5; i++) {
+			assertTrue(client.isPrepared(preparedId));
+			try (InputStream in = client.getData(preparedId, 0)) {
+				int n = 0;
+				while (in.read() >= 0) {
+					n++;
+				}
+				assertEquals(5, n);
+			}
+		}
+		assertEquals(5, issuer.getRequestCount("isPrepared"));
+		assertEquals(5, issuer.getRequestCount("getData"));
+		assertEquals(0, other.getRequestCount("isPrepared") + other.getRequestCount("getData"));
+		assertEquals(issuer.getUrl().getPort(), client.getDataUrl(preparedId, null).getPort());
+	}
+
+	@Test
+	public void failoverTest() throws Exception {
+		client.setRetryPolicy(new RetryPolicy().setInitialBackoffMillis(1));
+		fast.close();
+		DataSelection dataSelection = new DataSelection().addDatafile(100);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(5L, client.getSize("s", dataSelection));
+		}
+		assertEquals(5, slow.getRequestCount("getSize"));
+	}
+
+	@Test
+	public void outstandingTest() throws Exception {
+		URL slowBase = new URL(slow.getUrl(), "ids/");
+		URL fastBase = new URL(fast.getUrl(), "ids/");
+		Router router = new Router(Arrays.asList(slowBase, fastBase), new ApacheTransport(4, 4, 30), 60);
+		try {
+			/* A response still being read counts until it is closed */
+			String uri = slowBase + "getData?sessionId=s&datafileIds=100";
+			try (CloseableHttpResponse response = router.execute(new HttpGet(uri))) {
+				assertEquals(200, response.getStatusLine().getStatusCode());
+				assertEquals(1, router.getOutstanding(slowBase) + router.getOutstanding(fastBase));
+				assertEquals("Hello", EntityUtils.toString(response.getEntity()));
+				assertEquals(1, router.getOutstanding(slowBase) + router.getOutstanding(fastBase));
+			}
+			assertEquals(0, router.getOutstanding(slowBase));
+			assertEquals(0, router.getOutstanding(fastBase));
+
+			/* As does one which failed */
+			slow.close();
+			fast.close();
+			try {
+				router.execute(new HttpGet(uri)).close();
+				fail("Expected IOException");
+			} catch (IOException e) {
+				// Expected
+			}
+			assertEquals(0, router.getOutstanding(slowBase));
+			assertEquals(0, router.getOutstanding(fastBase));
+		} finally {
+			router.close();
+		}
+	}
+
+}
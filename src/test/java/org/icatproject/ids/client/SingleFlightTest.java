@@ -0,0 +1,93 @@
+package org.icatproject.ids.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.icatproject.ids.client.IdsClient.Status;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Identical getStatus and getSize calls made at once by many threads
+ */
+public class SingleFlightTest {
+
+	private static final int THREADS = 20;
+
+	private IdsClient client;
+
+	private ExecutorService pool;
+
+	private IdsStub stub;
+
+	@Before
+	public void before() throws Exception {
+		stub = new IdsStub();
+		stub.setLatencyMillis(200);
+		stub.addDatafile(1, 10, 100, "a", "Hello".getBytes());
+		stub.addDatafile(1, 10, 101, "b", "World".getBytes());
+		client = new IdsClient(stub.getUrl(), 40, 40, 30);
+		pool = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@After
+	public void after() {
+		pool.shutdownNow();
+		client.close();
+		stub.close();
+	}
+
+	@Test
+	public void shareTest() throws Exception {
+		for (Future<Object> future : runAll(() -> {
+			/* The same selection built in different orders */
+			DataSelection dataSelection = Math.random() < 0.5 ? new DataSelection().addDatafile(100).addDatafile(101)
+					: new DataSelection().addDatafile(101).addDatafile(100);
+			return client.getStatus("s", dataSelection);
+		})) {
+			assertEquals(Status.ONLINE, future.get());
+		}
+		long requests = stub.getRequestCount("getStatus");
+		assertTrue(requests < THREADS);
+		assertEquals(THREADS, requests + client.getSharedCalls());
+
+		/* Other sessions do not share */
+		for (Future<Object> future : runAll(() -> client.getSize("s" + Thread.currentThread().getId(),
+				new DataSelection().addDatafile(100)))) {
+			assertEquals(5L, future.get());
+		}
+		assertEquals(THREADS, stub.getRequestCount("getSize"));
+	}
+
+	@Test
+	public void exceptionTest() throws Exception {
+		for (Future<Object> future : runAll(() -> client.getSize("s", new DataSelection().addDatafile(999)))) {
+			try {
+				future.get();
+				fail("Expected NotFoundException");
+			} catch (ExecutionException e) {
+				assertEquals(NotFoundException.class, e.getCause().getClass());
+			}
+		}
+		assertTrue(stub.getRequestCount("getSize") < THREADS);
+	}
+
+	private List<Future<Object>> runAll(Callable<Object> call) throws InterruptedException {
+		List<Callable<Object>> calls = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			calls.add(call);
+		}
+		return pool.invokeAll(calls);
+	}
+
+}